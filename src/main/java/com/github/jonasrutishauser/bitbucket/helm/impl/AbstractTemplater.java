@@ -1,184 +1,814 @@
 package com.github.jonasrutishauser.bitbucket.helm.impl;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
-import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.atlassian.bitbucket.pull.PullRequest;
 import com.atlassian.bitbucket.pull.PullRequestRef;
-import com.atlassian.bitbucket.repository.RefChange;
 import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.scm.git.GitWorkTreeBuilder;
-import com.atlassian.bitbucket.scm.git.GitWorkTreeBuilderFactory;
-import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.CommandFailedException;
 import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
 import com.atlassian.bitbucket.scm.git.worktree.GitWorkTree;
-import com.atlassian.bitbucket.scm.git.worktree.GitWorkTreeRepositoryHookInvoker;
-import com.atlassian.bitbucket.scm.git.worktree.PublishGitWorkTreeParameters;
 import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.util.MoreFiles;
+import com.github.jonasrutishauser.bitbucket.helm.impl.FastImportCommandHandler.Blob;
 import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
 import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmTemplateMode;
 
 abstract class AbstractTemplater {
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractTemplater.class);
 
-    private static final GitWorkTreeRepositoryHookInvoker NO_HOOKS = new GitWorkTreeRepositoryHookInvoker() {
-        @Override
-        public boolean preUpdate(@Nonnull GitWorkTree workTree, @Nonnull List<RefChange> refChanges) {
-            return true;
-        }
-
-        @Override
-        public void postUpdate(@Nonnull GitWorkTree workTree, @Nonnull List<RefChange> refChanges) {
-            // don't call hooks
-        }
-    };
+    private static final String SOURCE_PREFIX = "# Source: ";
+    private static final String MANIFEST_START = "\n---\n" + SOURCE_PREFIX;
+    private static final byte[] SEPARATOR_BYTES = "---\n".getBytes(UTF_8);
+    private static final byte[] SOURCE_PREFIX_BYTES = SOURCE_PREFIX.getBytes(UTF_8);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final String DEFAULT_CONFIGURATION = "default";
 
     protected final HelmConfiguration configuration;
-    private final GitWorkTreeBuilderFactory workTreeBuilderFactory;
-    private final GitCommandBuilderFactory commandBuilderFactory;
     private final StorageService storageService;
+    private final RenderCache renderCache;
+    private final RenderExecutor renderExecutor;
 
-    protected AbstractTemplater(HelmConfiguration configuration, GitWorkTreeBuilderFactory workTreeBuilderFactory,
-            GitCommandBuilderFactory commandBuilderFactory, StorageService storageService) {
+    protected AbstractTemplater(HelmConfiguration configuration, StorageService storageService,
+            RenderCache renderCache, RenderExecutor renderExecutor) {
         this.configuration = configuration;
-        this.workTreeBuilderFactory = workTreeBuilderFactory;
-        this.commandBuilderFactory = commandBuilderFactory;
         this.storageService = storageService;
+        this.renderCache = renderCache;
+        this.renderExecutor = renderExecutor;
     }
 
     public boolean isActive(Repository repository) {
         return configuration.isActive(repository);
     }
 
-    public String[] addTemplatedCommits(PullRequest pullRequest, Collection<String> directoriesToTemplate) {
-        GitWorkTreeBuilder builder = workTreeBuilderFactory.builder(pullRequest.getToRef().getRepository())
-                .commit(null);
+    protected abstract Collection<String> markerFilenames();
+
+    protected abstract String toolName();
+
+    /**
+     * @return the names of the files in a directory which declare dependencies on other directories of the repository
+     */
+    protected Collection<String> dependencyFilenames() {
+        return markerFilenames();
+    }
+
+    /**
+     * @param file
+     *            one of the {@link #dependencyFilenames()}
+     * @return the paths (relative to the directory of the file) of the directories the file depends on
+     */
+    protected Collection<String> localDependencies(Path file) throws IOException {
+        return emptyList();
+    }
+
+    /**
+     * Stages the directories of one side which can be taken from the render cache.
+     *
+     * @param degraded
+     *            whether to render with reduced fidelity (single file, default configuration only)
+     * @return the renders of the remaining directories (which render into the staging directory of the side)
+     */
+    List<Callable<Boolean>> stage(Repository repository, Collection<String> directoriesToTemplate,
+            GitWorkTree workTree, StagedSide side, String configurationDigest, Extraction extraction,
+            boolean degraded) throws IOException {
+        String commit = side.ref.getLatestCommit();
+        side.unchangedDirectories.addAll(unchangedDirectories(workTree, directoriesToTemplate, commit, side.previous,
+                configurationDigest, side.dependencies));
+        List<Callable<Boolean>> renders = new ArrayList<>();
+        for (String directory : directoriesToTemplate) {
+            if (side.unchangedDirectories.contains(directory)) {
+                continue;
+            }
+            Path renderedDir = side.stage(directory);
+            Set<String> extracted = extractedDirectories(directory,
+                    side.dependencies.getOrDefault(directory, emptySet()));
+            Optional<String> cacheKey = cacheKey(repository, workTree, commit, directory, extracted, degraded);
+            if (cacheKey.isPresent()
+                    && renderCache.replay(cacheKey.get(), rendered -> copy(rendered, renderedDir))) {
+                LOGGER.debug("replayed {} of {} from render cache", directory, commit);
+                continue;
+            }
+            extracted.forEach(path -> extraction.use(commit, path));
+            renders.add(() -> {
+                boolean complete = render(repository, extraction, commit, directory, extracted, cacheKey,
+                        renderedDir, degraded, side.samples);
+                if (!complete) {
+                    side.incompleteDirectories.add(directory);
+                }
+                return complete;
+            });
+        }
+        return renders;
+    }
+
+    /**
+     * @return the files of the templated commit of one side (by their path within the folder of the tool)
+     */
+    SortedMap<String, Blob> tree(GitWorkTree workTree, StagedSide side) throws IOException {
+        SortedMap<String, Blob> tree = new TreeMap<>();
+        for (Entry<String, Path> staged : side.stagedDirectories.entrySet()) {
+            try (Stream<Path> files = Files.walk(staged.getValue())) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    String relativePath = staged.getValue().relativize(file).toString();
+                    String path = ".".equals(staged.getKey()) ? relativePath : staged.getKey() + "/" + relativePath;
+                    tree.put(path, new Blob(FastImportCommandHandler.blobId(file), file));
+                }
+            }
+        }
+        if (!side.unchangedDirectories.isEmpty()) {
+            carryOver(workTree, side.previous, side.unchangedDirectories, tree);
+        }
+        return tree;
+    }
+
+    RenderedCommit rendered(Collection<String> directoriesToTemplate, StagedSide side, String configurationDigest) {
+        return new RenderedCommit(null, toolName(), side.name, side.ref.getLatestCommit(), configurationDigest,
+                directoriesToTemplate, side.incompleteDirectories);
+    }
+
+    /**
+     * @return the directories to extract (at their path within the content directory) to render the directory: the
+     *         directory and its local dependencies, without the ones nested in another of them
+     */
+    static Set<String> extractedDirectories(String directory, Set<String> dependencies) {
+        Set<String> directories = new TreeSet<>(dependencies);
+        directories.add(directory);
+        Set<String> extracted = new TreeSet<>(directories);
+        extracted.removeIf(
+                path -> directories.stream().anyMatch(other -> !other.equals(path) && isWithin(path, other)));
+        return extracted;
+    }
+
+    private boolean render(Repository repository, Extraction extraction, String commit, String directory,
+            Set<String> extracted, Optional<String> cacheKey, Path renderedDir, boolean degraded,
+            Collection<RenderHistory.Sample> samples) throws IOException {
+        Path contentDir = Files.createTempDirectory(storageService.getTempDir(), "content-");
         try {
-            return builder.execute(workTree -> addTemplated(pullRequest, directoriesToTemplate, workTree));
-        } catch (IOException e) {
-            LOGGER.warn("Failed to add " + toolName() + " templated files", e);
+            MoreFiles.mkdir(renderedDir);
+            // the local dependencies are referenced by their path relative to the directory
+            for (String path : extracted) {
+                extraction.extract(commit, path, resolve(contentDir, path));
+            }
+            Map<String, Long> durations = new ConcurrentHashMap<>();
+            boolean complete = template(repository, contentDir, directory, renderedDir, degraded, durations);
+            for (Entry<String, Long> duration : durations.entrySet()) {
+                samples.add(new RenderHistory.Sample(toolName(), directory, duration.getKey(),
+                        duration.getValue().longValue(), outputSize(renderedDir, duration.getKey())));
+            }
+            if (complete && cacheKey.isPresent()) {
+                renderCache.store(cacheKey.get(), renderedDir);
+            }
+            return complete;
+        } finally {
+            MoreFiles.deleteQuietly(contentDir);
         }
-        return null;
     }
 
-    public void removeReference(PullRequest pullRequest) {
-        GitScmCommandBuilder scmCommandBuilder = commandBuilderFactory.builder(pullRequest.getToRef().getRepository());
-        scmCommandBuilder.updateRef().delete(getRefName(pullRequest)).build().call();
+    /**
+     * @return the directories which can be taken over from the previous templated commit, because neither the
+     *         directory nor the configuration changed since then
+     */
+    private Set<String> unchangedDirectories(GitWorkTree workTree, Collection<String> directories, String commit,
+            RenderedCommit previous, String configurationDigest, Map<String, Set<String>> dependencies) {
+        Set<String> unchanged = reusableDirectories(directories, previous, configurationDigest);
+        if (!unchanged.isEmpty() && !previous.getSource().equals(commit)) {
+            String[] changedPaths;
+            try {
+                changedPaths = workTree.builder().command("diff").argument("--name-only").argument("--no-renames")
+                        .argument("-z").argument(previous.getSource()).argument(commit)
+                        .build(new LinesCommandOutputHandler('\0')).call();
+            } catch (CommandFailedException e) {
+                LOGGER.debug("failed to diff against previously templated commit {}", previous.getSource(), e);
+                return emptySet();
+            }
+            removeChanged(unchanged, dependencies, changedPaths);
+        }
+        if (previous != null) {
+            LOGGER.debug("{} directories unchanged since {}: {}", toolName(), previous.getSource(), unchanged);
+        }
+        return unchanged;
     }
 
-    protected abstract Collection<String> markerFilenames();
+    /**
+     * @return the directories which were completely templated with the same configuration into the previous templated
+     *         commit
+     */
+    static Set<String> reusableDirectories(Collection<String> directories, RenderedCommit previous,
+            String configurationDigest) {
+        if (previous == null || !previous.getConfiguration().equals(configurationDigest)) {
+            return new TreeSet<>();
+        }
+        Set<String> reusable = new TreeSet<>(directories);
+        reusable.retainAll(previous.getDirectories());
+        reusable.removeAll(previous.getIncompleteDirectories());
+        return reusable;
+    }
 
-    protected abstract String toolName();
+    /**
+     * Removes the directories which contain any of the changed paths (or whose local dependencies contain any).
+     *
+     * @param dependencies
+     *            the local dependencies of the directories
+     */
+    static void removeChanged(Set<String> directories, Map<String, Set<String>> dependencies,
+            String[] changedPaths) {
+        directories.removeIf(directory -> Stream
+                .concat(Stream.of(directory), dependencies.getOrDefault(directory, emptySet()).stream())
+                .anyMatch(used -> Arrays.stream(changedPaths).anyMatch(path -> isWithin(path, used))));
+    }
 
-    private String[] addTemplated(PullRequest pullRequest, Collection<String> directoriesToTemplate, GitWorkTree workTree)
-            throws IOException {
-        // template old version
-        template(pullRequest, directoriesToTemplate, workTree, pullRequest.getToRef());
+    private void carryOver(GitWorkTree workTree, RenderedCommit previous, Set<String> directories,
+            SortedMap<String, Blob> tree) {
+        for (String directory : directories) {
+            // the output of the tool is in its own folder
+            String prefix = toolName() + "/";
+            lsTree(workTree, previous.getCommit(), ".".equals(directory) ? prefix : prefix + directory + "/", true)
+                    .build(new LsTreeCommandOutputHandler(entry -> {
+                        String path = entry.getFilename().substring(prefix.length());
+                        if (isOutputOf(path, directory, previous.getDirectories())) {
+                            tree.put(path, new Blob(entry.getObjectId(), null));
+                        }
+                    })).call();
+        }
+    }
 
-        // template new version
-        workTree.builder().rm().path(".").recursive(true).build().call();
-        template(pullRequest, directoriesToTemplate, workTree, pullRequest.getFromRef());
+    /**
+     * @param path
+     *            of a file within the output folder of the tool
+     * @param templatedDirectories
+     *            all directories of the templated commit
+     * @return true if the file belongs to the output of the directory (and not to a templated directory nested in it)
+     */
+    static boolean isOutputOf(String path, String directory, Collection<String> templatedDirectories) {
+        return isWithin(path, directory) && templatedDirectories.stream()
+                .noneMatch(other -> !other.equals(directory) && isWithin(other, directory) && isWithin(path, other));
+    }
 
-        String refName = getRefName(pullRequest);
-        // this api wont allow to create arbitrary refs
-        // (we need to rename this ref afterwards)
-        workTree.publish(new PublishGitWorkTreeParameters.Builder(NO_HOOKS).branch(refName, null).build());
-        // rename the ref
-        GitScmCommandBuilder scmCommandBuilder = commandBuilderFactory
-                .builder(pullRequest.getToRef().getRepository());
-        scmCommandBuilder.updateRef().set(refName, "refs/heads/" + refName).deref(false).build().call();
-        scmCommandBuilder.updateRef().delete("refs/heads/" + refName).build().call();
+    static GitScmCommandBuilder lsTree(GitWorkTree workTree, String commit, String path, boolean recursive) {
+        GitScmCommandBuilder builder = workTree.builder().command("ls-tree").argument("-z");
+        if (recursive) {
+            builder.argument("-r");
+        }
+        return builder.argument(commit).argument("--").argument(path);
+    }
 
-        return workTree.builder().revList().limit(2).rev("HEAD").build(new LinesCommandOutputHandler()).call();
+    private static boolean isWithin(String path, String directory) {
+        return ".".equals(directory) || path.startsWith(directory + "/");
     }
 
-    private void template(PullRequest pullRequest, Collection<String> directoriesToTemplate, GitWorkTree targetWorkTree,
-            PullRequestRef ref) throws IOException {
-        for (String directory : directoriesToTemplate) {
-            Path contentDir = Files.createTempDirectory(storageService.getTempDir(), "content-");
-            try {
-                @SuppressWarnings("null")
-                @Nonnull List<GitFile> files = targetWorkTree.builder().lsTree().tree(ref.getLatestCommit()).path(directory)
-                        .recursive(true).build(new LsTreeCommandOutputHandler()).call();
-                for (GitFile file : files) {
-                    Path targetFile = contentDir
-                            .resolve(file.getFilename().substring(".".equals(directory) ? 0 : directory.length() + 1));
-                    MoreFiles.mkdir(targetFile.getParent());
-                    targetWorkTree.builder().catFile().pretty().object(file.getObjectId())
-                            .build(new WriteToFileCommandOutputHandler(targetFile)).call();
+    /**
+     * @param extracted
+     *            the directories extracted to render the directory (see {@link #extractedDirectories})
+     */
+    private Optional<String> cacheKey(Repository repository, GitWorkTree workTree, String commit, String directory,
+            Set<String> extracted, boolean degraded) {
+        if (!renderCache.isEnabled()) {
+            return Optional.empty();
+        }
+        return treeId(workTree, commit, directory).map(id -> {
+            List<String> parts = configurationParts(repository, degraded);
+            parts.add(id);
+            for (String dependency : extracted) {
+                if (!dependency.equals(directory)) {
+                    parts.add(dependency + ":" + treeId(workTree, commit, dependency).orElse(""));
                 }
-                template(pullRequest.getToRef().getRepository(), contentDir, targetWorkTree, directory);
-            } finally {
-                MoreFiles.deleteQuietly(contentDir);
             }
+            return renderCache.key(parts);
+        });
+    }
+
+    private static Optional<String> treeId(GitWorkTree workTree, String commit, String directory) {
+        if (".".equals(directory)) {
+            return Arrays.stream(workTree.builder().command("rev-parse").argument(commit + "^{tree}")
+                    .build(new LinesCommandOutputHandler()).call()).findFirst();
         }
-        @SuppressWarnings("null")
-        @Nonnull String[] changes = targetWorkTree.builder().status().porcelain(true).build(new LinesCommandOutputHandler()).call();
-        LOGGER.debug("git status: {}", (Object) changes);
-        if (changes.length > 0) {
-            targetWorkTree.builder().commit().author(pullRequest.getAuthor().getUser()).message(toolName() + " template").build().call();
+        List<String> treeIds = new ArrayList<>();
+        lsTree(workTree, commit, directory, false).build(new LsTreeCommandOutputHandler(entry -> {
+            if (directory.equals(entry.getFilename())) {
+                treeIds.add(entry.getObjectId());
+            }
+        })).call();
+        return treeIds.stream().findFirst();
+    }
+
+    String configurationDigest(Repository repository, boolean degraded) {
+        return renderCache.key(configurationParts(repository, degraded));
+    }
+
+    private List<String> configurationParts(Repository repository, boolean degraded) {
+        // the version of the output format (to invalidate previous renders)
+        List<String> parts = new ArrayList<>(asList(toolName(), "2", //
+                templateMode(repository, degraded).name(), //
+                configuration.getDefaultValues(repository), //
+                configuration.getTestValuesDirectory(repository), //
+                configuration.getHelmfileEnvironments(repository), //
+                new TreeMap<>(configuration.getEnv(repository)).toString()));
+        for (String binary : binaries()) {
+            parts.add(renderCache.binaryDigest(binary));
         }
+        if (degraded) {
+            // never reused by a render with full fidelity
+            parts.add("degraded");
+        }
+        return parts;
     }
 
-    private String getRefName(PullRequest pullRequest) {
-        return "refs/pull-requests/" + pullRequest.getId() + "/" + toolName();
+    private HelmTemplateMode templateMode(Repository repository, boolean degraded) {
+        return degraded ? HelmTemplateMode.SINGLE_FILE : configuration.getTemplateMode(repository);
     }
 
-    private void template(Repository repository, Path directory, GitWorkTree targetWorktree, String targetFolder)
-            throws IOException {
-        HelmTemplateMode templateMode = configuration.getTemplateMode(repository);
-        Path outputDir = Files.createTempDirectory(storageService.getTempDir(), "rendered-");
+    /**
+     * @param degraded
+     *            whether only the default configuration is rendered (into a single file)
+     * @param durations
+     *            gets the duration of every configuration (in milliseconds, preparing the directory counts for the
+     *            default configuration)
+     * @return false if the rendered output must not be reused (e.g. when a render failed)
+     */
+    /**
+     * @param contentDir
+     *            contains the directory (and its local dependencies) at their path within the repository
+     */
+    private boolean template(Repository repository, Path contentDir, String path, Path targetFolder,
+            boolean degraded, Map<String, Long> durations) throws IOException {
+        Path directory = resolve(contentDir, path);
+        HelmTemplateMode templateMode = templateMode(repository, degraded);
         Path cacheDir = Files.createTempDirectory(storageService.getTempDir(), "cache-");
         MoreFiles.mkdir(cacheDir, "repo");
         try {
-            if (templateMode.isUseOutputDir()) {
-                templateUseOutputDir(repository, directory, targetWorktree, Paths.get(targetFolder, "default"),
-                        outputDir, cacheDir, Optional.empty());
-                MoreFiles.deleteQuietly(outputDir);
-                MoreFiles.mkdir(outputDir);
-            }
-            if (templateMode.isSingleFile()) {
-                templateSingleFile(repository, directory, targetWorktree, Paths.get(targetFolder, "default.yaml"),
-                        cacheDir, Optional.empty());
-            }
-            for (String additionalConfiguration : additionalConfigurations(repository, directory)) {
-                if (templateMode.isUseOutputDir()) {
-                    templateUseOutputDir(repository, directory, targetWorktree,
-                            Paths.get(targetFolder, additionalConfiguration), outputDir, cacheDir,
-                            Optional.of(additionalConfiguration));
-                    MoreFiles.deleteQuietly(outputDir);
-                    MoreFiles.mkdir(outputDir);
-                }
+            long start = System.nanoTime();
+            prepare(repository, directory, cacheDir);
+            CancellationToken.current().check();
+            List<Callable<Boolean>> renders = new ArrayList<>();
+            renders.add(() -> timed(durations, DEFAULT_CONFIGURATION, start,
+                    () -> template(repository, directory, targetFolder, cacheDir, templateMode, Optional.empty())));
+            for (String additionalConfiguration : degraded ? Collections.<String>emptyList()
+                    : additionalConfigurations(repository, directory)) {
+                renders.add(() -> timed(durations, additionalConfiguration, System.nanoTime(), () -> {
+                    if (!modifiesDirectory()) {
+                        return template(repository, directory, targetFolder, cacheDir, templateMode,
+                                Optional.of(additionalConfiguration));
+                    }
+                    Path copy = Files.createTempDirectory(storageService.getTempDir(), "content-");
+                    try {
+                        copy(contentDir, copy);
+                        return template(repository, resolve(copy, path), targetFolder, cacheDir, templateMode,
+                                Optional.of(additionalConfiguration));
+                    } finally {
+                        MoreFiles.deleteQuietly(copy);
+                    }
+                }));
+            }
+            // every configuration writes to its own target, so the completion order does not matter
+            return renderExecutor.invokeAll(renders).stream().allMatch(Boolean::booleanValue);
+        } finally {
+            MoreFiles.deleteQuietly(cacheDir);
+        }
+    }
+
+    private boolean template(Repository repository, Path directory, Path targetFolder, Path cacheDir,
+            HelmTemplateMode templateMode, Optional<String> additionalConfiguration) throws IOException {
+        String name = additionalConfiguration.orElse(DEFAULT_CONFIGURATION);
+        if (templateMode.isUseOutputDir()) {
+            Path outputDir = Files.createTempDirectory(storageService.getTempDir(), "rendered-");
+            try {
                 if (templateMode.isSingleFile()) {
-                    templateSingleFile(repository, directory, targetWorktree,
-                            Paths.get(targetFolder, additionalConfiguration + ".yaml"), cacheDir,
-                            Optional.of(additionalConfiguration));
+                    return templateBoth(repository, directory, targetFolder.resolve(name),
+                            targetFolder.resolve(name + ".yaml"), outputDir, cacheDir, additionalConfiguration);
                 }
+                return templateUseOutputDir(repository, directory, targetFolder.resolve(name), outputDir, cacheDir,
+                        additionalConfiguration);
+            } finally {
+                MoreFiles.deleteQuietly(outputDir);
             }
+        }
+        return templateSingleFile(repository, directory, targetFolder.resolve(name + ".yaml"), cacheDir,
+                additionalConfiguration);
+    }
+
+    private static boolean timed(Map<String, Long> durations, String name, long start, Callable<Boolean> render)
+            throws Exception {
+        try {
+            return render.call().booleanValue();
         } finally {
-            MoreFiles.deleteQuietly(cacheDir);
-            MoreFiles.deleteQuietly(outputDir);
+            durations.put(name, Long.valueOf((System.nanoTime() - start) / 1_000_000));
+        }
+    }
+
+    /**
+     * @return the size of the output of the configuration (a folder and/or a file named after the configuration)
+     */
+    private static long outputSize(Path targetFolder, String name) throws IOException {
+        long size = 0;
+        for (Path output : asList(targetFolder.resolve(name), targetFolder.resolve(name + ".yaml"))) {
+            if (Files.exists(output)) {
+                try (Stream<Path> files = Files.walk(output)) {
+                    for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                        size += Files.size(file);
+                    }
+                }
+            }
         }
+        return size;
+    }
+
+    private static Path resolve(Path contentDir, String path) {
+        return ".".equals(path) ? contentDir : contentDir.resolve(path);
+    }
+
+    static void copy(Path source, Path target) throws IOException {
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                Path targetFile = target.resolve(source.relativize(file).toString());
+                MoreFiles.mkdir(targetFile.getParent());
+                Files.copy(file, targetFile);
+            }
+        }
+    }
+
+    /**
+     * Prepares the directory and the cache directory shared by the renders of all configurations (e.g. builds the
+     * dependencies).
+     */
+    protected void prepare(Repository repository, Path directory, Path cacheDir) throws IOException {
+        // nothing to prepare by default
+    }
+
+    /**
+     * @return true if a render modifies the directory, so that concurrent renders of other configurations need their
+     *         own copy of it
+     */
+    protected boolean modifiesDirectory() {
+        return false;
     }
 
     protected abstract Iterable<String> additionalConfigurations(Repository repository, Path directory) throws IOException;
 
-    protected abstract void templateSingleFile(Repository repository, Path directory, GitWorkTree targetWorkTree,
-            Path targetFile, Path cacheDir, Optional<String> additionalConfiguration) throws IOException;
+    /**
+     * @return the binaries used to render (their content is part of the render cache key)
+     */
+    protected abstract Collection<String> binaries();
+
+    /**
+     * @return true if the templating was successful
+     */
+    protected abstract boolean templateSingleFile(Repository repository, Path directory, Path targetFile,
+            Path cacheDir, Optional<String> additionalConfiguration) throws IOException;
+
+    /**
+     * @return true if the templating was successful
+     */
+    protected abstract boolean templateUseOutputDir(Repository repository, Path directory, Path targetFolder,
+            Path outputDir, Path cacheDir, Optional<String> additionalConfiguration) throws IOException;
+
+    /**
+     * Renders into the target folder (like {@link #templateUseOutputDir}) and into the target file (like
+     * {@link #templateSingleFile}). By default the two modes are rendered one after another.
+     *
+     * @return true if the templating was successful
+     */
+    protected boolean templateBoth(Repository repository, Path directory, Path targetFolder, Path targetFile,
+            Path outputDir, Path cacheDir, Optional<String> additionalConfiguration) throws IOException {
+        boolean successful = templateUseOutputDir(repository, directory, targetFolder, outputDir, cacheDir,
+                additionalConfiguration);
+        return templateSingleFile(repository, directory, targetFile, cacheDir, additionalConfiguration)
+                && successful;
+    }
+
+    /**
+     * Splits the output of <code>helm template</code> into the files helm would write with <code>--output-dir</code>
+     * (every manifest is appended to the file named by its <code># Source:</code> comment).
+     *
+     * @param skipComponents
+     *            the number of leading path components of the source to skip
+     */
+    protected static void splitBySource(Path renderedFile, Path targetFolder, int skipComponents)
+            throws IOException {
+        Set<Path> written = new HashSet<>();
+        OutputStream current = null;
+        try (LineReader in = new LineReader(Files.newInputStream(renderedFile))) {
+            byte[] line = in.readLine();
+            while (line != null) {
+                byte[] next = in.readLine();
+                if (isSeparator(line) && next != null && startsWith(next, SOURCE_PREFIX_BYTES)) {
+                    close(current);
+                    Path file = sourceFile(targetFolder, sourceOf(next), skipComponents);
+                    current = file == null ? null : open(file, written.add(file));
+                    if (current != null) {
+                        writeLine(current, SEPARATOR_BYTES);
+                        writeLine(current, next);
+                    }
+                    next = in.readLine();
+                } else if (current != null) {
+                    writeLine(current, line);
+                }
+                line = next;
+            }
+        } finally {
+            close(current);
+        }
+    }
+
+    private static void writeLine(OutputStream out, byte[] line) throws IOException {
+        out.write(line);
+        if (line[line.length - 1] != '\n') {
+            out.write('\n');
+        }
+    }
+
+    private static OutputStream open(Path file, boolean truncate) throws IOException {
+        MoreFiles.mkdir(file.getParent());
+        return new BufferedOutputStream(truncate ? Files.newOutputStream(file)
+                : Files.newOutputStream(file, StandardOpenOption.APPEND), COPY_BUFFER_SIZE);
+    }
+
+    private static void close(OutputStream out) throws IOException {
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    private static boolean isSeparator(byte[] line) {
+        int length = line.length;
+        if (length > 0 && line[length - 1] == '\n') {
+            length--;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return length == 3 && line[0] == '-' && line[1] == '-' && line[2] == '-';
+    }
+
+    private static boolean startsWith(byte[] line, byte[] prefix) {
+        if (line.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String sourceOf(byte[] sourceLine) {
+        return new String(sourceLine, SOURCE_PREFIX_BYTES.length, sourceLine.length - SOURCE_PREFIX_BYTES.length,
+                UTF_8).replaceAll("\\r?\\n$", "");
+    }
+
+    private static Path sourceFile(Path targetFolder, String source, int skipComponents) {
+        Path sourcePath = Paths.get(source).normalize();
+        if (sourcePath.isAbsolute() || sourcePath.startsWith("..") || sourcePath.getNameCount() <= skipComponents) {
+            return null;
+        }
+        return targetFolder.resolve(sourcePath.subpath(skipComponents, sourcePath.getNameCount()).toString());
+    }
+
+    /**
+     * Concatenates the manifests of all files of the target folder into the target file in the order they got
+     * written. The manifests of files missing in <code>writtenFiles</code> follow ordered by the path of their file.
+     *
+     * @param writtenFiles
+     *            the file every manifest got appended to, in the order the manifests were written (as reported by the
+     *            <code>wrote</code> lines of <code>helm template --output-dir</code>)
+     */
+    protected static void concatenate(Path targetFolder, List<Path> writtenFiles, Path targetFile)
+            throws IOException {
+        Map<Path, ArrayDeque<String>> manifests = new TreeMap<>();
+        if (Files.isDirectory(targetFolder)) {
+            try (Stream<Path> files = Files.walk(targetFolder)) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    manifests.put(file, manifests(Files.readString(file)));
+                }
+            }
+        }
+        MoreFiles.mkdir(targetFile.getParent());
+        try (Writer out = Files.newBufferedWriter(targetFile)) {
+            for (Path file : writtenFiles) {
+                String manifest = manifests.getOrDefault(file, new ArrayDeque<>()).poll();
+                if (manifest != null) {
+                    out.write(manifest);
+                }
+            }
+            for (ArrayDeque<String> remaining : manifests.values()) {
+                for (String manifest : remaining) {
+                    out.write(manifest);
+                }
+            }
+        }
+    }
+
+    private static ArrayDeque<String> manifests(String content) {
+        ArrayDeque<String> manifests = new ArrayDeque<>();
+        int start = 0;
+        int next = content.indexOf(MANIFEST_START);
+        while (next >= 0) {
+            manifests.add(content.substring(start, next + 1));
+            start = next + 1;
+            next = content.indexOf(MANIFEST_START, start);
+        }
+        if (start < content.length()) {
+            manifests.add(content.substring(start));
+        }
+        return manifests;
+    }
+
+    /**
+     * Copies the file byte by byte (the target is replaced, a missing source results in an empty target).
+     */
+    protected static void copyContent(Path sourceFile, Path targetFile) throws IOException {
+        MoreFiles.mkdir(targetFile.getParent());
+        if (Files.isRegularFile(sourceFile)) {
+            Files.copy(sourceFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            writeContent(targetFile, "");
+        }
+    }
+
+    /**
+     * Runs the process with its standard output streamed into the target file. If the process fails, the target file
+     * contains the error (prefixed by <code>errorPrefix</code>) instead.
+     *
+     * @return false if the process failed or its output was truncated
+     */
+    protected boolean renderToFile(RenderProcess process, Path targetFile, String errorPrefix) throws IOException {
+        RenderProcess.Result result = process.run(targetFile, configuration.getMaxOutputSize() * 1024 * 1024,
+                Duration.ofMillis(configuration.getExecutionTimeout()));
+        if (result.isTruncated()) {
+            return false;
+        }
+        String error = errorMessage(result, errorPrefix);
+        if (!result.isSuccessful() || (result.getOutputSize() == 0 && !error.isEmpty())) {
+            writeContent(targetFile, error);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the process (which writes its output to files) and discards its standard output.
+     */
+    protected RenderProcess.Result run(RenderProcess process) throws IOException {
+        return run(process, null);
+    }
+
+    /**
+     * Runs the process (which writes its output to files) with its standard output written to the log file.
+     *
+     * @param logFile
+     *            the file the standard output is written to (null to discard it)
+     */
+    protected RenderProcess.Result run(RenderProcess process, Path logFile) throws IOException {
+        return process.run(logFile, Long.MAX_VALUE, Duration.ofMillis(configuration.getExecutionTimeout()));
+    }
+
+    /**
+     * @return the error prefix followed by the standard error of the process (and the timeout if it timed out)
+     */
+    protected String errorMessage(RenderProcess.Result result, String errorPrefix) {
+        StringJoiner error = new StringJoiner(System.lineSeparator());
+        Stream.of(errorPrefix, result.getStderr()).filter(s -> !s.isEmpty()).forEach(error::add);
+        if (result.isTimedOut()) {
+            error.add("timeout after " + Duration.ofMillis(configuration.getExecutionTimeout()));
+        }
+        return error.toString();
+    }
+
+    protected static void writeContent(Path targetFile, String content) throws IOException {
+        MoreFiles.mkdir(targetFile.getParent());
+        MoreFiles.write(targetFile, content);
+    }
+
 
-    protected abstract void templateUseOutputDir(Repository repository, Path directory, GitWorkTree targetWorkTree,
-            Path targetFolder, Path outputDir, Path cacheDir, Optional<String> additionalConfiguration)
-            throws IOException;
+    private static class LineReader implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        private int position;
+        private int limit;
 
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return the next line including its line feed (null at the end of the stream)
+         */
+        byte[] readLine() throws IOException {
+            ByteArrayOutputStream line = null;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return line == null ? null : line.toByteArray();
+                    }
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                boolean complete = position < limit;
+                if (complete) {
+                    position++;
+                }
+                if (complete && line == null) {
+                    return Arrays.copyOfRange(buffer, start, position);
+                }
+                if (line == null) {
+                    line = new ByteArrayOutputStream(position - start + 128);
+                }
+                line.write(buffer, start, position - start);
+                if (complete) {
+                    return line.toByteArray();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * The output of a templater for one side of the pull request.
+     */
+    static class StagedSide {
+        private final String name;
+        private final PullRequestRef ref;
+        private final RenderedCommit previous;
+        private final Path stagingDir;
+        private final Map<String, Set<String>> dependencies;
+        private final Set<String> unchangedDirectories = new TreeSet<>();
+        private final Map<String, Path> stagedDirectories = new LinkedHashMap<>();
+        private final Set<String> incompleteDirectories = Collections.synchronizedSet(new TreeSet<>());
+        private final List<RenderHistory.Sample> samples = Collections.synchronizedList(new ArrayList<>());
+
+        /**
+         * @param dependencies
+         *            the local dependencies of the directories to render (at the commit of the side)
+         */
+        StagedSide(String name, PullRequestRef ref, RenderedCommit previous, Path stagingDir,
+                Map<String, Set<String>> dependencies) {
+            this.name = name;
+            this.ref = ref;
+            this.previous = previous;
+            this.stagingDir = stagingDir;
+            this.dependencies = dependencies;
+        }
+
+        Path stage(String directory) {
+            Path renderedDir = stagingDir.resolve(Integer.toString(stagedDirectories.size()));
+            MoreFiles.mkdir(renderedDir);
+            stagedDirectories.put(directory, renderedDir);
+            return renderedDir;
+        }
+
+        /**
+         * @return the renders of this side (once they completed)
+         */
+        List<RenderHistory.Sample> samples() {
+            return samples;
+        }
+    }
 }
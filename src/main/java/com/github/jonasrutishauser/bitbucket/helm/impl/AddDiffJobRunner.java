@@ -1,14 +1,17 @@
 package com.github.jonasrutishauser.bitbucket.helm.impl;
 
+import static java.util.Collections.singletonMap;
 import static org.apache.commons.lang3.StringUtils.capitalize;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
@@ -19,7 +22,6 @@ import org.slf4j.LoggerFactory;
 
 import com.atlassian.bitbucket.comment.AddCommentRequest;
 import com.atlassian.bitbucket.comment.CommentService;
-import com.atlassian.bitbucket.event.pull.PullRequestEvent;
 import com.atlassian.bitbucket.nav.NavBuilder;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.pull.PullRequest;
@@ -28,12 +30,15 @@ import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.scheduler.JobRunner;
 import com.atlassian.scheduler.JobRunnerRequest;
 import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.config.JobId;
 import com.atlassian.scheduler.config.JobRunnerKey;
 
 @Named
 public class AddDiffJobRunner implements JobRunner {
 
-    public static final JobRunnerKey JOB_RUNNER_KEY = JobRunnerKey.of("com.github.jonasrutishauser.bitbucket:helm-pr-bitbucket-plugin:addDiffJobRunner");
+    private static final String JOB_RUNNER_KEY_PREFIX = "com.github.jonasrutishauser.bitbucket:helm-pr-bitbucket-plugin:addDiffJobRunner";
+
+    public static final JobRunnerKey JOB_RUNNER_KEY = JobRunnerKey.of(JOB_RUNNER_KEY_PREFIX);
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AddDiffJobRunner.class);
 
@@ -41,64 +46,161 @@ public class AddDiffJobRunner implements JobRunner {
     private static final String PULL_REQUEST_ID = "pullRequestId";
     private static final String DIRECTORIES = "directories";
     private static final String TOOL = "tool";
+    private static final String FROM_COMMIT = "fromCommit";
+    private static final String TO_COMMIT = "toCommit";
+    private static final String ESTIMATED_DURATION = "estimatedDuration";
+    private static final String DEGRADED = "degraded";
+
+    private static final String DEGRADED_NOTE = "Rendered with reduced fidelity because of the render backlog (single "
+            + "file, default configuration only, only directly changed charts), comment `"
+            + PrEventListener.FULL_RENDER_COMMAND + "` to render it completely";
 
     private final PullRequestService prService;
     private final CommentService commentService;
     private final NavBuilder navBuilder;
-    private final List<AbstractTemplater> templaters;
+    private final PullRequestTemplater pullRequestTemplater;
     private final PluginUser pluginUser;
+    private final RenderQueue renderQueue;
+    private final DiffJobExecutor jobExecutor;
+    private final ConcurrentMap<String, CancellationToken> runningJobs = new ConcurrentHashMap<>();
 
     @Inject
     public AddDiffJobRunner(@ComponentImport PullRequestService prService,
             @ComponentImport CommentService commentService, @ComponentImport NavBuilder navBuilder,
-            List<AbstractTemplater> templaters, PluginUser pluginUser) {
+            PullRequestTemplater pullRequestTemplater, PluginUser pluginUser, RenderQueue renderQueue,
+            DiffJobExecutor jobExecutor) {
         this.prService = prService;
         this.commentService = commentService;
         this.navBuilder = navBuilder;
-        this.templaters = templaters;
+        this.pullRequestTemplater = pullRequestTemplater;
         this.pluginUser = pluginUser;
+        this.renderQueue = renderQueue;
+        this.jobExecutor = jobExecutor;
     }
 
-    public static Map<String, Serializable> getParameters(PullRequestEvent event, Set<String> directories, AbstractTemplater templater) {
+    /**
+     * @param directories
+     *            the directories to render by the name of the tool
+     * @param estimatedDuration
+     *            of the job in milliseconds
+     * @param degraded
+     *            whether the directories are rendered with reduced fidelity
+     */
+    public static Map<String, Serializable> getParameters(PullRequest pullRequest,
+            Map<String, ? extends Collection<String>> directories, long estimatedDuration, boolean degraded) {
         Map<String, Serializable> parameters = new HashMap<>();
-        parameters.put(REPOSITORY_ID, event.getPullRequest().getToRef().getRepository().getId());
-        parameters.put(PULL_REQUEST_ID, event.getPullRequest().getId());
-        parameters.put(DIRECTORIES, new HashSet<>(directories));
-        parameters.put(TOOL, templater.toolName());
+        parameters.put(REPOSITORY_ID, pullRequest.getToRef().getRepository().getId());
+        parameters.put(PULL_REQUEST_ID, pullRequest.getId());
+        HashMap<String, HashSet<String>> directoriesByTool = new HashMap<>();
+        directories.forEach((tool, dirs) -> directoriesByTool.put(tool, new HashSet<>(dirs)));
+        parameters.put(DIRECTORIES, directoriesByTool);
+        parameters.put(FROM_COMMIT, pullRequest.getFromRef().getLatestCommit());
+        parameters.put(TO_COMMIT, pullRequest.getToRef().getLatestCommit());
+        parameters.put(ESTIMATED_DURATION, estimatedDuration);
+        parameters.put(DEGRADED, degraded);
         return parameters;
     }
 
+    /**
+     * There is at most one diff job per pull request (it renders all tools). Scheduling a job with the same id
+     * replaces the one which is still waiting (on any cluster node).
+     */
+    public static JobId getJobId(int repositoryId, long pullRequestId) {
+        return JobId.of(JOB_RUNNER_KEY_PREFIX + ":" + repositoryId + ":" + pullRequestId);
+    }
+
+    /**
+     * Cancels the job of the pull request running on this node. Jobs on other nodes notice within a few seconds that
+     * the pull request changed.
+     */
+    public void cancel(PullRequest pullRequest) {
+        CancellationToken token = runningJobs
+                .get(runningJobKey(pullRequest.getToRef().getRepository().getId(), pullRequest.getId()));
+        if (token != null) {
+            LOGGER.debug("cancel diff job of pull request {}", pullRequest.getId());
+            token.cancel();
+        }
+    }
+
+    /**
+     * Adds the job to the render queue and returns immediately, the job is rendered by the {@link DiffJobExecutor}.
+     */
     @Override
     public JobRunnerResponse runJob(@Nonnull JobRunnerRequest request) {
         Map<String, Serializable> parameters = request.getJobConfig().getParameters();
         int repositoryId = ((Number) parameters.get(REPOSITORY_ID)).intValue();
         long pullRequestId = ((Number) parameters.get(PULL_REQUEST_ID)).longValue();
-        PullRequest pullRequest = pluginUser.impersonating("get pr").withPermission(Permission.REPO_READ)
-                .call(() -> prService.getById(repositoryId, pullRequestId));
-        if (pullRequest != null) {
-            @SuppressWarnings("unchecked")
-            Collection<String> directories = (Collection<String>) parameters.get(DIRECTORIES);
-            for (AbstractTemplater templater : templaters) {
-                if (templater.toolName().equals(parameters.get(TOOL))) {
-                    addDiff(pullRequest, directories, templater);
-                }
-            }
-        } else {
+        PullRequest pullRequest = getPullRequest(repositoryId, pullRequestId);
+        if (pullRequest == null) {
             LOGGER.warn("Pull Request {} for project {} no longer exists", pullRequestId, repositoryId);
+        } else if (!pullRequest.isOpen()) {
+            LOGGER.debug("Pull Request {} for project {} was closed since the job was scheduled", pullRequestId,
+                    repositoryId);
+        } else if (!isLatest(pullRequest, (String) parameters.get(FROM_COMMIT), (String) parameters.get(TO_COMMIT))) {
+            LOGGER.debug("Pull Request {} for project {} changed since the job was scheduled", pullRequestId,
+                    repositoryId);
+        } else {
+            renderQueue.enqueue(new RenderQueue.Entry(repositoryId,
+                    pullRequest.getToRef().getRepository().getProject().getId(), pullRequestId,
+                    pullRequest.getFromRef().getLatestCommit(), pullRequest.getToRef().getLatestCommit(),
+                    getDirectories(parameters), getEstimatedDuration(parameters),
+                    Boolean.TRUE.equals(parameters.get(DEGRADED))));
+            renderQueue.getEstimate(repositoryId, pullRequestId)
+                    .ifPresent(estimate -> LOGGER.debug("diff of pull request {} expected in {} s", pullRequestId,
+                            (estimate.getFinish() - System.currentTimeMillis()) / 1000));
         }
+        jobExecutor.dispatch();
         return JobRunnerResponse.success();
     }
 
-    private void addDiff(PullRequest pullRequest, Collection<String> directories, AbstractTemplater templater) {
-        String[] refs = templater.addTemplatedCommits(pullRequest, directories);
-        if (refs != null && refs.length > 0 && prStillExists(pullRequest)) {
-            String message;
-            if (refs.length > 1) {
-                message = String.format("%s template diff generated ([view changes](%s))",
-                        capitalize(templater.toolName()), getPullRequestDiffUrl(pullRequest, refs[0], refs[1]));
-            } else {
-                message = String.format("%s template generated no diff", capitalize(templater.toolName()));
-            }
+    void render(RenderQueue.Entry entry) {
+        PullRequest pullRequest = getPullRequest(entry.getRepositoryId(), entry.getPullRequestId());
+        if (pullRequest == null || !pullRequest.isOpen()
+                || !isLatest(pullRequest, entry.getFromCommit(), entry.getToCommit())) {
+            LOGGER.debug("skip outdated job {}", entry.getKey());
+            return;
+        }
+        String key = runningJobKey(entry.getRepositoryId(), entry.getPullRequestId());
+        CancellationToken token = new CancellationToken(() -> !prStillExists(pullRequest, entry));
+        runningJobs.put(key, token);
+        try {
+            addDiff(pullRequest, entry, token);
+        } finally {
+            runningJobs.remove(key, token);
+        }
+    }
+
+    /**
+     * Jobs scheduled by older versions render a single tool.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Collection<String>> getDirectories(Map<String, Serializable> parameters) {
+        if (parameters.get(TOOL) != null) {
+            return singletonMap((String) parameters.get(TOOL), (Collection<String>) parameters.get(DIRECTORIES));
+        }
+        return (Map<String, Collection<String>>) parameters.get(DIRECTORIES);
+    }
+
+    /**
+     * Jobs scheduled by older versions have no estimate (and are started first).
+     */
+    private static long getEstimatedDuration(Map<String, Serializable> parameters) {
+        Number estimatedDuration = (Number) parameters.get(ESTIMATED_DURATION);
+        return estimatedDuration == null ? 0 : estimatedDuration.longValue();
+    }
+
+    private PullRequest getPullRequest(int repositoryId, long pullRequestId) {
+        return pluginUser.impersonating("get pr").withPermission(Permission.REPO_READ)
+                .call(() -> prService.getById(repositoryId, pullRequestId));
+    }
+
+    private void addDiff(PullRequest pullRequest, RenderQueue.Entry entry, CancellationToken token) {
+        PullRequestTemplater.TemplatedCommits templated = pullRequestTemplater.addTemplatedCommits(pullRequest,
+                entry.getDirectories(), entry.isDegraded(), token);
+        if (templated != null && templated.getCommits().length > 0 && !token.isCancelled()
+                && prStillExists(pullRequest, entry)) {
+            String summary = summary(pullRequest, templated);
+            String message = entry.isDegraded() ? summary + "\n\n" + DEGRADED_NOTE : summary;
             pluginUser.impersonating("add pr comment")
                     .withPermission(pullRequest.getToRef().getRepository(), Permission.REPO_READ)
                     .call(() -> commentService.addComment(new AddCommentRequest.Builder(pullRequest, message).build()));
@@ -109,17 +211,59 @@ public class AddDiffJobRunner implements JobRunner {
      * There is a bug report, that when a comment is added to a PR after it got deleted, the database will be corrupt.
      * Since it takes a while to template all the stuff this is a risk. To reduce it, we check that the PR still exists
      * just before adding the comment. There is still a race condition, but it is much less likely to happen now.
+     * If the PR got rescoped or closed meanwhile, the comment is skipped as well (the job of the new commits adds it).
      *
      * @see <a href="https://jira.atlassian.com/browse/BSERV-12953">Bug Report</a>
      *
      * @param pullRequest the pull request to check
-     * @return true if it still exists
+     * @param entry the rendered job
+     * @return true if it still exists, is open and was not rescoped
      */
-    private boolean prStillExists(PullRequest pullRequest) {
+    private boolean prStillExists(PullRequest pullRequest, RenderQueue.Entry entry) {
         PullRequest pr = pluginUser.impersonating("get pr")
                 .withPermission(pullRequest.getToRef().getRepository(), Permission.REPO_READ)
                 .call(() -> prService.getById(pullRequest.getToRef().getRepository().getId(), pullRequest.getId()));
-        return pr != null;
+        return pr != null && pr.isOpen() && isLatest(pr, entry.getFromCommit(), entry.getToCommit());
+    }
+
+    /**
+     * One comment for all tools, e.g. "Helm template diff generated ([view changes](...)), helmfile template generated
+     * no diff".
+     */
+    String summary(PullRequest pullRequest, PullRequestTemplater.TemplatedCommits templated) {
+        String[] commits = templated.getCommits();
+        if (commits.length < 2) {
+            return String.format("%s template generated no diff", capitalize(describe(templated.getTools())));
+        }
+        String message = String.format("%s template diff generated ([view changes](%s))",
+                capitalize(describe(templated.getChangedTools())),
+                getPullRequestDiffUrl(pullRequest, commits[0], commits[1]));
+        List<String> unchanged = new ArrayList<>(templated.getTools());
+        unchanged.removeAll(templated.getChangedTools());
+        if (!unchanged.isEmpty()) {
+            message += String.format(", %s template generated no diff", describe(unchanged));
+        }
+        return message;
+    }
+
+    static String describe(Collection<String> tools) {
+        List<String> names = new ArrayList<>(tools);
+        if (names.size() < 2) {
+            return String.join("", names);
+        }
+        return String.join(", ", names.subList(0, names.size() - 1)) + " and " + names.get(names.size() - 1);
+    }
+
+    private static String runningJobKey(int repositoryId, long pullRequestId) {
+        return repositoryId + ":" + pullRequestId;
+    }
+
+    /**
+     * Jobs scheduled by older versions have no commits and are always rendered.
+     */
+    private static boolean isLatest(PullRequest pullRequest, String fromCommit, String toCommit) {
+        return (fromCommit == null || fromCommit.equals(pullRequest.getFromRef().getLatestCommit()))
+                && (toCommit == null || toCommit.equals(pullRequest.getToRef().getLatestCommit()));
     }
 
     private String getPullRequestDiffUrl(PullRequest pullRequest, String commit, String since) {
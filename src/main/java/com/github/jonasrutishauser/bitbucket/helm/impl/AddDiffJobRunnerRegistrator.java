@@ -14,20 +14,35 @@ public class AddDiffJobRunnerRegistrator implements LifecycleAware {
 
     private final SchedulerService schedulerService;
     private final AddDiffJobRunner runner;
+    private final RenderExecutor renderExecutor;
+    private final DiffJobExecutor jobExecutor;
+    private final PrEventProcessor eventProcessor;
+    private final ChartCatalog chartCatalog;
 
     @Inject
-    public AddDiffJobRunnerRegistrator(@ComponentImport SchedulerService schedulerService, AddDiffJobRunner runner) {
+    public AddDiffJobRunnerRegistrator(@ComponentImport SchedulerService schedulerService, AddDiffJobRunner runner,
+            RenderExecutor renderExecutor, DiffJobExecutor jobExecutor, PrEventProcessor eventProcessor,
+            ChartCatalog chartCatalog) {
         this.schedulerService = schedulerService;
         this.runner = runner;
+        this.renderExecutor = renderExecutor;
+        this.jobExecutor = jobExecutor;
+        this.eventProcessor = eventProcessor;
+        this.chartCatalog = chartCatalog;
     }
 
     @Override
     public void onStart() {
+        jobExecutor.start(runner::render);
         schedulerService.registerJobRunner(AddDiffJobRunner.JOB_RUNNER_KEY, runner);
     }
 
     @Override
     public void onStop() {
+        eventProcessor.shutdown();
+        chartCatalog.shutdown();
         schedulerService.unregisterJobRunner(AddDiffJobRunner.JOB_RUNNER_KEY);
+        jobExecutor.shutdown();
+        renderExecutor.shutdown();
     }
 }
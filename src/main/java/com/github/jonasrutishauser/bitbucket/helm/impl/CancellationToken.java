@@ -0,0 +1,99 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cooperative cancellation of a diff job. The token is checked between the stages of the job and by the running
+ * render processes, which are killed once it is cancelled. Besides being cancelled explicitly (by the node which
+ * receives the pull request event), the token periodically asks whether the job became obsolete, so jobs running on
+ * other cluster nodes are cancelled as well.
+ */
+class CancellationToken {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CancellationToken.class);
+
+    static final CancellationToken NONE = new CancellationToken(() -> false);
+
+    private static final ThreadLocal<CancellationToken> CURRENT = ThreadLocal.withInitial(() -> NONE);
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final BooleanSupplier obsolete;
+    private final AtomicLong nextCheck = new AtomicLong(System.nanoTime() + CHECK_INTERVAL);
+    private volatile boolean cancelled;
+
+    /**
+     * @param obsolete
+     *            polled (at most every few seconds) while the token is checked
+     */
+    CancellationToken(BooleanSupplier obsolete) {
+        this.obsolete = obsolete;
+    }
+
+    /**
+     * @return the token of the job the calling thread works for ({@link #NONE} if there is none)
+     */
+    static CancellationToken current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes this token the {@link #current()} one of the calling thread until the scope is closed.
+     */
+    Scope enter() {
+        CancellationToken previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> CURRENT.set(previous);
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        if (!cancelled) {
+            long next = nextCheck.get();
+            long now = System.nanoTime();
+            if (now - next >= 0 && nextCheck.compareAndSet(next, now + CHECK_INTERVAL) && isObsolete()) {
+                cancelled = true;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * @throws CancelledException
+     *             if the token is cancelled
+     */
+    void check() throws CancelledException {
+        if (isCancelled()) {
+            throw new CancelledException();
+        }
+    }
+
+    private boolean isObsolete() {
+        try {
+            return obsolete.getAsBoolean();
+        } catch (RuntimeException e) {
+            LOGGER.debug("failed to check whether the job is obsolete", e);
+            return false;
+        }
+    }
+
+    interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    static class CancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException() {
+            super("diff job cancelled");
+        }
+    }
+}
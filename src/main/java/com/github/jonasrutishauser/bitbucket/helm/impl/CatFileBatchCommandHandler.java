@@ -0,0 +1,102 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.Watchdog;
+import com.atlassian.bitbucket.util.MoreFiles;
+
+/**
+ * Feeds the object ids of all files to a single <code>git cat-file --batch</code> process and writes the contents as
+ * they arrive.
+ */
+class CatFileBatchCommandHandler implements CommandInputHandler, CommandOutputHandler<Integer> {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final List<GitFile> files;
+    private final Function<GitFile, Path> targetFile;
+    private int extracted;
+
+    public CatFileBatchCommandHandler(List<GitFile> files, Function<GitFile, Path> targetFile) {
+        this.files = files;
+        this.targetFile = targetFile;
+    }
+
+    @Override
+    public void process(@Nonnull OutputStream input) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(input, UTF_8))) {
+            for (GitFile file : files) {
+                writer.write(file.getObjectId());
+                writer.write('\n');
+            }
+        }
+    }
+
+    @Override
+    public void process(@Nonnull InputStream output) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new BufferedInputStream(output, BUFFER_SIZE)) {
+            for (GitFile file : files) {
+                String[] header = readLine(in).split(" ");
+                if (header.length < 3) {
+                    // missing object (e.g. a submodule commit)
+                    continue;
+                }
+                long size = Long.parseLong(header[2]);
+                Path target = targetFile.apply(file);
+                MoreFiles.mkdir(target.getParent());
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    while (size > 0) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, size));
+                        if (read < 0) {
+                            throw new EOFException("unexpected end of cat-file output for " + file.getFilename());
+                        }
+                        out.write(buffer, 0, read);
+                        size -= read;
+                    }
+                }
+                // content is terminated by a newline
+                in.read();
+                extracted++;
+            }
+        }
+    }
+
+    @Override
+    public Integer getOutput() {
+        return extracted;
+    }
+
+    @Override
+    public void setWatchdog(@Nonnull Watchdog watchdog) {
+        // ignore
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                throw new EOFException("unexpected end of cat-file output");
+            }
+            line.write(b);
+        }
+        return line.toString(UTF_8);
+    }
+}
@@ -0,0 +1,245 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static com.atlassian.bitbucket.repository.RefChangeType.DELETE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Arrays.asList;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandFailedException;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import com.atlassian.bitbucket.server.StorageService;
+import com.atlassian.bitbucket.util.MoreFiles;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+
+/**
+ * Node local catalog of the directories containing the marker files of a templater, per repository and branch. A
+ * catalog is built from a full tree listing when it is first used and is then updated from the diff of the marker
+ * files whenever the branch changes. The catalogs are updated in the background, so the git commands do not delay the
+ * event listeners.
+ */
+@Named
+public class ChartCatalog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChartCatalog.class);
+
+    private static final String SEPARATOR = "\0";
+
+    private final GitCommandBuilderFactory commandBuilderFactory;
+    private final List<AbstractTemplater> templaters;
+    private final Path directory;
+    private final ExecutorService executor;
+    private final ConcurrentMap<Path, Object> locks = new ConcurrentHashMap<>();
+
+    @Inject
+    public ChartCatalog(@ComponentImport GitCommandBuilderFactory commandBuilderFactory,
+            @ComponentImport StorageService storageService, List<AbstractTemplater> templaters) {
+        this(commandBuilderFactory, templaters, MoreFiles.resolve(storageService.getHomeDir(), "helm-pr", "catalog"),
+                Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "helm-pr-catalog");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+    }
+
+    ChartCatalog(GitCommandBuilderFactory commandBuilderFactory, List<AbstractTemplater> templaters, Path directory,
+            ExecutorService executor) {
+        this.commandBuilderFactory = commandBuilderFactory;
+        this.templaters = templaters;
+        this.directory = directory;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the directories (<code>"."</code> for the root) containing any marker file of the templater at the
+     *         commit of the branch
+     */
+    public Set<String> directories(Repository repository, String branch, String commit, AbstractTemplater templater) {
+        Path file = catalogFile(repository, branch, templater);
+        synchronized (locks.computeIfAbsent(file, f -> new Object())) {
+            Optional<Catalog> stored = read(file);
+            if (stored.isPresent() && stored.get().commit.equals(commit)) {
+                return stored.get().directories;
+            }
+            Set<String> directories = null;
+            if (stored.isPresent()) {
+                directories = update(repository, stored.get(), commit, templater);
+            }
+            if (directories == null) {
+                directories = build(repository, commit, templater);
+            }
+            write(file, new Catalog(commit, directories));
+            return directories;
+        }
+    }
+
+    @EventListener
+    public void onRefsChanged(RepositoryRefsChangedEvent event) {
+        Repository repository = event.getRepository();
+        List<RefChange> changes = new ArrayList<>(event.getRefChanges());
+        execute(() -> changes.forEach(change -> refresh(repository, change)));
+    }
+
+    @EventListener
+    public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+        Path repositoryDirectory = directory.resolve(Integer.toString(event.getRepository().getId()));
+        // deleted after the pending updates, which would otherwise store the catalogs again
+        if (!execute(() -> MoreFiles.deleteQuietly(repositoryDirectory))) {
+            MoreFiles.deleteQuietly(repositoryDirectory);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("catalog update ignored while stopping");
+            return false;
+        }
+    }
+
+    private void refresh(Repository repository, RefChange change) {
+        for (AbstractTemplater templater : templaters) {
+            Path file = catalogFile(repository, change.getRef().getId(), templater);
+            if (Files.isRegularFile(file)) {
+                if (DELETE == change.getType()) {
+                    MoreFiles.deleteQuietly(file);
+                } else {
+                    try {
+                        directories(repository, change.getRef().getId(), change.getToHash(), templater);
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("failed to update {} catalog of {}", templater.toolName(), repository, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private Set<String> build(Repository repository, String commit, AbstractTemplater templater) {
+        LOGGER.debug("building {} catalog of {} at {}", templater.toolName(), repository, commit);
+        return commandBuilderFactory.builder(repository).command("ls-tree").argument("-r").argument("--name-only")
+                .argument("-z").argument(commit)
+                .build(new MarkerDirectoriesCommandOutputHandler(null, templater.markerFilenames())).call();
+    }
+
+    /**
+     * @return the directories at the commit (null if the stored catalog cannot be updated)
+     */
+    private Set<String> update(Repository repository, Catalog stored, String commit, AbstractTemplater templater) {
+        GitScmCommandBuilder diffTree = commandBuilderFactory.builder(repository).command("diff-tree")
+                .argument("-r").argument("--name-status").argument("--no-renames").argument("-z")
+                .argument(stored.commit).argument(commit).argument("--");
+        for (String markerFilename : templater.markerFilenames()) {
+            diffTree.argument(markerFilename).argument("*/" + markerFilename);
+        }
+        String[] changes;
+        try {
+            changes = diffTree.build(new LinesCommandOutputHandler('\0')).call();
+        } catch (CommandFailedException e) {
+            LOGGER.debug("failed to diff {} with {}", stored.commit, commit, e);
+            return null;
+        }
+        Set<String> directories = new TreeSet<>(stored.directories);
+        Set<String> removed = new TreeSet<>();
+        for (int i = 0; i + 1 < changes.length; i += 2) {
+            String changed = parent(changes[i + 1]);
+            if ("D".equals(changes[i])) {
+                removed.add(changed);
+            } else {
+                directories.add(changed);
+            }
+        }
+        if (!removed.isEmpty()) {
+            // a directory stays in the catalog as long as any of its marker files remains
+            GitScmCommandBuilder lsTree = commandBuilderFactory.builder(repository).command("ls-tree")
+                    .argument("--name-only").argument("-z").argument(commit).argument("--");
+            for (String removedDirectory : removed) {
+                for (String markerFilename : templater.markerFilenames()) {
+                    lsTree.argument(".".equals(removedDirectory) ? markerFilename
+                            : removedDirectory + "/" + markerFilename);
+                }
+            }
+            removed.removeAll(
+                    lsTree.build(new MarkerDirectoriesCommandOutputHandler(null, templater.markerFilenames())).call());
+            directories.removeAll(removed);
+        }
+        return directories;
+    }
+
+    private static String parent(String path) {
+        int separator = path.lastIndexOf('/');
+        return separator < 0 ? "." : path.substring(0, separator);
+    }
+
+    private Path catalogFile(Repository repository, String branch, AbstractTemplater templater) {
+        return MoreFiles.resolve(directory, Integer.toString(repository.getId()),
+                DirectoryCache.key(asList(branch, templater.toolName())));
+    }
+
+    private static Optional<Catalog> read(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        try {
+            List<String> entries = asList(new String(Files.readAllBytes(file), UTF_8).split(SEPARATOR));
+            return Optional.of(new Catalog(entries.get(0), new TreeSet<>(entries.subList(1, entries.size()))));
+        } catch (IOException e) {
+            LOGGER.warn("failed to read catalog {}", file, e);
+            return Optional.empty();
+        }
+    }
+
+    private static void write(Path file, Catalog catalog) {
+        try {
+            MoreFiles.mkdir(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            StringBuilder content = new StringBuilder(catalog.commit);
+            catalog.directories.forEach(d -> content.append(SEPARATOR).append(d));
+            Files.write(temp, content.toString().getBytes(UTF_8));
+            Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("failed to write catalog {}", file, e);
+        }
+    }
+
+    private static class Catalog {
+        private final String commit;
+        private final Set<String> directories;
+
+        Catalog(String commit, Set<String> directories) {
+            this.commit = commit;
+            this.directories = Collections.unmodifiableSet(directories);
+        }
+    }
+}
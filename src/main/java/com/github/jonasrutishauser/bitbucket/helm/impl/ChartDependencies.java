@@ -0,0 +1,143 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Reads the <code>dependencies</code> of a chart from <code>Chart.yaml</code>, <code>Chart.lock</code> (or the
+ * <code>requirements</code> files of apiVersion v1 charts). Only the block style written by helm is supported.
+ */
+class ChartDependencies {
+
+    private static final String DEPENDENCIES = "dependencies:";
+
+    private ChartDependencies() {
+    }
+
+    /**
+     * @return the lock file of the chart (if any)
+     */
+    static Optional<Path> lockFile(Path chartDir) {
+        for (String name : new String[] {"Chart.lock", "requirements.lock"}) {
+            Path lock = chartDir.resolve(name);
+            if (Files.isRegularFile(lock)) {
+                return Optional.of(lock);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the declared dependencies of the chart (from <code>Chart.yaml</code> or <code>requirements.yaml</code>)
+     */
+    static List<Dependency> declared(Path chartDir) throws IOException {
+        List<Dependency> dependencies = new ArrayList<>();
+        for (String name : new String[] {"Chart.yaml", "requirements.yaml"}) {
+            Path file = chartDir.resolve(name);
+            if (Files.isRegularFile(file)) {
+                dependencies.addAll(read(file));
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * @return true if <code>helm dependency build</code> would not change anything, because every locked dependency is
+     *         already in the <code>charts</code> directory (or the chart has no dependencies at all)
+     */
+    static boolean isBuilt(Path chartDir) throws IOException {
+        Optional<Path> lock = lockFile(chartDir);
+        if (!lock.isPresent()) {
+            return declared(chartDir).isEmpty();
+        }
+        Path chartsDir = chartDir.resolve("charts");
+        for (Dependency dependency : read(lock.get())) {
+            if (!Files.isRegularFile(chartsDir.resolve(dependency.getName() + "-" + dependency.getVersion() + ".tgz"))
+                    && !Files.isRegularFile(chartsDir.resolve(dependency.getName()).resolve("Chart.yaml"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static List<Dependency> read(Path file) throws IOException {
+        List<Dependency> dependencies = new ArrayList<>();
+        boolean inDependencies = false;
+        int listIndent = -1;
+        Dependency current = null;
+        for (String line : Files.readAllLines(file, UTF_8)) {
+            String content = line.trim();
+            if (content.isEmpty() || content.startsWith("#")) {
+                continue;
+            }
+            int indent = line.indexOf(content);
+            if (!inDependencies) {
+                inDependencies = indent == 0 && content.startsWith(DEPENDENCIES)
+                        && content.substring(DEPENDENCIES.length()).trim().isEmpty();
+                continue;
+            }
+            if (indent == 0 && !content.startsWith("-")) {
+                break;
+            }
+            if (content.startsWith("- ") && (listIndent < 0 || indent == listIndent)) {
+                listIndent = indent;
+                current = new Dependency();
+                dependencies.add(current);
+                content = content.substring(2).trim();
+                indent = listIndent + 2;
+            }
+            if (current != null && indent == listIndent + 2) {
+                current.set(content);
+            }
+        }
+        return dependencies;
+    }
+
+    static class Dependency {
+        private String name;
+        private String version;
+        private String repository;
+
+        private void set(String keyValue) {
+            int separator = keyValue.indexOf(':');
+            if (separator < 0) {
+                return;
+            }
+            String key = keyValue.substring(0, separator).trim();
+            String value = unquote(keyValue.substring(separator + 1).trim());
+            if ("name".equals(key)) {
+                name = value;
+            } else if ("version".equals(key)) {
+                version = value;
+            } else if ("repository".equals(key)) {
+                repository = value;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getRepository() {
+            return repository;
+        }
+
+        private static String unquote(String value) {
+            if (value.length() >= 2 && (value.startsWith("\"") && value.endsWith("\"")
+                    || value.startsWith("'") && value.endsWith("'"))) {
+                return value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.server.StorageService;
+import com.atlassian.bitbucket.util.MoreFiles;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+
+/**
+ * Selects the directories to render for a change: the directories of a templater which contain a changed path, all
+ * directories depending on them (transitively, e.g. through <code>file://</code> chart dependencies or local helmfile
+ * charts) and with subcharts (in the <code>charts</code> directory of a chart) replaced by their parent chart. It also
+ * provides the local dependencies which are needed to render a directory. The dependencies are indexed once per
+ * commit.
+ */
+@Named
+public class ChartDependencyIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChartDependencyIndex.class);
+
+    private static final int MAX_CACHED_INDEXES = 32;
+    private static final String SUBCHARTS = "charts/";
+
+    private final ChartCatalog chartCatalog;
+    private final GitCommandBuilderFactory commandBuilderFactory;
+    private final StorageService storageService;
+    private final List<AbstractTemplater> templaters;
+    private final Map<String, Map<String, Set<String>>> indexes = Collections
+            .synchronizedMap(new LinkedHashMap<String, Map<String, Set<String>>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Map<String, Set<String>>> eldest) {
+                    return size() > MAX_CACHED_INDEXES;
+                }
+            });
+
+    @Inject
+    public ChartDependencyIndex(ChartCatalog chartCatalog,
+            @ComponentImport GitCommandBuilderFactory commandBuilderFactory,
+            @ComponentImport StorageService storageService, List<AbstractTemplater> templaters) {
+        this.chartCatalog = chartCatalog;
+        this.commandBuilderFactory = commandBuilderFactory;
+        this.storageService = storageService;
+        this.templaters = templaters;
+    }
+
+    /**
+     * @param directlyChanged
+     *            whether only the changed directories are affected (not the directories depending on them)
+     * @return the directories of the templater to render at the commit of the branch
+     */
+    public Set<String> affectedDirectories(Repository repository, String branch, String commit,
+            AbstractTemplater templater, DirectoryTrie changedDirectories, boolean directlyChanged) {
+        Set<String> directories = chartCatalog.directories(repository, branch, commit, templater);
+        if (directlyChanged) {
+            return affectedDirectories(directories, emptyMap(), changedDirectories);
+        }
+        return affectedDirectories(directories, index(repository, branch, commit), changedDirectories);
+    }
+
+    /**
+     * @return the directories the directory depends on (transitively) at the commit of the branch
+     */
+    public Set<String> dependencies(Repository repository, String branch, String commit, String directory) {
+        return dependencies(directory, index(repository, branch, commit));
+    }
+
+    private Map<String, Set<String>> index(Repository repository, String branch, String commit) {
+        Map<String, Set<String>> dependents = indexes.get(repository.getId() + ":" + commit);
+        if (dependents == null) {
+            dependents = dependents(repository, branch, commit);
+            indexes.put(repository.getId() + ":" + commit, dependents);
+        }
+        return dependents;
+    }
+
+    /**
+     * @param dependents
+     *            the directories depending on a directory
+     */
+    static Set<String> affectedDirectories(Set<String> directories, Map<String, Set<String>> dependents,
+            DirectoryTrie changedDirectories) {
+        Deque<String> changed = new ArrayDeque<>();
+        changedDirectories.forEach(changed::add);
+        Set<String> visited = new HashSet<>();
+        Set<String> affected = new TreeSet<>();
+        while (!changed.isEmpty()) {
+            String directory = changed.remove();
+            if (visited.add(directory)) {
+                if (directories.contains(directory)) {
+                    affected.add(parentChart(directory, directories));
+                }
+                changed.addAll(dependents.getOrDefault(directory, emptySet()));
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * @param dependents
+     *            the directories depending on a directory
+     */
+    static Set<String> dependencies(String directory, Map<String, Set<String>> dependents) {
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(directory);
+        Set<String> dependencies = new TreeSet<>();
+        while (!pending.isEmpty()) {
+            String current = pending.remove();
+            for (Map.Entry<String, Set<String>> dependency : dependents.entrySet()) {
+                if (dependency.getValue().contains(current) && !dependency.getKey().equals(directory)
+                        && dependencies.add(dependency.getKey())) {
+                    pending.add(dependency.getKey());
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * @return the outermost chart which contains the directory as subchart (or the directory itself)
+     */
+    private static String parentChart(String directory, Set<String> directories) {
+        if (directory.startsWith(SUBCHARTS) && directories.contains(".")) {
+            return ".";
+        }
+        for (int index = directory.indexOf('/' + SUBCHARTS); index >= 0; index = directory.indexOf('/' + SUBCHARTS,
+                index + 1)) {
+            if (directories.contains(directory.substring(0, index))) {
+                return directory.substring(0, index);
+            }
+        }
+        return directory;
+    }
+
+    private Map<String, Set<String>> dependents(Repository repository, String branch, String commit) {
+        Map<AbstractTemplater, List<GitFile>> files = new LinkedHashMap<>();
+        for (AbstractTemplater templater : templaters) {
+            List<GitFile> templaterFiles = new ArrayList<>();
+            for (String directory : chartCatalog.directories(repository, branch, commit, templater)) {
+                for (String filename : templater.dependencyFilenames()) {
+                    String path = ".".equals(directory) ? filename : directory + "/" + filename;
+                    templaterFiles.add(new GitFile(commit + ":" + path, path));
+                }
+            }
+            files.put(templater, templaterFiles);
+        }
+        Map<String, Set<String>> dependents = new HashMap<>();
+        Path contentDir = null;
+        try {
+            contentDir = Files.createTempDirectory(storageService.getTempDir(), "dependencies-");
+            Path targetDir = contentDir;
+            List<GitFile> allFiles = new ArrayList<>();
+            files.values().forEach(allFiles::addAll);
+            CatFileBatchCommandHandler handler = new CatFileBatchCommandHandler(allFiles,
+                    file -> targetDir.resolve(file.getFilename()));
+            commandBuilderFactory.builder(repository).command("cat-file").argument("--batch").inputHandler(handler)
+                    .build(handler).call();
+            for (Map.Entry<AbstractTemplater, List<GitFile>> templaterFiles : files.entrySet()) {
+                for (GitFile file : templaterFiles.getValue()) {
+                    Path extracted = contentDir.resolve(file.getFilename());
+                    if (Files.isRegularFile(extracted)) {
+                        String directory = parent(file.getFilename());
+                        for (String dependency : templaterFiles.getKey().localDependencies(extracted)) {
+                            String resolved = resolve(directory, dependency);
+                            if (resolved != null && !resolved.equals(directory)) {
+                                dependents.computeIfAbsent(resolved, d -> new TreeSet<>()).add(directory);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("failed to index the dependencies of {} at {}", repository, commit, e);
+            return emptyMap();
+        } finally {
+            if (contentDir != null) {
+                MoreFiles.deleteQuietly(contentDir);
+            }
+        }
+        LOGGER.debug("dependents of {} at {}: {}", repository, commit, dependents);
+        return dependents;
+    }
+
+    private static String parent(String path) {
+        int separator = path.lastIndexOf('/');
+        return separator < 0 ? "." : path.substring(0, separator);
+    }
+
+    /**
+     * @return the path relative to the repository root (null if it is outside of the repository)
+     */
+    static String resolve(String directory, String relativePath) {
+        Path path = Paths.get(directory).resolve(relativePath).normalize();
+        if (path.isAbsolute() || path.startsWith("..")) {
+            return null;
+        }
+        String resolved = path.toString().replace('\\', '/');
+        return resolved.isEmpty() ? "." : resolved;
+    }
+}
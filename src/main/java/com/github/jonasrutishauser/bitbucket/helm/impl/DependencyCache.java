@@ -0,0 +1,126 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.server.StorageService;
+import com.atlassian.bitbucket.util.MoreFiles;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.github.jonasrutishauser.bitbucket.helm.impl.ChartDependencies.Dependency;
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+/**
+ * Node local store of the dependency archives built by <code>helm dependency build</code>. Entries are addressed by
+ * the digest of the lock file (and the content of local <code>file://</code> dependencies), so a chart with unchanged
+ * dependencies gets its <code>charts</code> directory populated without running helm.
+ */
+@Named
+public class DependencyCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DependencyCache.class);
+
+    private static final String FILE_REPOSITORY = "file://";
+
+    private final DirectoryCache cache;
+
+    @Inject
+    public DependencyCache(HelmConfiguration configuration, @ComponentImport StorageService storageService) {
+        this(configuration, MoreFiles.resolve(storageService.getCacheDir(), "helm-pr", "dependencies"));
+    }
+
+    DependencyCache(HelmConfiguration configuration, Path directory) {
+        this.cache = new DirectoryCache(directory, () -> configuration.getDependencyCacheSize() * 1024 * 1024);
+    }
+
+    /**
+     * @return the key of the dependencies of the chart (empty if the chart has no lock file)
+     */
+    public Optional<String> key(Path chartDir) throws IOException {
+        Optional<Path> lock = ChartDependencies.lockFile(chartDir);
+        if (!cache.isEnabled() || !lock.isPresent()) {
+            return Optional.empty();
+        }
+        List<String> parts = new ArrayList<>();
+        parts.add(new String(Files.readAllBytes(lock.get()), UTF_8));
+        for (Dependency dependency : ChartDependencies.read(lock.get())) {
+            String repository = dependency.getRepository();
+            if (repository != null && repository.startsWith(FILE_REPOSITORY)) {
+                Path localChart = chartDir.resolve(repository.substring(FILE_REPOSITORY.length())).normalize();
+                if (Files.isDirectory(localChart)) {
+                    addContent(localChart, parts);
+                }
+            }
+        }
+        return Optional.of(DirectoryCache.key(parts));
+    }
+
+    /**
+     * Copies the cached archives into the <code>charts</code> directory of the chart.
+     *
+     * @return false if there is no entry for the key
+     */
+    public boolean restore(String key, Path chartDir) throws IOException {
+        Path chartsDir = chartDir.resolve("charts");
+        return cache.replay(key, entry -> {
+            try (Stream<Path> archives = Files.list(entry)) {
+                for (Path archive : (Iterable<Path>) archives::iterator) {
+                    MoreFiles.mkdir(chartsDir);
+                    Path target = chartsDir.resolve(archive.getFileName().toString());
+                    Files.deleteIfExists(target);
+                    try {
+                        // the entry must not be modified, but helm only reads the archive
+                        Files.createLink(target, archive);
+                    } catch (IOException | UnsupportedOperationException e) {
+                        Files.copy(archive, target);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stores the archives of all locked dependencies from the <code>charts</code> directory of the chart.
+     *
+     * @param stagingDir
+     *            an empty directory to collect the archives in
+     */
+    public void store(String key, Path chartDir, Path stagingDir) throws IOException {
+        Optional<Path> lock = ChartDependencies.lockFile(chartDir);
+        if (!lock.isPresent()) {
+            return;
+        }
+        MoreFiles.mkdir(stagingDir);
+        for (Dependency dependency : ChartDependencies.read(lock.get())) {
+            String archive = dependency.getName() + "-" + dependency.getVersion() + ".tgz";
+            Path source = chartDir.resolve("charts").resolve(archive);
+            if (!Files.isRegularFile(source)) {
+                LOGGER.debug("{} not built in {}, will not cache dependencies", archive, chartDir);
+                return;
+            }
+            Files.copy(source, stagingDir.resolve(archive));
+        }
+        cache.store(key, stagingDir);
+    }
+
+    private static void addContent(Path directory, List<String> parts) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                parts.add(directory.relativize(file).toString());
+                parts.add(DirectoryCache.digest(file));
+            }
+        }
+    }
+}
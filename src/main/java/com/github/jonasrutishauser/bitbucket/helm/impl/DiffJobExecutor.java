@@ -0,0 +1,139 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+/**
+ * Bulkhead for the diff jobs. The jobs of the render queue are rendered by threads owned by the plugin, never by the
+ * threads of the Atlassian scheduler. There are at most as many threads as the node limit of the queue allows, all
+ * further jobs stay in the (cluster wide) queue until a thread is free. The queue is polled periodically, so jobs
+ * added on other nodes are picked up as well.
+ */
+@Named
+public class DiffJobExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiffJobExecutor.class);
+
+    private static final int MAX_THREADS = 64;
+    private static final long POLL_INTERVAL_SECONDS = 10;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final HelmConfiguration configuration;
+    private final RenderQueue renderQueue;
+    private final AtomicInteger workers = new AtomicInteger();
+    private volatile ThreadPoolExecutor executor;
+    private ScheduledExecutorService poller;
+    private Consumer<RenderQueue.Entry> renderer;
+
+    @Inject
+    public DiffJobExecutor(HelmConfiguration configuration, RenderQueue renderQueue) {
+        this.configuration = configuration;
+        this.renderQueue = renderQueue;
+    }
+
+    public synchronized void start(Consumer<RenderQueue.Entry> renderer) {
+        this.renderer = renderer;
+        poller = Executors.newSingleThreadScheduledExecutor(threadFactory("helm-pr-queue-poller"));
+        executor = new ThreadPoolExecutor(0, MAX_THREADS, 60, SECONDS, new SynchronousQueue<>(),
+                threadFactory("helm-pr-diff-job"));
+        poller.scheduleWithFixedDelay(this::dispatch, POLL_INTERVAL_SECONDS, POLL_INTERVAL_SECONDS, SECONDS);
+    }
+
+    /**
+     * Stops the running jobs, the jobs claimed by this node are waiting in the queue again.
+     */
+    public synchronized void shutdown() {
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            return;
+        }
+        executor = null;
+        poller.shutdownNow();
+        current.shutdownNow();
+        try {
+            if (!current.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, SECONDS)) {
+                LOGGER.warn("diff jobs did not stop within {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        renderQueue.release();
+    }
+
+    /**
+     * Starts another worker if this node has a free thread (it returns immediately).
+     */
+    public void dispatch() {
+        ThreadPoolExecutor current = executor;
+        int running = workers.get();
+        if (current == null || running >= Math.min(configuration.getQueueNodeLimit(), MAX_THREADS)
+                || !workers.compareAndSet(running, running + 1)) {
+            return;
+        }
+        try {
+            current.execute(this::work);
+        } catch (RejectedExecutionException e) {
+            workers.decrementAndGet();
+        }
+    }
+
+    private void work() {
+        try {
+            Optional<RenderQueue.Entry> entry = renderQueue.claim();
+            if (entry.isPresent()) {
+                // there may be more jobs for further threads
+                dispatch();
+            }
+            while (entry.isPresent() && !Thread.currentThread().isInterrupted()) {
+                RenderQueue.Entry current = entry.get();
+                boolean rendered = false;
+                try {
+                    renderer.accept(current);
+                    rendered = true;
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to render diff of {}", current.getKey(), e);
+                    rendered = true;
+                } finally {
+                    if (!rendered) {
+                        // an error (e.g. out of memory) must not keep the job claimed by this node forever
+                        renderQueue.complete(current);
+                    }
+                }
+                if (Thread.currentThread().isInterrupted() || executor == null) {
+                    // the render was stopped, the job stays claimed to be released by the shutdown
+                    break;
+                }
+                entry = renderQueue.completeAndClaim(current);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to process render queue", e);
+        } finally {
+            workers.decrementAndGet();
+        }
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
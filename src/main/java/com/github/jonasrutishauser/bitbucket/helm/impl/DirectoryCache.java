@@ -0,0 +1,221 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.io.IoConsumer;
+import com.atlassian.bitbucket.util.MoreFiles;
+
+/**
+ * Node local store of directories addressed by a key. Entries are evicted in least recently used order once the
+ * maximum size is exceeded.
+ */
+class DirectoryCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryCache.class);
+
+    private static final String TEMP_PREFIX = "tmp-";
+
+    private final Path directory;
+    private final LongSupplier maxSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<String, Long> entries;
+    private long size;
+
+    /**
+     * @param maxSize
+     *            supplies the maximum size in bytes (0 disables the cache)
+     */
+    DirectoryCache(Path directory, LongSupplier maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public boolean isEnabled() {
+        return getMaxSize() > 0;
+    }
+
+    public static String key(List<String> parts) {
+        MessageDigest digest = sha256();
+        for (String part : parts) {
+            digest.update(part.getBytes(UTF_8));
+            digest.update((byte) 0);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Passes the cached directory to the consumer (the directory must not be modified).
+     *
+     * @return false if there is no entry for the key
+     */
+    public boolean replay(String key, IoConsumer<Path> consumer) throws IOException {
+        if (!isEnabled()) {
+            return false;
+        }
+        lock.readLock().lock();
+        try {
+            Path entry = directory.resolve(key);
+            synchronized (this) {
+                if (entries().get(key) == null) {
+                    return false;
+                }
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            consumer.accept(entry);
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void store(String key, Path rendered) {
+        long maxSize = getMaxSize();
+        if (maxSize <= 0) {
+            return;
+        }
+        Path tempEntry = directory.resolve(TEMP_PREFIX + key + "-" + Thread.currentThread().getId());
+        try {
+            synchronized (this) {
+                if (entries().containsKey(key)) {
+                    return;
+                }
+            }
+            MoreFiles.deleteQuietly(tempEntry);
+            long entrySize = copy(rendered, tempEntry);
+            if (entrySize > maxSize) {
+                LOGGER.debug("{} bytes exceed the size of the cache in {}", entrySize, directory);
+                return;
+            }
+            lock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    if (entries().containsKey(key)) {
+                        return;
+                    }
+                    Files.move(tempEntry, directory.resolve(key));
+                    entries().put(key, entrySize);
+                    size += entrySize;
+                    evict(maxSize);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("failed to store entry in cache " + directory, e);
+        } finally {
+            MoreFiles.deleteQuietly(tempEntry);
+        }
+    }
+
+    private void evict(long maxSize) {
+        Iterator<Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Entry<String, Long> eldest = iterator.next();
+            MoreFiles.deleteQuietly(directory.resolve(eldest.getKey()));
+            size -= eldest.getValue();
+            iterator.remove();
+            LOGGER.debug("evicted {} from cache {}", eldest.getKey(), directory);
+        }
+    }
+
+    private Map<String, Long> entries() throws IOException {
+        if (entries == null) {
+            MoreFiles.mkdir(directory);
+            Map<String, Long> existing = new LinkedHashMap<>(16, 0.75f, true);
+            Map<Path, FileTime> lastAccess = new HashMap<>();
+            try (Stream<Path> children = Files.list(directory)) {
+                for (Path child : (Iterable<Path>) children::iterator) {
+                    if (child.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                        MoreFiles.deleteQuietly(child);
+                    } else {
+                        lastAccess.put(child, Files.getLastModifiedTime(child));
+                    }
+                }
+            }
+            for (Path child : (Iterable<Path>) lastAccess.keySet().stream()
+                    .sorted(Comparator.comparing(lastAccess::get))::iterator) {
+                long entrySize = size(child);
+                existing.put(child.getFileName().toString(), entrySize);
+                size += entrySize;
+            }
+            entries = existing;
+        }
+        return entries;
+    }
+
+    private long getMaxSize() {
+        return maxSize.getAsLong();
+    }
+
+    private static long copy(Path source, Path target) throws IOException {
+        long copied = 0;
+        MoreFiles.mkdir(target);
+        try (Stream<Path> files = Files.walk(source)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                Path targetFile = target.resolve(source.relativize(file).toString());
+                MoreFiles.mkdir(targetFile.getParent());
+                Files.copy(file, targetFile);
+                copied += Files.size(targetFile);
+            }
+        }
+        return copied;
+    }
+
+    private static long size(Path entry) throws IOException {
+        try (Stream<Path> files = Files.walk(entry)) {
+            long total = 0;
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                total += Files.size(file);
+            }
+            return total;
+        }
+    }
+
+    static String digest(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.Consumer;
+
+/**
+ * A set of directories (including all their ancestors) stored as a tree of path components. The root directory is
+ * always contained.
+ */
+class DirectoryTrie {
+    private final Map<String, DirectoryTrie> children = new HashMap<>();
+
+    /**
+     * Adds the directory given by the first <code>length</code> components (and all its ancestors).
+     */
+    public void add(String[] components, int length) {
+        DirectoryTrie node = this;
+        for (int i = 0; i < length; i++) {
+            node = node.children.computeIfAbsent(components[i], c -> new DirectoryTrie());
+        }
+    }
+
+    /**
+     * @param directory
+     *            the directory relative to the root (<code>"."</code> for the root itself)
+     */
+    public boolean contains(CharSequence directory) {
+        if (".".contentEquals(directory)) {
+            return true;
+        }
+        DirectoryTrie node = this;
+        int start = 0;
+        while (node != null && start <= directory.length()) {
+            int end = indexOf(directory, '/', start);
+            node = node.children.get(directory.subSequence(start, end).toString());
+            start = end + 1;
+        }
+        return node != null;
+    }
+
+    /**
+     * Calls the consumer for every directory (starting with <code>"."</code> for the root).
+     */
+    public void forEach(Consumer<String> consumer) {
+        consumer.accept(".");
+        forEach("", consumer);
+    }
+
+    private void forEach(String prefix, Consumer<String> consumer) {
+        for (Entry<String, DirectoryTrie> child : children.entrySet()) {
+            String path = prefix + child.getKey();
+            consumer.accept(path);
+            child.getValue().forEach(path + "/", consumer);
+        }
+    }
+
+    private static int indexOf(CharSequence sequence, char c, int fromIndex) {
+        for (int i = fromIndex; i < sequence.length(); i++) {
+            if (sequence.charAt(i) == c) {
+                return i;
+            }
+        }
+        return sequence.length();
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.scm.git.worktree.GitWorkTree;
+
+/**
+ * The directories extracted by a diff job. A directory which is rendered by several templaters is read from git only
+ * once, every render gets its own copy of it (a render may modify its directory).
+ */
+class Extraction {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Extraction.class);
+
+    private final GitWorkTree workTree;
+    private final Path extractedDir;
+    private final Map<String, Integer> uses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FutureTask<Path>> shared = new ConcurrentHashMap<>();
+    private final AtomicInteger extracted = new AtomicInteger();
+
+    /**
+     * @param extractedDir
+     *            where the directories used by several renders are kept (until the job completes)
+     */
+    Extraction(GitWorkTree workTree, Path extractedDir) {
+        this.workTree = workTree;
+        this.extractedDir = extractedDir;
+    }
+
+    /**
+     * Registers a render of the directory (before any directory is extracted).
+     */
+    void use(String commit, String directory) {
+        uses.merge(key(commit, directory), 1, Integer::sum);
+    }
+
+    /**
+     * Writes the files of the directory at the commit into the content directory.
+     */
+    void extract(String commit, String directory, Path contentDir) throws IOException {
+        String key = key(commit, directory);
+        if (uses.getOrDefault(key, 0) <= 1) {
+            extract(workTree, commit, directory, contentDir);
+            return;
+        }
+        FutureTask<Path> extraction = new FutureTask<>(() -> {
+            Path dir = extractedDir.resolve(Integer.toString(extracted.incrementAndGet()));
+            extract(workTree, commit, directory, dir);
+            return dir;
+        });
+        FutureTask<Path> existing = shared.putIfAbsent(key, extraction);
+        if (existing == null) {
+            extraction.run();
+        } else {
+            extraction = existing;
+        }
+        AbstractTemplater.copy(get(extraction), contentDir);
+    }
+
+    /**
+     * Extracts the files with 2 git processes (<code>ls-tree</code> and <code>cat-file --batch</code>).
+     */
+    static void extract(GitWorkTree workTree, String commit, String directory, Path contentDir) throws IOException {
+        long start = System.nanoTime();
+        List<GitFile> files = new ArrayList<>();
+        AbstractTemplater.lsTree(workTree, commit, directory, true)
+                .build(new LsTreeCommandOutputHandler(files::add)).call();
+        CancellationToken.current().check();
+        if (!files.isEmpty()) {
+            int prefixLength = ".".equals(directory) ? 0 : directory.length() + 1;
+            CatFileBatchCommandHandler handler = new CatFileBatchCommandHandler(files,
+                    file -> contentDir.resolve(file.getFilename().substring(prefixLength)));
+            workTree.builder().command("cat-file").argument("--batch").inputHandler(handler).build(handler).call();
+        }
+        Files.createDirectories(contentDir);
+        LOGGER.debug("extracted {} files of {} with 2 git processes (instead of {}) in {} ms", files.size(), directory,
+                files.size() + 1, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static Path get(FutureTask<Path> extraction) throws IOException {
+        try {
+            return extraction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for extraction", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static String key(String commit, String directory) {
+        return commit + ":" + directory;
+    }
+}
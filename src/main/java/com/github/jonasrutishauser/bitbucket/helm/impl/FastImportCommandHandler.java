@@ -0,0 +1,179 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+
+import javax.annotation.Nonnull;
+
+import com.atlassian.bitbucket.scm.CommandInputHandler;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.Watchdog;
+
+/**
+ * Writes the rendered files and the templated commits with a single <code>git fast-import</code> process, so all
+ * objects end up in one pack (instead of a <code>git add</code> per file writing loose objects).
+ */
+class FastImportCommandHandler implements CommandInputHandler, CommandOutputHandler<Void> {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String ref;
+    private final String ident;
+    private final List<Commit> commits;
+
+    /**
+     * @param ref
+     *            the ref to commit to (the first commit has no parent)
+     * @param ident
+     *            author and committer of the commits (see {@link #ident(String, String)})
+     */
+    public FastImportCommandHandler(String ref, String ident, List<Commit> commits) {
+        this.ref = ref;
+        this.ident = ident;
+        this.commits = commits;
+    }
+
+    public static String ident(String name, String email) {
+        return sanitize(name) + " <" + sanitize(email) + "> " + System.currentTimeMillis() / 1000 + " +0000";
+    }
+
+    /**
+     * @return the object id git assigns to the content of the file
+     */
+    public static String blobId(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(("blob " + Files.size(file) + "\0").getBytes(UTF_8));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder(40);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public void process(@Nonnull OutputStream input) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(input, BUFFER_SIZE)) {
+            Map<String, Integer> marks = new HashMap<>();
+            int mark = 0;
+            for (Commit commit : commits) {
+                for (Blob blob : commit.tree.values()) {
+                    if (blob.file != null && !marks.containsKey(blob.objectId)) {
+                        marks.put(blob.objectId, ++mark);
+                        write(out, "blob\nmark :" + mark + "\ndata " + Files.size(blob.file) + "\n");
+                        Files.copy(blob.file, out);
+                        write(out, "\n");
+                    }
+                }
+            }
+            String parent = null;
+            for (Commit commit : commits) {
+                byte[] message = commit.message.getBytes(UTF_8);
+                write(out, "commit " + ref + "\nmark :" + ++mark + "\n");
+                write(out, "author " + ident + "\ncommitter " + ident + "\n");
+                write(out, "data " + message.length + "\n");
+                out.write(message);
+                write(out, "\n");
+                if (parent != null) {
+                    write(out, "from " + parent + "\n");
+                }
+                write(out, "deleteall\n");
+                for (Entry<String, Blob> entry : commit.tree.entrySet()) {
+                    Blob blob = entry.getValue();
+                    String dataRef = blob.file == null ? blob.objectId : ":" + marks.get(blob.objectId);
+                    write(out, "M 100644 " + dataRef + " " + quote(entry.getKey()) + "\n");
+                }
+                write(out, "\n");
+                parent = ":" + mark;
+            }
+            write(out, "done\n");
+        }
+    }
+
+    @Override
+    public void process(@Nonnull InputStream output) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (output.read(buffer) >= 0) {
+            // ignore
+        }
+    }
+
+    @Override
+    public Void getOutput() {
+        return null;
+    }
+
+    @Override
+    public void setWatchdog(@Nonnull Watchdog watchdog) {
+        // ignore
+    }
+
+    private static void write(OutputStream out, String command) throws IOException {
+        out.write(command.getBytes(UTF_8));
+    }
+
+    private static String quote(String path) {
+        if (!path.startsWith("\"") && path.indexOf('\n') < 0) {
+            return path;
+        }
+        return '"' + path.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    private static String sanitize(String value) {
+        return value == null ? "" : value.replaceAll("[<>\n]", "");
+    }
+
+    static class Commit {
+        private final String message;
+        private final SortedMap<String, Blob> tree;
+
+        public Commit(String message, SortedMap<String, Blob> tree) {
+            this.message = message;
+            this.tree = tree;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    static class Blob {
+        private final String objectId;
+        private final Path file;
+
+        /**
+         * @param file
+         *            the content to write (null for an object which already exists)
+         */
+        public Blob(String objectId, Path file) {
+            this.objectId = objectId;
+            this.file = file;
+        }
+
+        public String getObjectId() {
+            return objectId;
+        }
+    }
+}
@@ -1,14 +1,15 @@
 package com.github.jonasrutishauser.bitbucket.helm.impl;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singleton;
+import static java.util.stream.Collectors.toList;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -24,30 +25,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.scm.git.GitWorkTreeBuilderFactory;
-import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
-import com.atlassian.bitbucket.scm.git.worktree.GitWorkTree;
 import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.util.MoreFiles;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.github.jonasrutishauser.bitbucket.helm.impl.ChartDependencies.Dependency;
 import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
-import com.ongres.process.FluentProcess;
-import com.ongres.process.FluentProcessBuilder;
-import com.ongres.process.Output;
-import com.ongres.process.ProcessException;
-import com.ongres.process.ProcessTimeoutException;
 
 @Named
 public class HelmTemplater extends AbstractTemplater {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HelmTemplater.class);
 
+    private static final String DEPENDENCY_BUILD_LOG = "dependency-build.log";
+    private static final String FILE_REPOSITORY = "file://";
+
+    private final DependencyCache dependencyCache;
+
     @Inject
-    public HelmTemplater(HelmConfiguration configuration,
-            @ComponentImport GitWorkTreeBuilderFactory workTreeBuilderFactory,
-            @ComponentImport GitCommandBuilderFactory commandBuilderFactory,
-            @ComponentImport StorageService storageService) {
-        super(configuration, workTreeBuilderFactory, commandBuilderFactory, storageService);
+    public HelmTemplater(HelmConfiguration configuration, @ComponentImport StorageService storageService,
+            RenderCache renderCache, RenderExecutor renderExecutor, DependencyCache dependencyCache) {
+        super(configuration, storageService, renderCache, renderExecutor);
+        this.dependencyCache = dependencyCache;
     }
 
     @Override
@@ -60,6 +58,20 @@ public class HelmTemplater extends AbstractTemplater {
         return singleton("Chart.yaml");
     }
 
+    @Override
+    protected Collection<String> dependencyFilenames() {
+        return asList("Chart.yaml", "requirements.yaml");
+    }
+
+    @Override
+    protected Collection<String> localDependencies(Path file) throws IOException {
+        return ChartDependencies.read(file).stream() //
+                .map(Dependency::getRepository) //
+                .filter(repository -> repository != null && repository.startsWith(FILE_REPOSITORY)) //
+                .map(repository -> repository.substring(FILE_REPOSITORY.length())) //
+                .collect(toList());
+    }
+
     @Override
     protected Iterable<String> additionalConfigurations(Repository repository, Path chartDir) throws IOException {
         Path testValuesDirectory = chartDir.resolve(configuration.getTestValuesDirectory(repository));
@@ -75,78 +87,87 @@ public class HelmTemplater extends AbstractTemplater {
     }
 
     @Override
-    protected void templateSingleFile(Repository repository, Path chartDir, GitWorkTree targetWorktree, Path targetFile,
-            Path cacheDir, Optional<String> testValueFile) throws IOException {
-        StringJoiner error = new StringJoiner(System.lineSeparator());
-        try (Stream<String> stdErrStream = FluentProcess
-                .builder(configuration.getHelmBinary(), "dependency", "build", chartDir.toString()) //
-                .environment(getHelmEnvironment(repository, cacheDir)) //
-                .noStdout() //
-                .start() //
-                .withTimeout(Duration.ofMillis(configuration.getExecutionTimeout())) //
-                .streamStderr()) {
-            stdErrStream.forEach(error::add);
-        } catch (ProcessException e) {
-            LOGGER.warn("helm dependency build exited with {}: {}", e.getExitCode(), error.toString());
+    protected Collection<String> binaries() {
+        return singleton(configuration.getHelmBinary());
+    }
+
+    @Override
+    protected void prepare(Repository repository, Path chartDir, Path cacheDir) throws IOException {
+        // writes the default values shared by the renders of all test values
+        getValues(repository, chartDir, cacheDir, Optional.empty());
+        if (ChartDependencies.isBuilt(chartDir)) {
+            LOGGER.debug("dependencies of {} are already built", chartDir);
+            return;
         }
-        Output output = helmProcessBuilder(chartDir, getValues(repository, chartDir, cacheDir, testValueFile)) //
-                .environment(getHelmEnvironment(repository, cacheDir)) //
-                .start() //
-                .withTimeout(Duration.ofMillis(configuration.getExecutionTimeout())) //
-                .tryGet();
-        output.error().ifPresent(error::add);
-        if (output.exception().isPresent() || (!output.output().isPresent() && error.length() > 0)) {
-            output.exception().filter(ProcessTimeoutException.class::isInstance)
-                    .map(ProcessTimeoutException.class::cast)
-                    .ifPresent(exception -> error.add("timeout after " + exception.getTimeout()));
-            writeContent(targetWorktree, targetFile, error.toString());
-        } else {
-            writeContent(targetWorktree, targetFile, output.output().orElse(""));
+        Optional<String> dependencyKey = dependencyCache.key(chartDir);
+        if (dependencyKey.isPresent() && dependencyCache.restore(dependencyKey.get(), chartDir)) {
+            LOGGER.debug("restored dependencies of {} from cache", chartDir);
+            return;
+        }
+        RenderProcess.Result result = run(new RenderProcess(
+                asList(configuration.getHelmBinary(), "dependency", "build", chartDir.toString()),
+                getHelmEnvironment(repository, cacheDir), null));
+        String log = errorMessage(result, "");
+        if (!result.isSuccessful()) {
+            LOGGER.warn("helm dependency build exited with {}: {}", result.getExitCode(), log);
+        }
+        MoreFiles.write(cacheDir.resolve(DEPENDENCY_BUILD_LOG), log);
+        if (result.isSuccessful() && dependencyKey.isPresent()) {
+            dependencyCache.store(dependencyKey.get(), chartDir, cacheDir.resolve("dependencies"));
         }
     }
 
     @Override
-    protected void templateUseOutputDir(Repository repository, Path chartDir, GitWorkTree targetWorktree,
-            Path targetFolder, Path outputDir, Path cacheDir, Optional<String> testValueFile) throws IOException {
-        StringJoiner stdErr = new StringJoiner(System.lineSeparator());
-        try (Stream<String> stdErrStream = FluentProcess
-                .builder(configuration.getHelmBinary(), "dependency", "build", chartDir.toString()) //
-                .environment(getHelmEnvironment(repository, cacheDir)) //
-                .noStdout() //
-                .start() //
-                .withTimeout(Duration.ofMillis(configuration.getExecutionTimeout())) //
-                .streamStderr()) {
-            stdErrStream.forEach(stdErr::add);
-        } catch (ProcessException e) {
-            LOGGER.warn("helm dependency build exited with {}: {}", e.getExitCode(), stdErr.toString());
+    protected boolean templateSingleFile(Repository repository, Path chartDir, Path targetFile, Path cacheDir,
+            Optional<String> testValueFile) throws IOException {
+        StringJoiner error = new StringJoiner(System.lineSeparator());
+        addDependencyBuildLog(cacheDir, error);
+        List<String> command = helmCommand(chartDir, getValues(repository, chartDir, cacheDir, testValueFile));
+        return renderToFile(new RenderProcess(command, getHelmEnvironment(repository, cacheDir), null), targetFile,
+                error.toString());
+    }
+
+    @Override
+    protected boolean templateUseOutputDir(Repository repository, Path chartDir, Path targetFolder, Path outputDir,
+            Path cacheDir, Optional<String> testValueFile) throws IOException {
+        StringJoiner error = new StringJoiner(System.lineSeparator());
+        addDependencyBuildLog(cacheDir, error);
+        List<String> command = helmCommand(chartDir, getValues(repository, chartDir, cacheDir, testValueFile),
+                "--output-dir", outputDir.toString());
+        RenderProcess.Result result = run(
+                new RenderProcess(command, getHelmEnvironment(repository, cacheDir), null));
+        boolean successful = result.isSuccessful();
+        if (!successful) {
+            writeContent(targetFolder.resolve("error.txt"), errorMessage(result, error.toString()));
         }
-        try (Stream<String> stdErrStream = helmProcessBuilder(chartDir, getValues(repository, chartDir, cacheDir, testValueFile), "--output-dir",
-                outputDir.toString()) //
-                        .environment(getHelmEnvironment(repository, cacheDir)) //
-                        .noStdout() //
-                        .start() //
-                        .withTimeout(Duration.ofMillis(configuration.getExecutionTimeout())) //
-                        .streamStderr()) {
-            stdErrStream.forEach(stdErr::add);
-        } catch (ProcessTimeoutException e) {
-            writeContent(targetWorktree, targetFolder.resolve("error.txt"), "timeout after " + e.getTimeout());
-        } catch (ProcessException e) {
-            writeContent(targetWorktree, targetFolder.resolve("error.txt"), stdErr.toString());
+        try (Stream<Path> files = Files.walk(outputDir)) {
+            for (Path path : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                Path relativePath = outputDir.relativize(path);
+                Path targetPath = targetFolder.resolve(relativePath.subpath(1, relativePath.getNameCount()).toString());
+                MoreFiles.mkdir(targetPath.getParent());
+                Files.move(path, targetPath, REPLACE_EXISTING);
+            }
         }
-        for (Path path : (Iterable<Path>) Files.walk(outputDir).filter(Files::isRegularFile)::iterator) {
-            Path relativePath = outputDir.relativize(path);
-            relativePath = relativePath.subpath(1, relativePath.getNameCount());
-            String targetPath = targetFolder.resolve(relativePath).toString();
-            targetWorktree.mkdir(targetFolder.resolve(relativePath).getParent().toString());
-            targetWorktree.writeFrom(targetPath, UTF_8, () -> Files.newBufferedReader(path, UTF_8));
-            targetWorktree.builder().add().path(targetPath).build().call();
+        return successful;
+    }
+
+    @Override
+    protected boolean templateBoth(Repository repository, Path chartDir, Path targetFolder, Path targetFile,
+            Path outputDir, Path cacheDir, Optional<String> testValueFile) throws IOException {
+        if (!templateSingleFile(repository, chartDir, targetFile, cacheDir, testValueFile)) {
+            copyContent(targetFile, targetFolder.resolve("error.txt"));
+            return false;
         }
+        // --output-dir writes the same manifests to the files named by their source (without the chart name)
+        splitBySource(targetFile, targetFolder, 1);
+        return true;
     }
 
-    private void writeContent(GitWorkTree targetWorkTree, Path targetFile, String content) throws IOException {
-        targetWorkTree.mkdir(targetFile.getParent().toString());
-        targetWorkTree.write(targetFile.toString(), UTF_8, writer -> writer.write(content));
-        targetWorkTree.builder().add().path(targetFile.toString()).build().call();
+    private static void addDependencyBuildLog(Path cacheDir, StringJoiner error) throws IOException {
+        Path log = cacheDir.resolve(DEPENDENCY_BUILD_LOG);
+        if (Files.isRegularFile(log) && Files.size(log) > 0) {
+            error.add(Files.readString(log));
+        }
     }
 
     private List<Path> getValues(Repository repository, Path chartDir, Path cacheDir, Optional<String> testValueFile)
@@ -169,21 +190,18 @@ public class HelmTemplater extends AbstractTemplater {
         return env;
     }
 
-    private FluentProcessBuilder helmProcessBuilder(Path chartDir, List<Path> values, String... additionalArgs) {
-        FluentProcessBuilder processBuilder = FluentProcess.builder( //
+    private List<String> helmCommand(Path chartDir, List<Path> values, String... additionalArgs) {
+        List<String> command = new ArrayList<>(asList( //
                 configuration.getHelmBinary(), //
                 "template", //
                 "release-name", //
                 chartDir.toString(), //
-                "--include-crds");
+                "--include-crds"));
         for (Path file : values) {
-            processBuilder = processBuilder //
-                    .arg("--values") //
-                    .arg(file.toString());
-        }
-        for (String additionalArg : additionalArgs) {
-            processBuilder = processBuilder.arg(additionalArg);
+            command.add("--values");
+            command.add(file.toString());
         }
-        return processBuilder.dontCloseAfterLast();
+        command.addAll(asList(additionalArgs));
+        return command;
     }
 }
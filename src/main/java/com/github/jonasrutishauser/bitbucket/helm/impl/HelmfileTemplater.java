@@ -13,44 +13,39 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.Duration;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.StringJoiner;
-import java.util.stream.Collectors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import com.atlassian.bitbucket.repository.Repository;
-import com.atlassian.bitbucket.scm.git.GitWorkTreeBuilderFactory;
-import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
-import com.atlassian.bitbucket.scm.git.worktree.GitWorkTree;
 import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.util.MoreFiles;
 import com.atlassian.bitbucket.util.SetFilePermissionRequest;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
-import com.ongres.process.FluentProcess;
-import com.ongres.process.FluentProcessBuilder;
-import com.ongres.process.Output;
-import com.ongres.process.ProcessException;
-import com.ongres.process.ProcessTimeoutException;
 
 @Named
 public class HelmfileTemplater extends AbstractTemplater {
 
     private static final Collection<String> MARKER_FILENAMES = asList("helmfile.yaml", "helmfile.yaml.gotmpl");
+    private static final Pattern LOCAL_CHART = Pattern
+            .compile("\\s*(?:-\\s+)?chart:\\s*[\"']?(\\.\\.?(?:/[^\"'\\s#]*)?)[\"']?\\s*(?:#.*)?");
+    private static final Pattern WROTE = Pattern.compile("wrote (.+)");
 
     @Inject
-    public HelmfileTemplater(HelmConfiguration configuration,
-            @ComponentImport GitWorkTreeBuilderFactory workTreeBuilderFactory,
-            @ComponentImport GitCommandBuilderFactory commandBuilderFactory,
-            @ComponentImport StorageService storageService) {
-        super(configuration, workTreeBuilderFactory, commandBuilderFactory, storageService);
+    public HelmfileTemplater(HelmConfiguration configuration, @ComponentImport StorageService storageService,
+            RenderCache renderCache, RenderExecutor renderExecutor) {
+        super(configuration, storageService, renderCache, renderExecutor);
     }
 
     @Override
@@ -63,6 +58,18 @@ public class HelmfileTemplater extends AbstractTemplater {
         return MARKER_FILENAMES;
     }
 
+    @Override
+    protected Collection<String> localDependencies(Path file) throws IOException {
+        Collection<String> charts = new ArrayList<>();
+        for (String line : Files.readAllLines(file, UTF_8)) {
+            Matcher matcher = LOCAL_CHART.matcher(line);
+            if (matcher.matches()) {
+                charts.add(matcher.group(1));
+            }
+        }
+        return charts;
+    }
+
     @Override
     protected Iterable<String> additionalConfigurations(Repository repository, Path directory) throws IOException {
         return stream(configuration.getHelmfileEnvironments(repository).split("\n")).map(String::trim)
@@ -70,59 +77,104 @@ public class HelmfileTemplater extends AbstractTemplater {
     }
 
     @Override
-    protected void templateSingleFile(Repository repository, Path directory, GitWorkTree targetWorkTree,
-            Path targetFile, Path cacheDir, Optional<String> additionalConfiguration) throws IOException {
-        Output output = helmfileProcessBuilder(directory, additionalConfiguration.orElse("default")) //
-                .environment(getHelmfileEnvironment(repository, cacheDir)) //
-                .start() //
-                .withTimeout(Duration.ofMillis(configuration.getExecutionTimeout())) //
-                .tryGet();
-        if (output.exception().isPresent() || (!output.output().isPresent() && output.error().isPresent())) {
-            StringJoiner content = new StringJoiner(System.lineSeparator());
-            output.error().ifPresent(content::add);
-            output.exception().filter(ProcessTimeoutException.class::isInstance)
-                    .map(ProcessTimeoutException.class::cast)
-                    .ifPresent(exception -> content.add("timeout after " + exception.getTimeout()));
-            writeContent(targetWorkTree, targetFile, content.toString());
-        } else {
-            writeContent(targetWorkTree, targetFile, output.output().orElse(""));
+    protected Collection<String> binaries() {
+        return asList(configuration.getHelmfileBinary(), configuration.getHelmBinary(),
+                configuration.getKustomizeBinary());
+    }
+
+    @Override
+    protected boolean templateSingleFile(Repository repository, Path directory, Path targetFile, Path cacheDir,
+            Optional<String> additionalConfiguration) throws IOException {
+        return renderToFile(new RenderProcess(helmfileCommand(additionalConfiguration.orElse("default")),
+                getHelmfileEnvironment(repository, cacheDir), directory), targetFile, "");
+    }
+
+    @Override
+    protected boolean templateUseOutputDir(Repository repository, Path directory, Path targetFolder, Path outputDir,
+            Path cacheDir, Optional<String> additionalConfiguration) throws IOException {
+        return templateUseOutputDir(repository, directory, targetFolder, outputDir, cacheDir, additionalConfiguration,
+                null);
+    }
+
+    private boolean templateUseOutputDir(Repository repository, Path directory, Path targetFolder, Path outputDir,
+            Path cacheDir, Optional<String> additionalConfiguration, Path logFile) throws IOException {
+        List<String> command = helmfileCommand(additionalConfiguration.orElse("default"), "--output-dir-template",
+                outputDir.toString() + "/{{ .Release.Name }}");
+        RenderProcess.Result result = run(
+                new RenderProcess(command, getHelmfileEnvironment(repository, cacheDir), directory), logFile);
+        boolean successful = result.isSuccessful();
+        if (!successful) {
+            writeContent(targetFolder.resolve("error.txt"), errorMessage(result, ""));
+        }
+        try (Stream<Path> files = Files.walk(outputDir)) {
+            for (Path path : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                Path targetPath = targetFolder.resolve(outputDir.relativize(path).toString());
+                MoreFiles.mkdir(targetPath.getParent());
+                Files.move(path, targetPath, REPLACE_EXISTING);
+            }
         }
+        return successful;
     }
 
     @Override
-    protected void templateUseOutputDir(Repository repository, Path directory, GitWorkTree targetWorkTree,
-            Path targetFolder, Path outputDir, Path cacheDir, Optional<String> additionalConfiguration)
-            throws IOException {
-        String stdErr = "";
-        try (Stream<String> stdErrStream = helmfileProcessBuilder(directory, additionalConfiguration.orElse("default"), "--output-dir-template",
-                    outputDir.toString() + "/{{ .Release.Name }}") //
-                            .environment(getHelmfileEnvironment(repository, cacheDir)) //
-                            .noStdout() //
-                            .start() //
-                            .withTimeout(Duration.ofMillis(configuration.getExecutionTimeout())) //
-                            .streamStderr()) {
-            stdErr = stdErrStream.collect(Collectors.joining(System.lineSeparator()));
-        } catch (ProcessTimeoutException e) {
-            writeContent(targetWorkTree, targetFolder.resolve("error.txt"), "timeout after " + e.getTimeout());
-        } catch (ProcessException e) {
-            writeContent(targetWorkTree, targetFolder.resolve("error.txt"), stdErr);
+    protected boolean templateBoth(Repository repository, Path directory, Path targetFolder, Path targetFile,
+            Path outputDir, Path cacheDir, Optional<String> additionalConfiguration) throws IOException {
+        // the release names are only available with --output-dir-template, the order of the manifests (as printed
+        // by helmfile template) is restored from the files helm reports to have written
+        if (!templateUseOutputDir(repository, directory, targetFolder, outputDir, cacheDir, additionalConfiguration,
+                targetFile)) {
+            copyContent(targetFolder.resolve("error.txt"), targetFile);
+            return false;
         }
-        for (Path path : (Iterable<Path>) Files.walk(outputDir).filter(Files::isRegularFile)::iterator) {
-            Path relativePath = outputDir.relativize(path);
-            String targetPath = targetFolder.resolve(relativePath).toString();
-            targetWorkTree.mkdir(targetFolder.resolve(relativePath).getParent().toString());
-            targetWorkTree.writeFrom(targetPath, UTF_8, () -> Files.newBufferedReader(path, UTF_8));
-            targetWorkTree.builder().add().path(targetPath).build().call();
+        concatenate(targetFolder, writtenFiles(targetFile, outputDir, targetFolder), targetFile);
+        return true;
+    }
+
+    /**
+     * @param logFile
+     *            the standard output of <code>helmfile template --output-dir-template</code>
+     * @return the files (moved from the output directory to the target folder) in the order helm wrote the manifests
+     *         to them
+     */
+    static List<Path> writtenFiles(Path logFile, Path outputDir, Path targetFolder) throws IOException {
+        List<Path> writtenFiles = new ArrayList<>();
+        if (Files.isRegularFile(logFile)) {
+            for (String line : Files.readAllLines(logFile)) {
+                Matcher matcher = WROTE.matcher(line);
+                if (matcher.matches()) {
+                    Path file = Paths.get(matcher.group(1)).normalize();
+                    if (file.startsWith(outputDir)) {
+                        writtenFiles.add(targetFolder.resolve(outputDir.relativize(file).toString()));
+                    }
+                }
+            }
         }
+        return writtenFiles;
     }
 
-    private void writeContent(GitWorkTree targetWorkTree, Path targetFile, String content) throws IOException {
-        targetWorkTree.mkdir(targetFile.getParent().toString());
-        targetWorkTree.write(targetFile.toString(), UTF_8, writer -> writer.write(content));
-        targetWorkTree.builder().add().path(targetFile.toString()).build().call();
+    @Override
+    protected void prepare(Repository repository, Path directory, Path cacheDir) throws IOException {
+        installSecretsPlugin(cacheDir);
+    }
+
+    @Override
+    protected boolean modifiesDirectory() {
+        // helmfile builds the dependencies of local charts
+        return true;
     }
 
     private Map<String, String> getHelmfileEnvironment(Repository repository, Path cacheDir) throws IOException {
+        installSecretsPlugin(cacheDir);
+        Map<String, String> env = new HashMap<>(configuration.getEnv(repository));
+        env.put("XDG_CACHE_HOME", cacheDir.resolve("helmfile-cache").toString());
+        env.put("HELMFILE_TEMPDIR", cacheDir.resolve("helmfile-temp").toString());
+        env.put("HELM_CACHE_HOME", cacheDir.resolve("helm-cache").toString());
+        env.put("HELM_CONFIG_HOME", cacheDir.resolve("helm-config").toString());
+        env.put("HELM_DATA_HOME", cacheDir.resolve("helm-data").toString());
+        return env;
+    }
+
+    private void installSecretsPlugin(Path cacheDir) throws IOException {
         Path secretsPluginDir = MoreFiles.resolve(cacheDir, "helm-data", "plugins", "secrets");
         if (!Files.isDirectory(secretsPluginDir)) {
             MoreFiles.mkdir(secretsPluginDir);
@@ -135,28 +187,18 @@ public class HelmfileTemplater extends AbstractTemplater {
                         .ownerPermission(EXECUTE).ownerPermission(READ).ownerPermission(WRITE).build());
             }
         }
-        Map<String, String> env = new HashMap<>(configuration.getEnv(repository));
-        env.put("XDG_CACHE_HOME", cacheDir.resolve("helmfile-cache").toString());
-        env.put("HELMFILE_TEMPDIR", cacheDir.resolve("helmfile-temp").toString());
-        env.put("HELM_CACHE_HOME", cacheDir.resolve("helm-cache").toString());
-        env.put("HELM_CONFIG_HOME", cacheDir.resolve("helm-config").toString());
-        env.put("HELM_DATA_HOME", cacheDir.resolve("helm-data").toString());
-        return env;
     }
 
-    private FluentProcessBuilder helmfileProcessBuilder(Path directory, String environment, String... additionalArgs) {
-        FluentProcessBuilder processBuilder = FluentProcess.builder( //
+    private List<String> helmfileCommand(String environment, String... additionalArgs) {
+        List<String> command = new ArrayList<>(asList( //
                 configuration.getHelmfileBinary(), //
                 "-b", configuration.getHelmBinary(), //
                 "-k", configuration.getKustomizeBinary(), //
                 "-e", environment, //
                 "-q", //
                 "template", //
-                "--include-crds") //
-                .workPath(directory);
-        for (String additionalArg : additionalArgs) {
-            processBuilder = processBuilder.arg(additionalArg);
-        }
-        return processBuilder.dontCloseAfterLast();
+                "--include-crds"));
+        command.addAll(asList(additionalArgs));
+        return command;
     }
 }
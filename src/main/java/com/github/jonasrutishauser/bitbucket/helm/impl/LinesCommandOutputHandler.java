@@ -7,6 +7,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.annotation.Nonnull;
@@ -15,8 +16,21 @@ import com.atlassian.bitbucket.scm.CommandOutputHandler;
 import com.atlassian.bitbucket.scm.Watchdog;
 
 class LinesCommandOutputHandler implements CommandOutputHandler<String[]> {
+    private final char separator;
     private List<String> lines;
 
+    public LinesCommandOutputHandler() {
+        this('\n');
+    }
+
+    /**
+     * @param separator
+     *            the line separator (e.g. <code>'\0'</code> for the output of <code>-z</code> commands)
+     */
+    public LinesCommandOutputHandler(char separator) {
+        this.separator = separator;
+    }
+
     @Override
     public @Nonnull String[] getOutput() {
         return lines.toArray(new String[lines.size()]);
@@ -25,7 +39,23 @@ class LinesCommandOutputHandler implements CommandOutputHandler<String[]> {
     @Override
     public void process(@Nonnull InputStream output) throws IOException {
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(output, UTF_8))) {
-            lines = reader.lines().collect(toList());
+            if (separator == '\n') {
+                lines = reader.lines().collect(toList());
+            } else {
+                lines = new ArrayList<>();
+                StringBuilder line = new StringBuilder();
+                for (int c = reader.read(); c >= 0; c = reader.read()) {
+                    if (c == separator) {
+                        lines.add(line.toString());
+                        line.setLength(0);
+                    } else {
+                        line.append((char) c);
+                    }
+                }
+                if (line.length() > 0) {
+                    lines.add(line.toString());
+                }
+            }
         }
     }
 
@@ -0,0 +1,245 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.OptionalDouble;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+/**
+ * Scales the number of concurrent renders of this node with the load of the host (the render processes share it with
+ * Bitbucket and git). The limit is halved as soon as the load average of the host, the CPU pressure of the cgroup of
+ * Bitbucket or the memory usage (of the host or the cgroup) is high, and raised by one while there is headroom again,
+ * but never exceeds the configured node parallelism. Without <code>/proc</code> (e.g. not on Linux) the configured
+ * node parallelism is used.
+ */
+@Named
+public class LoadGovernor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGovernor.class);
+
+    private static final long EVALUATION_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+    /**
+     * Load average per CPU from which on the limit is reduced.
+     */
+    static final double HIGH_LOAD = 0.9;
+    /**
+     * Load average per CPU up to which the limit is raised.
+     */
+    static final double LOW_LOAD = 0.7;
+    /**
+     * Share of the time in which tasks of the cgroup wait for a CPU (or of the periods in which the cgroup is
+     * throttled) from which on the limit is reduced.
+     */
+    static final double HIGH_PRESSURE = 0.25;
+    /**
+     * Share of the time in which tasks of the cgroup wait for a CPU up to which the limit is raised.
+     */
+    static final double LOW_PRESSURE = 0.1;
+    /**
+     * Available memory (of the host or the cgroup) from which on the limit is reduced.
+     */
+    static final long LOW_MEMORY = 512L * 1024 * 1024;
+
+    private final HelmConfiguration configuration;
+    private final Path proc;
+    private final Path cgroup;
+    private final LongSupplier nanoTime;
+    private int limit;
+    private long nextEvaluation;
+    private long[] lastThrottling;
+
+    @Inject
+    public LoadGovernor(HelmConfiguration configuration) {
+        this(configuration, Paths.get("/proc"), Paths.get("/sys/fs/cgroup"), System::nanoTime);
+    }
+
+    LoadGovernor(HelmConfiguration configuration, Path proc, Path cgroup, LongSupplier nanoTime) {
+        this.configuration = configuration;
+        this.proc = proc;
+        this.cgroup = cgroup;
+        this.nanoTime = nanoTime;
+        this.limit = configuration.getNodeParallelism();
+        this.nextEvaluation = nanoTime.getAsLong();
+    }
+
+    /**
+     * @return the number of renders which may currently run concurrently on this node (at least 1)
+     */
+    public synchronized int parallelism() {
+        int configured = Math.max(1, configuration.getNodeParallelism());
+        long now = nanoTime.getAsLong();
+        if (now - nextEvaluation >= 0) {
+            nextEvaluation = now + EVALUATION_INTERVAL;
+            limit = evaluate(Math.min(limit, configured), configured);
+        }
+        return Math.max(1, Math.min(limit, configured));
+    }
+
+    private int evaluate(int current, int configured) {
+        OptionalDouble load = loadPerCpu();
+        if (!load.isPresent()) {
+            return configured;
+        }
+        OptionalDouble pressure = cpuPressure();
+        OptionalLong memory = availableMemory();
+        boolean lowMemory = memory.isPresent() && memory.getAsLong() < LOW_MEMORY;
+        boolean highPressure = pressure.isPresent() && pressure.getAsDouble() >= HIGH_PRESSURE;
+        if (lowMemory || highPressure || load.getAsDouble() >= HIGH_LOAD) {
+            int reduced = Math.max(1, current / 2);
+            if (reduced < current) {
+                LOGGER.info(
+                        "high load ({} per cpu, cpu pressure {}, {} bytes available), reduce concurrent renders to {}",
+                        String.format("%.2f", load.getAsDouble()), String.format("%.2f", pressure.orElse(0)),
+                        memory.orElse(-1), reduced);
+            }
+            return reduced;
+        }
+        if (load.getAsDouble() <= LOW_LOAD && pressure.orElse(0) <= LOW_PRESSURE && current < configured) {
+            LOGGER.debug("load dropped to {} per cpu, raise concurrent renders to {}",
+                    String.format("%.2f", load.getAsDouble()), current + 1);
+            return current + 1;
+        }
+        return current;
+    }
+
+    /**
+     * @return the 1 minute load average of the host divided by the CPUs of the host (the load average is not
+     *         limited to the cgroup)
+     */
+    private OptionalDouble loadPerCpu() {
+        List<String> loadavg = read(proc.resolve("loadavg"));
+        if (loadavg.isEmpty()) {
+            return OptionalDouble.empty();
+        }
+        try {
+            double load = Double.parseDouble(loadavg.get(0).split("\\s+")[0]);
+            return OptionalDouble.of(load / hostCpus());
+        } catch (NumberFormatException e) {
+            LOGGER.debug("unknown format of {}", proc.resolve("loadavg"), e);
+            return OptionalDouble.empty();
+        }
+    }
+
+    /**
+     * @return the number of CPUs of the host (the containers see all of them in <code>/proc/stat</code>)
+     */
+    int hostCpus() {
+        int cpus = 0;
+        for (String line : read(proc.resolve("stat"))) {
+            if (line.startsWith("cpu") && line.length() > 3 && Character.isDigit(line.charAt(3))) {
+                cpus++;
+            }
+        }
+        return cpus > 0 ? cpus : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the share of the time in which tasks of the cgroup waited for a CPU during the last 10 seconds (cgroup
+     *         v2 pressure stall information), otherwise the share of the CPU periods in which the cgroup was throttled
+     *         since the last evaluation (cgroup v2 or v1)
+     */
+    OptionalDouble cpuPressure() {
+        for (String line : read(cgroup.resolve("cpu.pressure"))) {
+            if (line.startsWith("some ")) {
+                for (String field : line.split("\\s+")) {
+                    if (field.startsWith("avg10=")) {
+                        try {
+                            return OptionalDouble.of(Double.parseDouble(field.substring("avg10=".length())) / 100);
+                        } catch (NumberFormatException e) {
+                            LOGGER.debug("unknown format of {}", cgroup.resolve("cpu.pressure"), e);
+                        }
+                    }
+                }
+            }
+        }
+        List<String> cpuStat = read(cgroup.resolve("cpu.stat"));
+        if (cpuStat.isEmpty()) {
+            cpuStat = read(cgroup.resolve("cpu").resolve("cpu.stat"));
+        }
+        long[] throttling = {-1, -1};
+        for (String line : cpuStat) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 2 && "nr_periods".equals(parts[0])) {
+                throttling[0] = number(parts[1], 1).orElse(-1);
+            } else if (parts.length == 2 && "nr_throttled".equals(parts[0])) {
+                throttling[1] = number(parts[1], 1).orElse(-1);
+            }
+        }
+        if (throttling[0] < 0 || throttling[1] < 0) {
+            return OptionalDouble.empty();
+        }
+        long[] last = lastThrottling;
+        lastThrottling = throttling;
+        // without a quota there are no periods
+        if (last == null || throttling[0] <= last[0]) {
+            return OptionalDouble.empty();
+        }
+        return OptionalDouble.of((double) (throttling[1] - last[1]) / (throttling[0] - last[0]));
+    }
+
+    /**
+     * @return the memory available to Bitbucket in bytes (the less of the host and the cgroup)
+     */
+    OptionalLong availableMemory() {
+        OptionalLong available = OptionalLong.empty();
+        for (String line : read(proc.resolve("meminfo"))) {
+            if (line.startsWith("MemAvailable:")) {
+                available = number(line.substring("MemAvailable:".length()).replace("kB", "").trim(), 1024);
+            }
+        }
+        OptionalLong cgroupAvailable = cgroupAvailable(cgroup.resolve("memory.max"), cgroup.resolve("memory.current"));
+        if (!cgroupAvailable.isPresent()) {
+            cgroupAvailable = cgroupAvailable(cgroup.resolve("memory").resolve("memory.limit_in_bytes"),
+                    cgroup.resolve("memory").resolve("memory.usage_in_bytes"));
+        }
+        if (cgroupAvailable.isPresent()
+                && (!available.isPresent() || cgroupAvailable.getAsLong() < available.getAsLong())) {
+            return cgroupAvailable;
+        }
+        return available;
+    }
+
+    private OptionalLong cgroupAvailable(Path limitFile, Path usageFile) {
+        List<String> limitLines = read(limitFile);
+        List<String> usageLines = read(usageFile);
+        if (limitLines.isEmpty() || usageLines.isEmpty()) {
+            return OptionalLong.empty();
+        }
+        // "max" (or a huge number in v1) means there is no limit
+        OptionalLong memoryLimit = number(limitLines.get(0).trim(), 1);
+        OptionalLong usage = number(usageLines.get(0).trim(), 1);
+        if (!memoryLimit.isPresent() || !usage.isPresent() || memoryLimit.getAsLong() >= Long.MAX_VALUE / 2) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(Math.max(0, memoryLimit.getAsLong() - usage.getAsLong()));
+    }
+
+    private static OptionalLong number(String value, long unit) {
+        try {
+            return OptionalLong.of(Long.parseLong(value) * unit);
+        } catch (NumberFormatException e) {
+            return OptionalLong.empty();
+        }
+    }
+
+    private static List<String> read(Path file) {
+        try {
+            return Files.isReadable(file) ? Files.readAllLines(file) : List.of();
+        } catch (IOException e) {
+            LOGGER.debug("failed to read {}", file, e);
+            return List.of();
+        }
+    }
+}
@@ -1,36 +1,62 @@
 package com.github.jonasrutishauser.bitbucket.helm.impl;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.stream.Collectors.toList;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 import javax.annotation.Nonnull;
 
 import com.atlassian.bitbucket.scm.CommandOutputHandler;
 import com.atlassian.bitbucket.scm.Watchdog;
 
-public class LsTreeCommandOutputHandler implements CommandOutputHandler<List<GitFile>> {
-    private static final Pattern PATTERN = Pattern.compile(".*\\s([0-9a-f]+)\\t(.+)$");
+/**
+ * Parses the output of <code>git ls-tree -z</code> (<code>&lt;mode&gt; &lt;type&gt; &lt;object&gt;\t&lt;path&gt;\0</code>)
+ * and passes the entries to the consumer as they are read. Paths are taken verbatim, so they may contain tabs or
+ * characters git would quote without <code>-z</code>.
+ */
+public class LsTreeCommandOutputHandler implements CommandOutputHandler<Integer> {
+    private static final int BUFFER_SIZE = 64 * 1024;
 
-    private List<GitFile> files;
+    private final Consumer<GitFile> consumer;
+    private int entries;
+
+    public LsTreeCommandOutputHandler(Consumer<GitFile> consumer) {
+        this.consumer = consumer;
+    }
 
     @Override
     public void process(@Nonnull InputStream output) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(output, UTF_8))) {
-            files = reader.lines().map(this::toGitFile).collect(toList());
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] entry = new byte[256];
+        int length = 0;
+        for (int read = output.read(buffer); read >= 0; read = output.read(buffer)) {
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == 0) {
+                    accept(entry, length);
+                    length = 0;
+                } else {
+                    if (length == entry.length) {
+                        entry = Arrays.copyOf(entry, entry.length * 2);
+                    }
+                    entry[length++] = buffer[i];
+                }
+            }
+        }
+        if (length > 0) {
+            accept(entry, length);
         }
     }
 
+    /**
+     * @return the number of entries
+     */
     @Override
-    public List<GitFile> getOutput() {
-        return files;
+    public Integer getOutput() {
+        return entries;
     }
 
     @Override
@@ -38,9 +64,32 @@ public class LsTreeCommandOutputHandler implements CommandOutputHandler<List<Git
         // ignore
     }
 
-    private GitFile toGitFile(String line) {
-        Matcher matcher = PATTERN.matcher(line);
-        matcher.find();
-        return new GitFile(matcher.group(1), matcher.group(2));
+    private void accept(byte[] entry, int length) throws IOException {
+        int tab = indexOf(entry, (byte) '\t', 0, length);
+        int objectStart = lastIndexOf(entry, (byte) ' ', tab) + 1;
+        if (tab < 0 || objectStart <= 0) {
+            throw new IOException("unexpected ls-tree entry: " + new String(entry, 0, length, UTF_8));
+        }
+        entries++;
+        consumer.accept(new GitFile(new String(entry, objectStart, tab - objectStart, ISO_8859_1),
+                new String(entry, tab + 1, length - tab - 1, UTF_8)));
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte b, int before) {
+        for (int i = before - 1; i >= 0; i--) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
     }
 }
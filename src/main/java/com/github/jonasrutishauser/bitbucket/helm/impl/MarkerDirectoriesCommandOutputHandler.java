@@ -0,0 +1,76 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nonnull;
+
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.Watchdog;
+
+/**
+ * Collects the directories containing a marker file from the output of <code>git ls-tree -r --name-only -z</code>.
+ * Only directories contained in the candidates are kept (if there are any).
+ */
+class MarkerDirectoriesCommandOutputHandler implements CommandOutputHandler<Set<String>> {
+    private final DirectoryTrie candidates;
+    private final Collection<String> markerFilenames;
+    private final Set<String> directories = new TreeSet<>();
+
+    /**
+     * @param candidates
+     *            the directories to keep (null to keep all)
+     */
+    public MarkerDirectoriesCommandOutputHandler(DirectoryTrie candidates, Collection<String> markerFilenames) {
+        this.candidates = candidates;
+        this.markerFilenames = markerFilenames;
+    }
+
+    @Override
+    public @Nonnull Set<String> getOutput() {
+        return directories;
+    }
+
+    @Override
+    public void process(@Nonnull InputStream output) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(output, UTF_8))) {
+            StringBuilder path = new StringBuilder();
+            for (int c = reader.read(); c >= 0; c = reader.read()) {
+                if (c == '\0') {
+                    add(path);
+                    path.setLength(0);
+                } else {
+                    path.append((char) c);
+                }
+            }
+            add(path);
+        }
+    }
+
+    private void add(StringBuilder path) {
+        for (String markerFilename : markerFilenames) {
+            int directoryLength = path.length() - markerFilename.length() - 1;
+            if (directoryLength < -1 || (directoryLength >= 0 && path.charAt(directoryLength) != '/')
+                    || path.indexOf(markerFilename, directoryLength + 1) != directoryLength + 1) {
+                continue;
+            }
+            CharSequence directory = directoryLength < 0 ? "." : path.subSequence(0, directoryLength);
+            if (candidates == null || candidates.contains(directory)) {
+                directories.add(directory.toString());
+            }
+            return;
+        }
+    }
+
+    @Override
+    public void setWatchdog(@Nonnull Watchdog watchdog) {
+        // ignore
+    }
+}
@@ -1,59 +1,35 @@
 package com.github.jonasrutishauser.bitbucket.helm.impl;
 
-import static com.atlassian.bitbucket.content.ChangeType.DELETE;
-import static com.atlassian.bitbucket.content.ContentTreeNode.Type.FILE;
-import static com.atlassian.bitbucket.content.ContentTreeNode.Type.SUBMODULE;
-
-import java.io.IOException;
-import java.util.Collection;
-import java.util.List;
-import java.util.Set;
-import java.util.StringJoiner;
-import java.util.TreeSet;
-
-import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import javax.inject.Named;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.atlassian.bitbucket.content.AbstractChangeCallback;
-import com.atlassian.bitbucket.content.Change;
-import com.atlassian.bitbucket.content.ContentService;
-import com.atlassian.bitbucket.content.NoSuchPathException;
+import com.atlassian.bitbucket.event.pull.PullRequestCommentAddedEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestDeclinedEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestDeletedEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestMergedEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestOpenedEvent;
 import com.atlassian.bitbucket.event.pull.PullRequestRescopedEvent;
-import com.atlassian.bitbucket.pull.PullRequest;
-import com.atlassian.bitbucket.pull.PullRequestChangesRequest;
-import com.atlassian.bitbucket.pull.PullRequestService;
 import com.atlassian.event.api.EventListener;
-import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
-import com.atlassian.scheduler.SchedulerService;
-import com.atlassian.scheduler.SchedulerServiceException;
-import com.atlassian.scheduler.config.JobConfig;
 
+/**
+ * Keeps the event dispatch cheap: the changes are analysed by the {@link PrEventProcessor}.
+ */
 @Named
 public class PrEventListener {
-    private static final Logger LOGGER = LoggerFactory.getLogger(PrEventListener.class);
 
-    private final ContentService contentService;
-    private final PullRequestService prService;
-    private final SchedulerService scheduler;
-    private final List<AbstractTemplater> templaters;
+    /**
+     * Comment which requests a render with full fidelity (while the render queue is backlogged).
+     */
+    static final String FULL_RENDER_COMMAND = "/helm-pr full render";
+
+    private final AddDiffJobRunner addDiffJobRunner;
+    private final PrEventProcessor eventProcessor;
 
     @Inject
-    public PrEventListener(@ComponentImport ContentService contentService,
-            @ComponentImport PullRequestService prService, @ComponentImport SchedulerService scheduler,
-            List<AbstractTemplater> templaters) {
-        this.contentService = contentService;
-        this.prService = prService;
-        this.scheduler = scheduler;
-        this.templaters = templaters;
+    public PrEventListener(AddDiffJobRunner addDiffJobRunner, PrEventProcessor eventProcessor) {
+        this.addDiffJobRunner = addDiffJobRunner;
+        this.eventProcessor = eventProcessor;
     }
 
     @EventListener
@@ -66,6 +42,13 @@ public class PrEventListener {
         updateHelmDiff(event);
     }
 
+    @EventListener
+    public void onPrCommentAdded(PullRequestCommentAddedEvent event) {
+        if (FULL_RENDER_COMMAND.equalsIgnoreCase(event.getComment().getText().trim())) {
+            eventProcessor.submit(PrEventProcessor.WorkItem.fullRender(event.getPullRequest()));
+        }
+    }
+
     @EventListener
     public void onPrDeleted(PullRequestDeletedEvent event) {
         removeDiffReference(event);
@@ -82,70 +65,14 @@ public class PrEventListener {
     }
 
     private void updateHelmDiff(PullRequestEvent event) {
-        for (AbstractTemplater templater : templaters) {
-            if (templater.isActive(event.getPullRequest().getToRef().getRepository())) {
-                Set<String> directories = getAffectedDirectories(event.getPullRequest(), templater.markerFilenames());
-                if (!directories.isEmpty()) {
-                    LOGGER.debug("{} directories detected: {}", templater.toolName(), directories);
-                    try {
-                        scheduler.scheduleJobWithGeneratedId(JobConfig.forJobRunnerKey(AddDiffJobRunner.JOB_RUNNER_KEY)
-                                .withParameters(AddDiffJobRunner.getParameters(event, directories, templater)));
-                    } catch (SchedulerServiceException e) {
-                        LOGGER.warn("Failed to schedule diff generation", e);
-                    }
-                }
-            }
-        }
+        // a running job renders outdated commits
+        addDiffJobRunner.cancel(event.getPullRequest());
+        eventProcessor.submit(PrEventProcessor.WorkItem.updated(event.getPullRequest()));
     }
 
     private void removeDiffReference(PullRequestEvent event) {
-        for (AbstractTemplater templater : templaters) {
-            templater.removeReference(event.getPullRequest());
-        }
+        addDiffJobRunner.cancel(event.getPullRequest());
+        eventProcessor.submit(PrEventProcessor.WorkItem.closed(event.getPullRequest()));
     }
 
-    private Set<String> getAffectedDirectories(PullRequest pullRequest, Collection<String> filenamesToSearch) {
-        Set<String> chartDirs = new TreeSet<>();
-        chartDirs.add(".");
-        // get all changed directories
-        prService.streamChanges(new PullRequestChangesRequest.Builder(pullRequest).withComments(false).build(),
-                new AbstractChangeCallback() {
-                    @Override
-                    public boolean onChange(@Nonnull Change change) throws IOException {
-                        if (DELETE != change.getType() && SUBMODULE != change.getNodeType()) {
-                            int endIndex = change.getPath().getComponents().length;
-                            if (FILE == change.getNodeType()) {
-                                endIndex = endIndex - 1;
-                            }
-                            StringJoiner joiner = new StringJoiner("/");
-                            for (int i = 0; i < endIndex; i++) {
-                                joiner.add(change.getPath().getComponents()[i]);
-                                chartDirs.add(joiner.toString());
-                            }
-                        }
-                        return true;
-                    }
-                });
-        LOGGER.debug("candidate directories; {}", chartDirs);
-        // only keep directories which contain any filenamesToSearch
-        chartDirs.removeIf(dir -> !containsFile(pullRequest, dir, filenamesToSearch));
-        LOGGER.debug("chart directories: {}", chartDirs);
-        return chartDirs;
-    }
-
-    private boolean containsFile(PullRequest pullRequest, String dir, Collection<String> filenamesToSearch) {
-        for (String filenameToSearch : filenamesToSearch) {
-            String file = ".".equals(dir) ? filenameToSearch : dir + "/" + filenameToSearch;
-            try {
-                if (FILE == contentService.getType(pullRequest.getFromRef().getRepository(),
-                        pullRequest.getFromRef().getId(), file)) {
-                    return true;
-                }
-            } catch (NoSuchPathException e) {
-                // ignore
-            }
-        }
-        return false;
-    }
-    
 }
@@ -0,0 +1,264 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static com.atlassian.bitbucket.content.ChangeType.DELETE;
+import static com.atlassian.bitbucket.content.ContentTreeNode.Type.FILE;
+import static com.atlassian.bitbucket.content.ContentTreeNode.Type.SUBMODULE;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.content.AbstractChangeCallback;
+import com.atlassian.bitbucket.content.Change;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestChangesRequest;
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.scheduler.SchedulerService;
+import com.atlassian.scheduler.SchedulerServiceException;
+import com.atlassian.scheduler.config.JobConfig;
+import com.atlassian.scheduler.config.RunMode;
+import com.atlassian.scheduler.config.Schedule;
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+/**
+ * Background stage of the {@link PrEventListener}. The listener only submits a work item, the changes of the pull
+ * request are analysed (and the references of closed pull requests are removed) by a thread owned by the plugin.
+ * Work items of the same pull request which did not yet start are coalesced, only the latest one is processed.
+ * While the render queue is backlogged, the pull requests are rendered with reduced fidelity (unless a full render is
+ * requested).
+ */
+@Named
+public class PrEventProcessor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrEventProcessor.class);
+
+    private final HelmConfiguration configuration;
+    private final ChartDependencyIndex chartDependencyIndex;
+    private final PullRequestService prService;
+    private final RepositoryService repositoryService;
+    private final SchedulerService scheduler;
+    private final List<AbstractTemplater> templaters;
+    private final PluginUser pluginUser;
+    private final PullRequestTemplater pullRequestTemplater;
+    private final RenderHistory renderHistory;
+    private final RenderQueue renderQueue;
+    private final ConcurrentMap<String, WorkItem> pending = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    @Inject
+    public PrEventProcessor(HelmConfiguration configuration, ChartDependencyIndex chartDependencyIndex,
+            @ComponentImport PullRequestService prService, @ComponentImport RepositoryService repositoryService,
+            @ComponentImport SchedulerService scheduler, List<AbstractTemplater> templaters, PluginUser pluginUser,
+            PullRequestTemplater pullRequestTemplater, RenderHistory renderHistory, RenderQueue renderQueue) {
+        this.configuration = configuration;
+        this.chartDependencyIndex = chartDependencyIndex;
+        this.prService = prService;
+        this.repositoryService = repositoryService;
+        this.scheduler = scheduler;
+        this.templaters = templaters;
+        this.pluginUser = pluginUser;
+        this.pullRequestTemplater = pullRequestTemplater;
+        this.renderHistory = renderHistory;
+        this.renderQueue = renderQueue;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "helm-pr-event");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds the work item and returns immediately.
+     */
+    public void submit(WorkItem item) {
+        String key = item.getKey();
+        WorkItem previous = pending.putIfAbsent(key, item);
+        // a requested full render is kept when the work item is replaced
+        while (previous != null && !pending.replace(key, previous, item.coalesce(previous))) {
+            previous = pending.putIfAbsent(key, item);
+        }
+        if (previous == null) {
+            try {
+                executor.execute(() -> process(pending.remove(key)));
+            } catch (RejectedExecutionException e) {
+                pending.remove(key, item);
+                LOGGER.debug("event of pull request {} ignored while stopping", key);
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void process(WorkItem item) {
+        try {
+            if (item.closed) {
+                removeDiffReference(item);
+            } else {
+                updateHelmDiff(item);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to process event of pull request {}", item.getKey(), e);
+        }
+    }
+
+    private void updateHelmDiff(WorkItem item) {
+        PullRequest pullRequest = pluginUser.impersonating("get pr").withPermission(Permission.REPO_READ)
+                .call(() -> prService.getById(item.repositoryId, item.pullRequestId));
+        if (pullRequest == null || !pullRequest.isOpen() || !item.isLatest(pullRequest)) {
+            LOGGER.debug("skip outdated event of pull request {}", item.getKey());
+            return;
+        }
+        boolean degraded = !item.fullRender && renderQueue.isBacklogged();
+        if (degraded) {
+            LOGGER.info("render queue is backlogged, pull request {} is rendered with reduced fidelity",
+                    item.getKey());
+        }
+        // one job renders all tools
+        Map<String, Set<String>> directoriesByTool = new TreeMap<>();
+        for (AbstractTemplater templater : templaters) {
+            if (templater.isActive(pullRequest.getToRef().getRepository())) {
+                Set<String> directories = pluginUser.impersonating("analyse pr changes")
+                        .withPermission(pullRequest.getToRef().getRepository(), Permission.REPO_READ)
+                        .call(() -> getAffectedDirectories(pullRequest, templater, degraded));
+                if (!directories.isEmpty()) {
+                    LOGGER.debug("{} directories detected: {}", templater.toolName(), directories);
+                    directoriesByTool.put(templater.toolName(), directories);
+                }
+            }
+        }
+        if (!directoriesByTool.isEmpty()) {
+            schedule(pullRequest, directoriesByTool, degraded);
+        }
+    }
+
+    private void schedule(PullRequest pullRequest, Map<String, Set<String>> directories, boolean degraded) {
+        // replaces a job of this pull request which did not yet start, so bursts of pushes are rendered once
+        Date runTime = new Date(System.currentTimeMillis() + configuration.getQuietPeriod() * 1000);
+        int repositoryId = pullRequest.getToRef().getRepository().getId();
+        long estimatedDuration = renderHistory.estimate(repositoryId, directories);
+        LOGGER.debug("estimated duration of diff job: {} ms", estimatedDuration);
+        try {
+            scheduler.scheduleJob(AddDiffJobRunner.getJobId(repositoryId, pullRequest.getId()),
+                    JobConfig.forJobRunnerKey(AddDiffJobRunner.JOB_RUNNER_KEY)
+                            .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER).withSchedule(Schedule.runOnce(runTime))
+                            .withParameters(AddDiffJobRunner.getParameters(pullRequest, directories,
+                                    estimatedDuration, degraded)));
+        } catch (SchedulerServiceException e) {
+            LOGGER.warn("Failed to schedule diff generation", e);
+        }
+    }
+
+    private void removeDiffReference(WorkItem item) {
+        scheduler.unscheduleJob(AddDiffJobRunner.getJobId(item.repositoryId, item.pullRequestId));
+        renderQueue.remove(item.repositoryId, item.pullRequestId);
+        Repository repository = pluginUser.impersonating("get repository").withPermission(Permission.REPO_READ)
+                .call(() -> repositoryService.getById(item.repositoryId));
+        if (repository != null) {
+            pullRequestTemplater.removeReference(repository, item.pullRequestId);
+        }
+    }
+
+    private Set<String> getAffectedDirectories(PullRequest pullRequest, AbstractTemplater templater,
+            boolean directlyChanged) {
+        DirectoryTrie changedDirectories = new DirectoryTrie();
+        // get all changed directories
+        prService.streamChanges(new PullRequestChangesRequest.Builder(pullRequest).withComments(false).build(),
+                new AbstractChangeCallback() {
+                    @Override
+                    public boolean onChange(@Nonnull Change change) throws IOException {
+                        if (DELETE != change.getType() && SUBMODULE != change.getNodeType()) {
+                            String[] components = change.getPath().getComponents();
+                            changedDirectories.add(components,
+                                    FILE == change.getNodeType() ? components.length - 1 : components.length);
+                        }
+                        return true;
+                    }
+                });
+        // only keep directories which contain any marker file (or depend on such a directory)
+        Set<String> chartDirs = chartDependencyIndex.affectedDirectories(pullRequest.getFromRef().getRepository(),
+                pullRequest.getFromRef().getId(), pullRequest.getFromRef().getLatestCommit(), templater,
+                changedDirectories, directlyChanged);
+        LOGGER.debug("chart directories: {}", chartDirs);
+        return chartDirs;
+    }
+
+    /**
+     * What happened to a pull request: it got opened or rescoped (its latest commits are kept), a full render was
+     * requested, or it got closed.
+     */
+    public static class WorkItem {
+        private final int repositoryId;
+        private final long pullRequestId;
+        private final String fromCommit;
+        private final String toCommit;
+        private final boolean closed;
+        private final boolean fullRender;
+
+        private WorkItem(PullRequest pullRequest, boolean closed, boolean fullRender) {
+            this(pullRequest.getToRef().getRepository().getId(), pullRequest.getId(),
+                    pullRequest.getFromRef().getLatestCommit(), pullRequest.getToRef().getLatestCommit(), closed,
+                    fullRender);
+        }
+
+        private WorkItem(int repositoryId, long pullRequestId, String fromCommit, String toCommit, boolean closed,
+                boolean fullRender) {
+            this.repositoryId = repositoryId;
+            this.pullRequestId = pullRequestId;
+            this.fromCommit = fromCommit;
+            this.toCommit = toCommit;
+            this.closed = closed;
+            this.fullRender = fullRender;
+        }
+
+        public static WorkItem updated(PullRequest pullRequest) {
+            return new WorkItem(pullRequest, false, false);
+        }
+
+        /**
+         * The pull request is rendered with full fidelity even if the render queue is backlogged.
+         */
+        public static WorkItem fullRender(PullRequest pullRequest) {
+            return new WorkItem(pullRequest, false, true);
+        }
+
+        public static WorkItem closed(PullRequest pullRequest) {
+            return new WorkItem(pullRequest, true, false);
+        }
+
+        WorkItem coalesce(WorkItem previous) {
+            if (closed || fullRender || !previous.fullRender) {
+                return this;
+            }
+            return new WorkItem(repositoryId, pullRequestId, fromCommit, toCommit, false, true);
+        }
+
+        String getKey() {
+            return repositoryId + ":" + pullRequestId;
+        }
+
+        boolean isLatest(PullRequest pullRequest) {
+            return fromCommit.equals(pullRequest.getFromRef().getLatestCommit())
+                    && toCommit.equals(pullRequest.getToRef().getLatestCommit());
+        }
+    }
+}
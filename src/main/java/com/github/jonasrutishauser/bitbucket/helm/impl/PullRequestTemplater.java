@@ -0,0 +1,379 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestRef;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.git.GitWorkTreeBuilder;
+import com.atlassian.bitbucket.scm.git.GitWorkTreeBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+import com.atlassian.bitbucket.scm.git.worktree.GitWorkTree;
+import com.atlassian.bitbucket.scm.git.worktree.GitWorkTreeRepositoryHookInvoker;
+import com.atlassian.bitbucket.scm.git.worktree.PublishGitWorkTreeParameters;
+import com.atlassian.bitbucket.server.StorageService;
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.atlassian.bitbucket.util.MoreFiles;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.github.jonasrutishauser.bitbucket.helm.impl.FastImportCommandHandler.Blob;
+import com.github.jonasrutishauser.bitbucket.helm.impl.FastImportCommandHandler.Commit;
+
+/**
+ * Renders the templates of all tools of a pull request with one work tree. A directory rendered by several tools is
+ * extracted once, and the output of every tool (in a folder named after the tool) is written with one commit per side
+ * of the pull request to a single ref.
+ */
+@Named
+public class PullRequestTemplater {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PullRequestTemplater.class);
+
+    private static final GitWorkTreeRepositoryHookInvoker NO_HOOKS = new GitWorkTreeRepositoryHookInvoker() {
+        @Override
+        public boolean preUpdate(@Nonnull GitWorkTree workTree, @Nonnull List<RefChange> refChanges) {
+            return true;
+        }
+
+        @Override
+        public void postUpdate(@Nonnull GitWorkTree workTree, @Nonnull List<RefChange> refChanges) {
+            // don't call hooks
+        }
+    };
+
+    private static final String TO_SIDE = "to";
+    private static final String FROM_SIDE = "from";
+
+    private final GitWorkTreeBuilderFactory workTreeBuilderFactory;
+    private final GitCommandBuilderFactory commandBuilderFactory;
+    private final StorageService storageService;
+    private final RenderExecutor renderExecutor;
+    private final List<AbstractTemplater> templaters;
+    private final RenderHistory renderHistory;
+    private final ChartDependencyIndex chartDependencyIndex;
+
+    @Inject
+    public PullRequestTemplater(@ComponentImport GitWorkTreeBuilderFactory workTreeBuilderFactory,
+            @ComponentImport GitCommandBuilderFactory commandBuilderFactory,
+            @ComponentImport StorageService storageService, RenderExecutor renderExecutor,
+            List<AbstractTemplater> templaters, RenderHistory renderHistory,
+            ChartDependencyIndex chartDependencyIndex) {
+        this.workTreeBuilderFactory = workTreeBuilderFactory;
+        this.commandBuilderFactory = commandBuilderFactory;
+        this.storageService = storageService;
+        this.renderExecutor = renderExecutor;
+        this.templaters = templaters;
+        this.renderHistory = renderHistory;
+        this.chartDependencyIndex = chartDependencyIndex;
+    }
+
+    /**
+     * @param directoriesToTemplate
+     *            the directories to render by the name of the tool
+     * @param degraded
+     *            whether to render with reduced fidelity (single file, default configuration only)
+     * @param token
+     *            checked between the stages, the templating is abandoned (without updating the ref) once it is
+     *            cancelled
+     * @return null if the templating failed or was cancelled
+     */
+    public TemplatedCommits addTemplatedCommits(PullRequest pullRequest,
+            Map<String, ? extends Collection<String>> directoriesToTemplate, boolean degraded,
+            CancellationToken token) {
+        List<AbstractTemplater> active = templaters.stream()
+                .filter(templater -> directoriesToTemplate.containsKey(templater.toolName())).collect(toList());
+        GitWorkTreeBuilder builder = workTreeBuilderFactory.builder(pullRequest.getToRef().getRepository())
+                .commit(null);
+        try (CancellationToken.Scope scope = token.enter()) {
+            return builder.execute(
+                    workTree -> addTemplated(pullRequest, directoriesToTemplate, degraded, active, workTree));
+        } catch (CancellationToken.CancelledException e) {
+            LOGGER.debug("templating of pull request {} cancelled", pullRequest.getId());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to add templated files", e);
+        }
+        return null;
+    }
+
+    public void removeReference(Repository repository, long pullRequestId) {
+        GitScmCommandBuilder scmCommandBuilder = commandBuilderFactory.builder(repository);
+        scmCommandBuilder.updateRef().delete(getRefName(pullRequestId)).build().call();
+        // older versions had a ref per tool
+        for (AbstractTemplater templater : templaters) {
+            scmCommandBuilder.updateRef().delete("refs/pull-requests/" + pullRequestId + "/" + templater.toolName())
+                    .build().call();
+        }
+    }
+
+    private TemplatedCommits addTemplated(PullRequest pullRequest,
+            Map<String, ? extends Collection<String>> directoriesToTemplate, boolean degraded,
+            List<AbstractTemplater> active, GitWorkTree workTree) throws IOException {
+        Repository repository = pullRequest.getToRef().getRepository();
+        Map<String, Map<String, RenderedCommit>> previous = previousRenderedCommits(pullRequest);
+        CancellationToken token = CancellationToken.current();
+
+        Path stagingDir = Files.createTempDirectory(storageService.getTempDir(), "staged-");
+        try {
+            Extraction extraction = new Extraction(workTree, stagingDir.resolve("extracted"));
+            Map<AbstractTemplater, String> configurationDigests = new HashMap<>();
+            Map<AbstractTemplater, AbstractTemplater.StagedSide> toSides = new LinkedHashMap<>();
+            Map<AbstractTemplater, AbstractTemplater.StagedSide> fromSides = new LinkedHashMap<>();
+            // render both versions of all tools at the same time, the commits are assembled afterwards
+            List<Callable<Boolean>> renders = new ArrayList<>();
+            for (AbstractTemplater templater : active) {
+                String configurationDigest = templater.configurationDigest(repository, degraded);
+                configurationDigests.put(templater, configurationDigest);
+                Collection<String> directories = directoriesToTemplate.get(templater.toolName());
+                for (AbstractTemplater.StagedSide side : asList(
+                        stagedSide(templater, TO_SIDE, pullRequest.getToRef(), directories, previous, stagingDir,
+                                toSides),
+                        stagedSide(templater, FROM_SIDE, pullRequest.getFromRef(), directories, previous, stagingDir,
+                                fromSides))) {
+                    renders.addAll(
+                            templater.stage(repository, directories, workTree, side, configurationDigest, extraction,
+                                    degraded));
+                }
+            }
+            renderExecutor.invokeAll(renders);
+            token.check();
+            // the history estimates renders with full fidelity
+            if (!degraded) {
+                List<RenderHistory.Sample> samples = new ArrayList<>();
+                for (AbstractTemplater.StagedSide side : toSides.values()) {
+                    samples.addAll(side.samples());
+                }
+                for (AbstractTemplater.StagedSide side : fromSides.values()) {
+                    samples.addAll(side.samples());
+                }
+                renderHistory.record(repository.getId(), samples);
+            }
+
+            SortedMap<String, Blob> toTree = tree(workTree, toSides);
+            SortedMap<String, Blob> fromTree = tree(workTree, fromSides);
+            String subject = active.stream().map(AbstractTemplater::toolName).collect(joining(", ")) + " template";
+            List<Commit> commits = commits(subject, toTree,
+                    rendered(directoriesToTemplate, toSides, configurationDigests), fromTree,
+                    rendered(directoriesToTemplate, fromSides, configurationDigests));
+
+            if (!commits.isEmpty()) {
+                token.check();
+                String ref = workTree.builder().command("symbolic-ref").argument("HEAD")
+                        .build(new LinesCommandOutputHandler()).call()[0];
+                ApplicationUser author = pullRequest.getAuthor().getUser();
+                FastImportCommandHandler handler = new FastImportCommandHandler(ref,
+                        FastImportCommandHandler.ident(author.getDisplayName(), author.getEmailAddress()), commits);
+                workTree.builder().command("fast-import").argument("--quiet").argument("--done").inputHandler(handler)
+                        .build(handler).call();
+            }
+
+            List<String> tools = active.stream().map(AbstractTemplater::toolName).collect(toList());
+            Set<String> changedTools = changedTools(tools, fromTree, toTree);
+
+            token.check();
+            String refName = getRefName(pullRequest.getId());
+            // this api wont allow to create arbitrary refs
+            // (we need to rename this ref afterwards)
+            workTree.publish(new PublishGitWorkTreeParameters.Builder(NO_HOOKS).branch(refName, null).build());
+            // rename the ref
+            GitScmCommandBuilder scmCommandBuilder = commandBuilderFactory.builder(repository);
+            scmCommandBuilder.updateRef().set(refName, "refs/heads/" + refName).deref(false).build().call();
+            scmCommandBuilder.updateRef().delete("refs/heads/" + refName).build().call();
+
+            return new TemplatedCommits(
+                    workTree.builder().revList().limit(2).rev("HEAD").build(new LinesCommandOutputHandler()).call(),
+                    tools, changedTools);
+        } finally {
+            MoreFiles.deleteQuietly(stagingDir);
+        }
+    }
+
+    private AbstractTemplater.StagedSide stagedSide(AbstractTemplater templater, String name, PullRequestRef ref,
+            Collection<String> directories, Map<String, Map<String, RenderedCommit>> previous, Path stagingDir,
+            Map<AbstractTemplater, AbstractTemplater.StagedSide> sides) {
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        for (String directory : directories) {
+            Set<String> directoryDependencies = chartDependencyIndex.dependencies(ref.getRepository(), ref.getId(),
+                    ref.getLatestCommit(), directory);
+            if (!directoryDependencies.isEmpty()) {
+                dependencies.put(directory, directoryDependencies);
+            }
+        }
+        AbstractTemplater.StagedSide side = new AbstractTemplater.StagedSide(name, ref,
+                previous.getOrDefault(name, Collections.emptyMap()).get(templater.toolName()),
+                stagingDir.resolve(templater.toolName()).resolve(name), dependencies);
+        sides.put(templater, side);
+        return side;
+    }
+
+    /**
+     * @return the rendered commits of both sides by the name of the tool
+     */
+    private Map<String, Map<String, RenderedCommit>> previousRenderedCommits(PullRequest pullRequest) {
+        Repository repository = pullRequest.getToRef().getRepository();
+        Map<String, Map<String, RenderedCommit>> previous = new HashMap<>();
+        String[] refs = commandBuilderFactory.builder(repository).command("for-each-ref")
+                .argument("--format=%(objectname)").argument(getRefName(pullRequest.getId()))
+                .build(new LinesCommandOutputHandler()).call();
+        String commit = refs.length > 0 ? refs[0] : null;
+        for (int i = 0; commit != null && i < 2; i++) {
+            String[] rawCommit = commandBuilderFactory.builder(repository).command("cat-file").argument("commit")
+                    .argument(commit).build(new LinesCommandOutputHandler()).call();
+            for (RenderedCommit rendered : RenderedCommit.parseAll(commit, rawCommit)) {
+                if (rendered.getTool() != null) {
+                    previous.computeIfAbsent(rendered.getSide(), side -> new HashMap<>())
+                            .putIfAbsent(rendered.getTool(), rendered);
+                }
+            }
+            commit = RenderedCommit.parent(rawCommit).orElse(null);
+        }
+        return previous;
+    }
+
+    /**
+     * @return the commit of the old version (unless it has no output) followed by the one of the new version (unless
+     *         its output is the same, the commit of the old version then has the trailers of both versions)
+     */
+    static List<Commit> commits(String subject, SortedMap<String, Blob> toTree, List<RenderedCommit> toRendered,
+            SortedMap<String, Blob> fromTree, List<RenderedCommit> fromRendered) {
+        List<Commit> commits = new ArrayList<>();
+        boolean sameContent = sameContent(fromTree, toTree);
+        if (!toTree.isEmpty()) {
+            List<RenderedCommit> rendered = new ArrayList<>(toRendered);
+            if (sameContent) {
+                // the next render of the new version carries over its directories from this commit
+                rendered.addAll(fromRendered);
+            }
+            commits.add(new Commit(RenderedCommit.toMessage(subject, rendered), toTree));
+        }
+        if (!sameContent) {
+            commits.add(new Commit(RenderedCommit.toMessage(subject, fromRendered), fromTree));
+        }
+        return commits;
+    }
+
+    /**
+     * @return the tools whose output differs between the trees of both versions
+     */
+    static Set<String> changedTools(Collection<String> tools, SortedMap<String, Blob> fromTree,
+            SortedMap<String, Blob> toTree) {
+        Set<String> changedTools = new TreeSet<>();
+        for (String tool : tools) {
+            if (!sameContent(subtree(fromTree, tool), subtree(toTree, tool))) {
+                changedTools.add(tool);
+            }
+        }
+        return changedTools;
+    }
+
+    /**
+     * @param trees
+     *            the output by the name of the tool
+     * @return the output of all tools, each in a folder named after the tool
+     */
+    static SortedMap<String, Blob> combine(Map<String, ? extends Map<String, Blob>> trees) {
+        SortedMap<String, Blob> tree = new TreeMap<>();
+        trees.forEach((tool, toolTree) -> toolTree.forEach((path, blob) -> tree.put(tool + "/" + path, blob)));
+        return tree;
+    }
+
+    private static SortedMap<String, Blob> tree(GitWorkTree workTree,
+            Map<AbstractTemplater, AbstractTemplater.StagedSide> sides) throws IOException {
+        Map<String, SortedMap<String, Blob>> trees = new LinkedHashMap<>();
+        for (Entry<AbstractTemplater, AbstractTemplater.StagedSide> side : sides.entrySet()) {
+            trees.put(side.getKey().toolName(), side.getKey().tree(workTree, side.getValue()));
+        }
+        return combine(trees);
+    }
+
+    private static List<RenderedCommit> rendered(Map<String, ? extends Collection<String>> directoriesToTemplate,
+            Map<AbstractTemplater, AbstractTemplater.StagedSide> sides,
+            Map<AbstractTemplater, String> configurationDigests) {
+        List<RenderedCommit> rendered = new ArrayList<>();
+        for (Entry<AbstractTemplater, AbstractTemplater.StagedSide> side : sides.entrySet()) {
+            AbstractTemplater templater = side.getKey();
+            rendered.add(templater.rendered(directoriesToTemplate.get(templater.toolName()), side.getValue(),
+                    configurationDigests.get(templater)));
+        }
+        return rendered;
+    }
+
+    private static SortedMap<String, Blob> subtree(SortedMap<String, Blob> tree, String tool) {
+        // '0' follows '/'
+        return tree.subMap(tool + "/", tool + "0");
+    }
+
+    private static boolean sameContent(SortedMap<String, Blob> tree, SortedMap<String, Blob> other) {
+        if (!tree.keySet().equals(other.keySet())) {
+            return false;
+        }
+        return tree.entrySet().stream()
+                .allMatch(entry -> entry.getValue().getObjectId().equals(other.get(entry.getKey()).getObjectId()));
+    }
+
+    static String getRefName(long pullRequestId) {
+        return "refs/pull-requests/" + pullRequestId + "/templates";
+    }
+
+    /**
+     * The templated commits of a pull request.
+     */
+    public static class TemplatedCommits {
+        private final String[] commits;
+        private final List<String> tools;
+        private final Set<String> changedTools;
+
+        TemplatedCommits(String[] commits, List<String> tools, Set<String> changedTools) {
+            this.commits = commits;
+            this.tools = tools;
+            this.changedTools = changedTools;
+        }
+
+        /**
+         * @return the commit of the new version followed by the one of the old version (only one if they do not
+         *         differ)
+         */
+        public String[] getCommits() {
+            return commits;
+        }
+
+        /**
+         * @return the tools which rendered
+         */
+        public List<String> getTools() {
+            return tools;
+        }
+
+        /**
+         * @return the tools whose output differs between the versions
+         */
+        public Set<String> getChangedTools() {
+            return changedTools;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bitbucket.io.IoConsumer;
+import com.atlassian.bitbucket.server.StorageService;
+import com.atlassian.bitbucket.util.MoreFiles;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+/**
+ * Node local cache of rendered directories. Entries are addressed by a digest over everything which influences the
+ * rendered output and are evicted in least recently used order once the configured size is exceeded.
+ */
+@Named
+public class RenderCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenderCache.class);
+
+    private final DirectoryCache cache;
+    private final Map<String, BinaryDigest> binaryDigests = new ConcurrentHashMap<>();
+
+    @Inject
+    public RenderCache(HelmConfiguration configuration, @ComponentImport StorageService storageService) {
+        this(configuration, MoreFiles.resolve(storageService.getCacheDir(), "helm-pr", "renders"));
+    }
+
+    RenderCache(HelmConfiguration configuration, Path directory) {
+        this.cache = new DirectoryCache(directory, () -> configuration.getRenderCacheSize() * 1024 * 1024);
+    }
+
+    public boolean isEnabled() {
+        return cache.isEnabled();
+    }
+
+    public String key(List<String> parts) {
+        return DirectoryCache.key(parts);
+    }
+
+    public String binaryDigest(String binary) {
+        Path path = resolveBinary(binary);
+        if (path == null) {
+            return binary;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            BinaryDigest cached = binaryDigests.get(path.toString());
+            if (cached == null || !cached.matches(attributes)) {
+                cached = new BinaryDigest(attributes, DirectoryCache.digest(path));
+                binaryDigests.put(path.toString(), cached);
+            }
+            return cached.digest;
+        } catch (IOException e) {
+            LOGGER.debug("failed to digest binary {}", binary, e);
+            return binary;
+        }
+    }
+
+    /**
+     * Passes the cached rendered directory to the consumer (the directory must not be modified).
+     *
+     * @return false if there is no entry for the key
+     */
+    public boolean replay(String key, IoConsumer<Path> consumer) throws IOException {
+        return cache.replay(key, consumer);
+    }
+
+    public void store(String key, Path rendered) {
+        cache.store(key, rendered);
+    }
+
+    private static Path resolveBinary(String binary) {
+        if (binary.contains("/") || binary.contains("\\")) {
+            return Paths.get(binary);
+        }
+        String path = System.getenv("PATH");
+        if (path != null) {
+            for (String dir : path.split(File.pathSeparator)) {
+                Path candidate = Paths.get(dir, binary);
+                if (Files.isRegularFile(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static class BinaryDigest {
+        private final FileTime lastModified;
+        private final long size;
+        private final String digest;
+
+        BinaryDigest(BasicFileAttributes attributes, String digest) {
+            this.lastModified = attributes.lastModifiedTime();
+            this.size = attributes.size();
+            this.digest = digest;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return lastModified.equals(attributes.lastModifiedTime()) && size == attributes.size();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+/**
+ * Runs the renders of a diff job concurrently. The number of concurrent renders is bounded per job and per node (the
+ * limit per node is scaled with the load of the host by the {@link LoadGovernor}).
+ */
+@Named
+public class RenderExecutor {
+
+    private final HelmConfiguration configuration;
+    private final LoadGovernor loadGovernor;
+    private final ExecutorService executor;
+    private final ThreadLocal<Boolean> holdsPermit = ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private int running;
+
+    @Inject
+    public RenderExecutor(HelmConfiguration configuration, LoadGovernor loadGovernor) {
+        this.configuration = configuration;
+        this.loadGovernor = loadGovernor;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "helm-pr-render-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Executes all tasks and waits for their completion. The calling thread takes part in the execution. Nested
+     * invocations (from within a task) only use additional threads while the node limit is not reached, so they
+     * cannot block on the renders of the enclosing invocation. The tasks run with the {@link CancellationToken} of the
+     * calling thread, no further task is started once it is cancelled.
+     *
+     * @return the results in the order of the tasks
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws IOException {
+        @SuppressWarnings("unchecked")
+        T[] results = (T[]) new Object[tasks.size()];
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        boolean nested = holdsPermit.get().booleanValue();
+        CancellationToken token = CancellationToken.current();
+        Runnable worker = () -> {
+            try (CancellationToken.Scope scope = token.enter()) {
+                while (failure.get() == null) {
+                    boolean acquired = false;
+                    try {
+                        if (!holdsPermit.get().booleanValue()) {
+                            if (!acquire(!nested)) {
+                                return;
+                            }
+                            acquired = true;
+                        }
+                        int i = next.getAndIncrement();
+                        if (i >= tasks.size()) {
+                            return;
+                        }
+                        token.check();
+                        results[i] = tasks.get(i).call();
+                    } catch (Exception | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        if (acquired) {
+                            release();
+                        }
+                    }
+                }
+            }
+        };
+        List<Future<?>> workers = new ArrayList<>();
+        try {
+            for (int i = 1; i < Math.min(configuration.getJobParallelism(), tasks.size()); i++) {
+                workers.add(executor.submit(worker));
+            }
+        } catch (RejectedExecutionException e) {
+            // shut down, the remaining tasks are executed by the calling thread
+        }
+        worker.run();
+        for (Future<?> running : workers) {
+            try {
+                running.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+                workers.forEach(w -> w.cancel(true));
+                break;
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, e.getCause());
+            }
+        }
+        rethrow(failure.get());
+        return Arrays.asList(results);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private boolean acquire(boolean blocking) throws InterruptedException {
+        synchronized (this) {
+            while (running >= loadGovernor.parallelism()) {
+                if (!blocking) {
+                    return false;
+                }
+                // the governor may raise the limit without any render being released
+                wait(1_000);
+            }
+            running++;
+        }
+        holdsPermit.set(Boolean.TRUE);
+        return true;
+    }
+
+    private void release() {
+        holdsPermit.set(Boolean.FALSE);
+        synchronized (this) {
+            running--;
+            notifyAll();
+        }
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure instanceof InterruptedException) {
+            // the interrupt flag was cleared when the exception was thrown
+            Thread.currentThread().interrupt();
+            InterruptedIOException exception = new InterruptedIOException("interrupted while rendering");
+            exception.initCause(failure);
+            throw exception;
+        }
+        throw new IOException(failure);
+    }
+}
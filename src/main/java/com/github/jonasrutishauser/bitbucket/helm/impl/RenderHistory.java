@@ -0,0 +1,238 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.bitbucket.server.StorageService;
+import com.atlassian.bitbucket.util.MoreFiles;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+/**
+ * Cluster wide history of the render durations and output sizes (per directory and configuration). It is used to
+ * estimate how long a diff job takes, so the {@link RenderQueue} can start the shortest jobs first.
+ */
+@Named
+public class RenderHistory {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenderHistory.class);
+
+    private static final String LOCK_NAME = "com.github.jonasrutishauser.bitbucket:helm-pr-bitbucket-plugin:render-history";
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_DIRECTORIES = 10_000;
+    /**
+     * The estimate of a directory which was never rendered in a repository without any history.
+     */
+    static final long DEFAULT_DURATION = 10_000;
+
+    private final HelmConfiguration configuration;
+    private final ClusterLockService lockService;
+    private final Path file;
+
+    @Inject
+    public RenderHistory(HelmConfiguration configuration, @ComponentImport ClusterLockService lockService,
+            @ComponentImport StorageService storageService) {
+        this(configuration, lockService,
+                MoreFiles.resolve(storageService.getSharedHomeDir(), "helm-pr", "render-history"));
+    }
+
+    RenderHistory(HelmConfiguration configuration, ClusterLockService lockService, Path file) {
+        this.configuration = configuration;
+        this.lockService = lockService;
+        this.file = file;
+    }
+
+    /**
+     * Adds the renders of a diff job (recent renders count more than older ones).
+     */
+    public void record(int repositoryId, Collection<Sample> samples) {
+        if (samples.isEmpty()) {
+            return;
+        }
+        locked(true, history -> {
+            long now = System.currentTimeMillis();
+            for (Sample sample : samples) {
+                history.computeIfAbsent(key(repositoryId, sample.tool, sample.directory), key -> new HashMap<>())
+                        .merge(sample.configuration, new Average(sample.duration, sample.outputSize, now),
+                                Average::add);
+            }
+            if (history.size() > MAX_DIRECTORIES) {
+                // forget the directories which were not rendered for the longest time
+                history.entrySet().stream()
+                        .sorted(Comparator.comparingLong(entry -> lastRendered(entry.getValue())))
+                        .limit(history.size() - (long) MAX_DIRECTORIES).map(Map.Entry::getKey)
+                        .toList().forEach(history::remove);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @param directories
+     *            the directories to render by the name of the tool
+     * @return the estimated duration of the diff job (in milliseconds)
+     */
+    public long estimate(int repositoryId, Map<String, ? extends Collection<String>> directories) {
+        return locked(false, history -> {
+            long total = 0;
+            long longest = 0;
+            for (Map.Entry<String, ? extends Collection<String>> tool : directories.entrySet()) {
+                long unknown = unknownDirectory(history, repositoryId, tool.getKey());
+                for (String directory : tool.getValue()) {
+                    Map<String, Average> configurations = history.get(key(repositoryId, tool.getKey(), directory));
+                    long duration = configurations == null ? unknown : duration(configurations);
+                    // both sides of the pull request are rendered
+                    total += 2 * duration;
+                    longest = Math.max(longest, duration);
+                }
+            }
+            // the renders of a job run in parallel
+            return Math.max(longest, total / Math.max(1, configuration.getJobParallelism()));
+        });
+    }
+
+    /**
+     * @return the average duration of the rendered directories of the tool in the repository
+     */
+    private static long unknownDirectory(Map<String, Map<String, Average>> history, int repositoryId, String tool) {
+        String prefix = key(repositoryId, tool, "");
+        return (long) history.entrySet().stream().filter(entry -> entry.getKey().startsWith(prefix))
+                .mapToLong(entry -> duration(entry.getValue())).average().orElse(DEFAULT_DURATION);
+    }
+
+    private static long duration(Map<String, Average> configurations) {
+        return configurations.values().stream().mapToLong(average -> average.duration).sum();
+    }
+
+    private static long lastRendered(Map<String, Average> configurations) {
+        return configurations.values().stream().mapToLong(average -> average.updated).max().orElse(0);
+    }
+
+    private static String key(int repositoryId, String tool, String directory) {
+        return repositoryId + ":" + tool + ":" + directory;
+    }
+
+    private <T> T locked(boolean modifies, Function<Map<String, Map<String, Average>>, T> operation) {
+        ClusterLock lock = lockService.getLockForName(LOCK_NAME);
+        lock.lock();
+        try {
+            Map<String, Map<String, Average>> history = read();
+            T result = operation.apply(history);
+            if (modifies) {
+                write(history);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Map<String, Map<String, Average>> read() {
+        Map<String, Map<String, Average>> history = new HashMap<>();
+        if (!Files.isRegularFile(file)) {
+            return history;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                LOGGER.warn("unknown format of render history {}, will start with an empty history", file);
+                return history;
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                Map<String, Average> configurations = history.computeIfAbsent(in.readUTF(), key -> new HashMap<>());
+                for (int j = in.readInt(); j > 0; j--) {
+                    configurations.put(in.readUTF(), new Average(in.readLong(), in.readLong(), in.readLong()));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("failed to read render history {}, will start with an empty history", file, e);
+            return new HashMap<>();
+        }
+        return history;
+    }
+
+    private void write(Map<String, Map<String, Average>> history) {
+        try {
+            MoreFiles.mkdir(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(history.size());
+                for (Map.Entry<String, Map<String, Average>> directory : history.entrySet()) {
+                    out.writeUTF(directory.getKey());
+                    out.writeInt(directory.getValue().size());
+                    for (Map.Entry<String, Average> configuration : directory.getValue().entrySet()) {
+                        out.writeUTF(configuration.getKey());
+                        out.writeLong(configuration.getValue().duration);
+                        out.writeLong(configuration.getValue().outputSize);
+                        out.writeLong(configuration.getValue().updated);
+                    }
+                }
+            }
+            Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("failed to write render history {}", file, e);
+        }
+    }
+
+    /**
+     * One render of a directory with one configuration.
+     */
+    public static class Sample {
+        private final String tool;
+        private final String directory;
+        private final String configuration;
+        private final long duration;
+        private final long outputSize;
+
+        /**
+         * @param duration
+         *            in milliseconds
+         * @param outputSize
+         *            in bytes
+         */
+        public Sample(String tool, String directory, String configuration, long duration, long outputSize) {
+            this.tool = tool;
+            this.directory = directory;
+            this.configuration = configuration;
+            this.duration = duration;
+            this.outputSize = outputSize;
+        }
+    }
+
+    private static class Average {
+        private final long duration;
+        private final long outputSize;
+        private final long updated;
+
+        Average(long duration, long outputSize, long updated) {
+            this.duration = duration;
+            this.outputSize = outputSize;
+            this.updated = updated;
+        }
+
+        Average add(Average sample) {
+            return new Average((2 * duration + sample.duration) / 3, (2 * outputSize + sample.outputSize) / 3,
+                    sample.updated);
+        }
+    }
+}
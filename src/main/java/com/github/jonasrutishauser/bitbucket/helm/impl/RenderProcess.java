@@ -0,0 +1,235 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import com.atlassian.bitbucket.util.MoreFiles;
+
+/**
+ * Runs a render process which streams its standard output into a file (up to a maximum size) and only keeps the tail
+ * of its standard error. The process (with all its children) is killed as soon as the {@link CancellationToken} of the
+ * calling thread is cancelled.
+ */
+class RenderProcess {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int STDERR_TAIL_SIZE = 64 * 1024;
+    private static final long CANCELLATION_POLL_MILLIS = 100;
+
+    private final List<String> command;
+    private final Map<String, String> environment;
+    private final Path workingDirectory;
+
+    /**
+     * @param workingDirectory
+     *            the working directory of the process (null to inherit it)
+     */
+    public RenderProcess(List<String> command, Map<String, String> environment, Path workingDirectory) {
+        this.command = command;
+        this.environment = environment;
+        this.workingDirectory = workingDirectory;
+    }
+
+    /**
+     * @param outputFile
+     *            the file the standard output is written to (null to discard it)
+     * @param maxOutputSize
+     *            the maximum number of bytes written to the output file, the process is killed and a truncation marker
+     *            is appended once it writes more
+     * @throws CancellationToken.CancelledException
+     *             if the process got killed because the job was cancelled
+     */
+    public Result run(Path outputFile, long maxOutputSize, Duration timeout) throws IOException {
+        CancellationToken token = CancellationToken.current();
+        token.check();
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.environment().putAll(environment);
+        if (workingDirectory != null) {
+            builder.directory(workingDirectory.toFile());
+        }
+        if (outputFile != null) {
+            MoreFiles.mkdir(outputFile.getParent());
+        }
+        Process process = builder.start();
+        process.getOutputStream().close();
+        StderrTail stderr = new StderrTail(process.getErrorStream());
+        StdoutCopy stdout = new StdoutCopy(process, outputFile, maxOutputSize);
+        Thread stderrThread = start(stderr, "stderr");
+        Thread stdoutThread = start(stdout, "stdout");
+        boolean finished;
+        boolean cancelled = false;
+        try {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            do {
+                long remaining = MILLISECONDS.convert(deadline - System.nanoTime(), NANOSECONDS);
+                finished = process.waitFor(Math.max(0, Math.min(remaining, CANCELLATION_POLL_MILLIS)), MILLISECONDS);
+                cancelled = !finished && token.isCancelled();
+            } while (!finished && !cancelled && deadline - System.nanoTime() > 0);
+            if (!finished) {
+                kill(process);
+            }
+            stdoutThread.join();
+            stderrThread.join();
+        } catch (InterruptedException e) {
+            kill(process);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + command.get(0));
+        }
+        if (cancelled) {
+            throw new CancellationToken.CancelledException();
+        }
+        if (stdout.failure != null) {
+            throw stdout.failure;
+        }
+        if (stdout.truncated) {
+            try (OutputStream out = Files.newOutputStream(outputFile, APPEND)) {
+                out.write(("\n# rendered output truncated, it exceeds the maximum size of " + maxOutputSize
+                        + " bytes\n").getBytes(UTF_8));
+            }
+        }
+        return new Result(finished && !stdout.truncated ? process.exitValue() : -1, !finished, stdout.truncated,
+                stdout.written, stderr.toString());
+    }
+
+    private Thread start(Runnable runnable, String stream) {
+        Thread thread = new Thread(runnable, "helm-pr-" + stream + "-" + command.get(0));
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void kill(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    static class Result {
+        private final int exitCode;
+        private final boolean timedOut;
+        private final boolean truncated;
+        private final long outputSize;
+        private final String stderr;
+
+        Result(int exitCode, boolean timedOut, boolean truncated, long outputSize, String stderr) {
+            this.exitCode = exitCode;
+            this.timedOut = timedOut;
+            this.truncated = truncated;
+            this.outputSize = outputSize;
+            this.stderr = stderr;
+        }
+
+        public boolean isSuccessful() {
+            return exitCode == 0;
+        }
+
+        /**
+         * @return the exit code (-1 if the process got killed)
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public long getOutputSize() {
+            return outputSize;
+        }
+
+        /**
+         * @return the tail of the standard error
+         */
+        public String getStderr() {
+            return stderr;
+        }
+    }
+
+    private static class StdoutCopy implements Runnable {
+        private final Process process;
+        private final Path outputFile;
+        private final long maxOutputSize;
+        private long written;
+        private boolean truncated;
+        private IOException failure;
+
+        StdoutCopy(Process process, Path outputFile, long maxOutputSize) {
+            this.process = process;
+            this.outputFile = outputFile;
+            this.maxOutputSize = maxOutputSize;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = process.getInputStream();
+                    OutputStream out = outputFile == null ? OutputStream.nullOutputStream()
+                            : Files.newOutputStream(outputFile)) {
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                    int allowed = (int) Math.min(read, maxOutputSize - written);
+                    out.write(buffer, 0, allowed);
+                    written += allowed;
+                    if (allowed < read) {
+                        truncated = true;
+                        kill(process);
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+                kill(process);
+            }
+        }
+    }
+
+    private static class StderrTail implements Runnable {
+        private final InputStream stderr;
+        private final byte[] tail = new byte[STDERR_TAIL_SIZE];
+        private long size;
+
+        StderrTail(InputStream stderr) {
+            this.stderr = stderr;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = stderr) {
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                    for (int i = 0; i < read; i++) {
+                        tail[(int) (size++ % tail.length)] = buffer[i];
+                    }
+                }
+            } catch (IOException e) {
+                // process killed
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (size <= tail.length) {
+                return new String(tail, 0, (int) size, UTF_8).trim();
+            }
+            int start = (int) (size % tail.length);
+            byte[] ordered = new byte[tail.length];
+            System.arraycopy(tail, start, ordered, 0, tail.length - start);
+            System.arraycopy(tail, 0, ordered, tail.length - start, start);
+            return ("... " + new String(ordered, UTF_8)).trim();
+        }
+    }
+}
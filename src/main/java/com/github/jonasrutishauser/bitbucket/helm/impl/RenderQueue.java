@@ -0,0 +1,581 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.stream.Collectors.toSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.bitbucket.cluster.ClusterNode;
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.server.StorageService;
+import com.atlassian.bitbucket.util.MoreFiles;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+/**
+ * Cluster wide queue of the diff jobs. The queue is kept in the shared home directory and only accessed while holding
+ * a cluster lock. A waiting job is started as soon as the global, node, project and repository limits allow it. The
+ * job with the shortest estimated duration starts first, but every second a job waits (after the first minute) counts
+ * like a second less of duration, so long jobs do not starve. The repositories with equal jobs take turns
+ * (round-robin).
+ */
+@Named
+public class RenderQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenderQueue.class);
+
+    private static final String LOCK_NAME = "com.github.jonasrutishauser.bitbucket:helm-pr-bitbucket-plugin:render-queue";
+    private static final int FORMAT_VERSION = 4;
+    private static final int RECENT_WAITS = 20;
+    private static final long AGING_GRACE_PERIOD = 60_000;
+
+    private final HelmConfiguration configuration;
+    private final ClusterLockService lockService;
+    private final ClusterService clusterService;
+    private final Path file;
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    public RenderQueue(HelmConfiguration configuration, @ComponentImport ClusterLockService lockService,
+            @ComponentImport ClusterService clusterService, @ComponentImport StorageService storageService) {
+        this(configuration, lockService, clusterService,
+                MoreFiles.resolve(storageService.getSharedHomeDir(), "helm-pr", "render-queue"));
+    }
+
+    RenderQueue(HelmConfiguration configuration, ClusterLockService lockService, ClusterService clusterService,
+            Path file) {
+        this.configuration = configuration;
+        this.lockService = lockService;
+        this.clusterService = clusterService;
+        this.file = file;
+    }
+
+    /**
+     * Adds the job. A waiting job of the same pull request is replaced (it keeps its place in the queue).
+     */
+    public void enqueue(Entry entry) {
+        update(state -> {
+            Optional<Entry> waiting = state.entries.stream()
+                    .filter(e -> !e.isRunning() && e.getKey().equals(entry.getKey())).findFirst();
+            if (waiting.isPresent()) {
+                LOGGER.debug("replacing waiting job {} of {}", waiting.get().id, entry.getKey());
+                entry.enqueued = waiting.get().enqueued;
+                state.entries.set(state.entries.indexOf(waiting.get()), entry);
+            } else {
+                state.entries.add(entry);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return the next job this node may start (it is marked as running on this node until it is completed)
+     */
+    public Optional<Entry> claim() {
+        return update(this::claim);
+    }
+
+    /**
+     * Removes the completed job and claims the next one (in one step, so the freed capacity cannot get lost).
+     */
+    public Optional<Entry> completeAndClaim(Entry completed) {
+        return update(state -> {
+            state.entries.removeIf(entry -> entry.id.equals(completed.id));
+            claimed.remove(completed.id);
+            return claim(state);
+        });
+    }
+
+    /**
+     * Removes the waiting job of the pull request (a running job notices by itself that it is obsolete).
+     */
+    public void remove(int repositoryId, long pullRequestId) {
+        update(state -> {
+            state.entries.removeIf(entry -> !entry.isRunning() && entry.getRepositoryId() == repositoryId
+                    && entry.getPullRequestId() == pullRequestId);
+            return null;
+        });
+    }
+
+    /**
+     * Removes the job without claiming another one.
+     */
+    public void complete(Entry completed) {
+        update(state -> {
+            state.entries.removeIf(entry -> entry.id.equals(completed.id));
+            claimed.remove(completed.id);
+            return null;
+        });
+    }
+
+    /**
+     * Returns the jobs claimed by this node to the queue (the node stops working on them).
+     */
+    public void release() {
+        update(state -> {
+            for (Entry entry : state.entries) {
+                if (claimed.contains(entry.id)) {
+                    entry.node = null;
+                    entry.started = 0;
+                }
+            }
+            claimed.clear();
+            return null;
+        });
+    }
+
+    /**
+     * @return the number of waiting and running jobs, the longest current and the average recent waiting time (in
+     *         seconds) and the estimates of all jobs
+     */
+    public Map<String, Object> getStatistics() {
+        return locked(false, state -> {
+            long now = System.currentTimeMillis();
+            Map<String, Object> statistics = new HashMap<>();
+            statistics.put("waiting", Long.valueOf(state.entries.stream().filter(e -> !e.isRunning()).count()));
+            statistics.put("running", Long.valueOf(state.entries.stream().filter(Entry::isRunning).count()));
+            statistics.put("longestWait", Long.valueOf(state.entries.stream().filter(e -> !e.isRunning())
+                    .mapToLong(e -> now - e.enqueued).max().orElse(0) / 1000));
+            statistics.put("averageWait", Long.valueOf(
+                    (long) state.recentWaits.stream().mapToLong(Long::longValue).average().orElse(0) / 1000));
+            List<Map<String, Object>> estimates = new ArrayList<>();
+            for (Estimate estimate : estimates(state, now, configuration.getQueueGlobalLimit())) {
+                Map<String, Object> job = new HashMap<>();
+                job.put("repositoryId", Integer.valueOf(estimate.entry.repositoryId));
+                job.put("pullRequestId", Long.valueOf(estimate.entry.pullRequestId));
+                job.put("running", Boolean.valueOf(estimate.entry.isRunning()));
+                job.put("start", Long.valueOf(Math.max(0, estimate.start - now) / 1000));
+                job.put("finish", Long.valueOf((estimate.finish - now) / 1000));
+                estimates.add(job);
+            }
+            statistics.put("estimates", estimates);
+            return statistics;
+        });
+    }
+
+    /**
+     * @return true if the number of waiting jobs or the longest waiting time reached the configured degradation
+     *         threshold
+     */
+    public boolean isBacklogged() {
+        int waitingJobs = configuration.getDegradationWaitingJobs();
+        long waitTime = configuration.getDegradationWaitTime() * 1000;
+        if (waitingJobs <= 0 && waitTime <= 0) {
+            return false;
+        }
+        return locked(false, state -> {
+            long now = System.currentTimeMillis();
+            List<Entry> waiting = state.entries.stream().filter(e -> !e.isRunning()).toList();
+            return (waitingJobs > 0 && waiting.size() >= waitingJobs) || (waitTime > 0
+                    && waiting.stream().anyMatch(entry -> now - entry.enqueued >= waitTime));
+        }).booleanValue();
+    }
+
+    /**
+     * @return when the job of the pull request is expected to start and finish (if it is in the queue)
+     */
+    public Optional<Estimate> getEstimate(int repositoryId, long pullRequestId) {
+        return locked(false, state -> estimates(state, System.currentTimeMillis(), configuration.getQueueGlobalLimit())
+                .stream().filter(estimate -> estimate.entry.repositoryId == repositoryId
+                        && estimate.entry.pullRequestId == pullRequestId)
+                .reduce((first, second) -> second));
+    }
+
+    /**
+     * Simulates the queue, the jobs start in the order of their priority as soon as one of the global slots is free
+     * (the other limits are ignored).
+     */
+    static List<Estimate> estimates(State state, long now, int slots) {
+        List<Estimate> estimates = new ArrayList<>();
+        PriorityQueue<Long> free = new PriorityQueue<>();
+        for (Entry entry : state.entries) {
+            if (entry.isRunning()) {
+                long finish = Math.max(now, entry.started + entry.estimatedDuration);
+                estimates.add(new Estimate(entry, entry.started, finish));
+                free.add(Long.valueOf(finish));
+            }
+        }
+        while (free.size() < slots) {
+            free.add(Long.valueOf(now));
+        }
+        state.entries.stream().filter(entry -> !entry.isRunning())
+                .sorted(Comparator.comparingLong((Entry entry) -> entry.priority(now))
+                        .thenComparingLong(entry -> entry.enqueued))
+                .forEach(entry -> {
+                    long start = free.poll().longValue();
+                    estimates.add(new Estimate(entry, start, start + entry.estimatedDuration));
+                    free.add(Long.valueOf(start + entry.estimatedDuration));
+                });
+        return estimates;
+    }
+
+    private Optional<Entry> claim(State state) {
+        requeueAbandoned(state);
+        Optional<Entry> next = next(state, localNode(), Limits.of(configuration), System.currentTimeMillis());
+        next.ifPresent(entry -> {
+            entry.node = localNode();
+            entry.started = System.currentTimeMillis();
+            state.lastRepository = entry.repositoryId;
+            state.recentWaits.add(Long.valueOf(entry.started - entry.enqueued));
+            if (state.recentWaits.size() > RECENT_WAITS) {
+                state.recentWaits.remove(0);
+            }
+            claimed.add(entry.id);
+            LOGGER.debug("starting {} after waiting {} ms ({} jobs waiting)", entry.getKey(),
+                    entry.started - entry.enqueued, state.entries.stream().filter(e -> !e.isRunning()).count());
+        });
+        return next;
+    }
+
+    /**
+     * Jobs running on nodes which left the cluster (or on this node before the plugin got restarted) are waiting again.
+     */
+    private void requeueAbandoned(State state) {
+        Set<String> nodes = clusterService.getInformation().getNodes().stream().map(ClusterNode::getId)
+                .collect(toSet());
+        for (Entry entry : state.entries) {
+            if (entry.isRunning() && (!nodes.contains(entry.node)
+                    || (entry.node.equals(localNode()) && !claimed.contains(entry.id)))) {
+                LOGGER.info("requeue {} which was abandoned by node {}", entry.getKey(), entry.node);
+                entry.node = null;
+                entry.started = 0;
+            }
+        }
+    }
+
+    /**
+     * @return the next waiting job which the limits allow to start on the node
+     */
+    static Optional<Entry> next(State state, String node, Limits limits, long now) {
+        Map<String, Integer> running = new HashMap<>();
+        Set<String> runningKeys = new TreeSet<>();
+        for (Entry entry : state.entries) {
+            if (entry.isRunning()) {
+                running.merge("global", 1, Integer::sum);
+                running.merge("node:" + entry.node, 1, Integer::sum);
+                running.merge("project:" + entry.projectId, 1, Integer::sum);
+                running.merge("repository:" + entry.repositoryId, 1, Integer::sum);
+                runningKeys.add(entry.getKey());
+            }
+        }
+        if (running.getOrDefault("global", 0) >= limits.global
+                || running.getOrDefault("node:" + node, 0) >= limits.node) {
+            return Optional.empty();
+        }
+        List<Entry> candidates = new ArrayList<>();
+        for (Entry entry : state.entries) {
+            if (!entry.isRunning() && !runningKeys.contains(entry.getKey())
+                    && running.getOrDefault("project:" + entry.projectId, 0) < limits.project
+                    && running.getOrDefault("repository:" + entry.repositoryId, 0) < limits.repository) {
+                candidates.add(entry);
+            }
+        }
+        // shortest job first
+        long priority = candidates.stream().mapToLong(entry -> entry.priority(now)).min().orElse(0);
+        candidates.removeIf(entry -> entry.priority(now) > priority);
+        // the first repository after the one which started a job most recently
+        Optional<Integer> repository = candidates.stream().map(entry -> entry.repositoryId)
+                .min(Comparator.comparing((Integer id) -> id <= state.lastRepository).thenComparing(id -> id));
+        return repository.flatMap(id -> candidates.stream().filter(entry -> entry.repositoryId == id)
+                .min(Comparator.comparingLong(entry -> entry.enqueued)));
+    }
+
+    private String localNode() {
+        return clusterService.getInformation().getLocalNode().getId();
+    }
+
+    private <T> T update(Function<State, T> operation) {
+        return locked(true, operation);
+    }
+
+    private <T> T locked(boolean modifies, Function<State, T> operation) {
+        ClusterLock lock = lockService.getLockForName(LOCK_NAME);
+        lock.lock();
+        try {
+            State state = read();
+            T result = operation.apply(state);
+            if (modifies) {
+                write(state);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private State read() {
+        State state = new State();
+        if (!Files.isRegularFile(file)) {
+            return state;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                LOGGER.warn("unknown format of render queue {}, will start with an empty queue", file);
+                return state;
+            }
+            state.lastRepository = in.readInt();
+            for (int i = in.readInt(); i > 0; i--) {
+                state.recentWaits.add(Long.valueOf(in.readLong()));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                state.entries.add(Entry.read(in));
+            }
+        } catch (IOException e) {
+            LOGGER.warn("failed to read render queue {}, will start with an empty queue", file, e);
+            return new State();
+        }
+        return state;
+    }
+
+    private void write(State state) {
+        try {
+            MoreFiles.mkdir(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(state.lastRepository);
+                out.writeInt(state.recentWaits.size());
+                for (Long wait : state.recentWaits) {
+                    out.writeLong(wait.longValue());
+                }
+                out.writeInt(state.entries.size());
+                for (Entry entry : state.entries) {
+                    entry.write(out);
+                }
+            }
+            Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("failed to write render queue {}", file, e);
+        }
+    }
+
+    static class State {
+        final List<Entry> entries = new ArrayList<>();
+        final List<Long> recentWaits = new LinkedList<>();
+        int lastRepository;
+    }
+
+    static class Limits {
+        final int global;
+        final int node;
+        final int project;
+        final int repository;
+
+        Limits(int global, int node, int project, int repository) {
+            this.global = global;
+            this.node = node;
+            this.project = project;
+            this.repository = repository;
+        }
+
+        static Limits of(HelmConfiguration configuration) {
+            return new Limits(configuration.getQueueGlobalLimit(), configuration.getQueueNodeLimit(),
+                    configuration.getQueueProjectLimit(), configuration.getQueueRepositoryLimit());
+        }
+    }
+
+    public static class Entry {
+        private final String id;
+        private final int repositoryId;
+        private final int projectId;
+        private final long pullRequestId;
+        private final String fromCommit;
+        private final String toCommit;
+        private final SortedMap<String, Set<String>> directories;
+        private final long estimatedDuration;
+        private final boolean degraded;
+        private long enqueued;
+        private String node;
+        private long started;
+
+        /**
+         * @param directories
+         *            the directories to render by the name of the tool
+         * @param estimatedDuration
+         *            in milliseconds (see {@link RenderHistory#estimate(int, Map)})
+         * @param degraded
+         *            whether the directories are rendered with reduced fidelity
+         */
+        public Entry(int repositoryId, int projectId, long pullRequestId, String fromCommit, String toCommit,
+                Map<String, ? extends Collection<String>> directories, long estimatedDuration, boolean degraded) {
+            this(UUID.randomUUID().toString(), repositoryId, projectId, pullRequestId, fromCommit, toCommit,
+                    directories, estimatedDuration, degraded, System.currentTimeMillis());
+        }
+
+        private Entry(String id, int repositoryId, int projectId, long pullRequestId, String fromCommit,
+                String toCommit, Map<String, ? extends Collection<String>> directories, long estimatedDuration,
+                boolean degraded, long enqueued) {
+            this.id = id;
+            this.repositoryId = repositoryId;
+            this.projectId = projectId;
+            this.pullRequestId = pullRequestId;
+            this.fromCommit = fromCommit;
+            this.toCommit = toCommit;
+            SortedMap<String, Set<String>> byTool = new TreeMap<>();
+            directories.forEach(
+                    (tool, dirs) -> byTool.put(tool, Collections.unmodifiableSet(new TreeSet<>(dirs))));
+            this.directories = Collections.unmodifiableSortedMap(byTool);
+            this.estimatedDuration = estimatedDuration;
+            this.degraded = degraded;
+            this.enqueued = enqueued;
+        }
+
+        /**
+         * @return identifies the pull request (there is at most one waiting job per key)
+         */
+        public String getKey() {
+            return repositoryId + ":" + pullRequestId;
+        }
+
+        public int getRepositoryId() {
+            return repositoryId;
+        }
+
+        public long getPullRequestId() {
+            return pullRequestId;
+        }
+
+        public String getFromCommit() {
+            return fromCommit;
+        }
+
+        public String getToCommit() {
+            return toCommit;
+        }
+
+        /**
+         * @return the directories to render by the name of the tool
+         */
+        public SortedMap<String, Set<String>> getDirectories() {
+            return directories;
+        }
+
+        public long getEstimatedDuration() {
+            return estimatedDuration;
+        }
+
+        public boolean isDegraded() {
+            return degraded;
+        }
+
+        boolean isRunning() {
+            return node != null;
+        }
+
+        /**
+         * @return the estimated duration reduced by the time waited after the grace period (lower starts first)
+         */
+        long priority(long now) {
+            return estimatedDuration - Math.max(0, now - enqueued - AGING_GRACE_PERIOD);
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(id);
+            out.writeInt(repositoryId);
+            out.writeInt(projectId);
+            out.writeLong(pullRequestId);
+            out.writeUTF(fromCommit);
+            out.writeUTF(toCommit);
+            out.writeLong(enqueued);
+            out.writeUTF(node == null ? "" : node);
+            out.writeLong(started);
+            out.writeLong(estimatedDuration);
+            out.writeBoolean(degraded);
+            out.writeInt(directories.size());
+            for (Map.Entry<String, Set<String>> tool : directories.entrySet()) {
+                out.writeUTF(tool.getKey());
+                out.writeInt(tool.getValue().size());
+                for (String directory : tool.getValue()) {
+                    out.writeUTF(directory);
+                }
+            }
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            String id = in.readUTF();
+            int repositoryId = in.readInt();
+            int projectId = in.readInt();
+            long pullRequestId = in.readLong();
+            String fromCommit = in.readUTF();
+            String toCommit = in.readUTF();
+            long enqueued = in.readLong();
+            String node = in.readUTF();
+            long started = in.readLong();
+            long estimatedDuration = in.readLong();
+            boolean degraded = in.readBoolean();
+            Map<String, List<String>> directories = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                List<String> dirs = directories.computeIfAbsent(in.readUTF(), tool -> new ArrayList<>());
+                for (int j = in.readInt(); j > 0; j--) {
+                    dirs.add(in.readUTF());
+                }
+            }
+            Entry entry = new Entry(id, repositoryId, projectId, pullRequestId, fromCommit, toCommit, directories,
+                    estimatedDuration, degraded, enqueued);
+            entry.node = node.isEmpty() ? null : node;
+            entry.started = started;
+            return entry;
+        }
+    }
+
+    public static class Estimate {
+        private final Entry entry;
+        private final long start;
+        private final long finish;
+
+        Estimate(Entry entry, long start, long finish) {
+            this.entry = entry;
+            this.start = start;
+            this.finish = finish;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        /**
+         * @return the (expected) start time in milliseconds since the epoch
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the expected finish time in milliseconds since the epoch
+         */
+        public long getFinish() {
+            return finish;
+        }
+    }
+}
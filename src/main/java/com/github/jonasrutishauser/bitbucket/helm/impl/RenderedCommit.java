@@ -0,0 +1,181 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+
+/**
+ * Describes what a templated commit was rendered from. The information is stored as trailers in the commit message,
+ * so that a later render of the same pull request can reuse unchanged directories. A commit with the output of
+ * several tools has a section of trailers per tool (each starting with the tool).
+ */
+class RenderedCommit {
+    private static final String TOOL = "Rendered-Tool: ";
+    private static final String SIDE = "Rendered-Ref: ";
+    private static final String SOURCE = "Rendered-Commit: ";
+    private static final String CONFIGURATION = "Rendered-Configuration: ";
+    private static final String DIRECTORY = "Rendered-Directory: ";
+    private static final String INCOMPLETE = "Rendered-Incomplete: ";
+
+    private final String commit;
+    private final String tool;
+    private final String side;
+    private final String source;
+    private final String configuration;
+    private final Set<String> directories;
+    private final Set<String> incompleteDirectories;
+
+    public RenderedCommit(String commit, String tool, String side, String source, String configuration,
+            Collection<String> directories, Collection<String> incompleteDirectories) {
+        this.commit = commit;
+        this.tool = tool;
+        this.side = side;
+        this.source = source;
+        this.configuration = configuration;
+        this.directories = new TreeSet<>(directories);
+        this.incompleteDirectories = new TreeSet<>(incompleteDirectories);
+    }
+
+    /**
+     * @param commit
+     *            the id of the templated commit
+     * @param rawCommit
+     *            the output of <code>git cat-file commit</code>
+     */
+    public static Optional<RenderedCommit> parse(String commit, String[] rawCommit) {
+        return parseAll(commit, rawCommit).stream().findFirst();
+    }
+
+    /**
+     * @return a rendered commit per tool section of the message
+     */
+    public static List<RenderedCommit> parseAll(String commit, String[] rawCommit) {
+        List<RenderedCommit> rendered = new ArrayList<>();
+        List<String> section = new ArrayList<>();
+        boolean message = false;
+        for (String line : rawCommit) {
+            if (!message) {
+                message = line.isEmpty();
+            } else {
+                if (line.startsWith(TOOL)) {
+                    parseSection(commit, section).ifPresent(rendered::add);
+                    section.clear();
+                }
+                section.add(line);
+            }
+        }
+        parseSection(commit, section).ifPresent(rendered::add);
+        return rendered;
+    }
+
+    private static Optional<RenderedCommit> parseSection(String commit, List<String> lines) {
+        String tool = null;
+        String side = null;
+        String source = null;
+        String configuration = null;
+        Set<String> directories = new TreeSet<>();
+        Set<String> incompleteDirectories = new TreeSet<>();
+        for (String line : lines) {
+            if (line.startsWith(TOOL)) {
+                tool = line.substring(TOOL.length());
+            } else if (line.startsWith(SIDE)) {
+                side = line.substring(SIDE.length());
+            } else if (line.startsWith(SOURCE)) {
+                source = line.substring(SOURCE.length());
+            } else if (line.startsWith(CONFIGURATION)) {
+                configuration = line.substring(CONFIGURATION.length());
+            } else if (line.startsWith(DIRECTORY)) {
+                directories.add(line.substring(DIRECTORY.length()));
+            } else if (line.startsWith(INCOMPLETE)) {
+                incompleteDirectories.add(line.substring(INCOMPLETE.length()));
+            }
+        }
+        if (side == null || source == null || configuration == null) {
+            return Optional.empty();
+        }
+        return Optional
+                .of(new RenderedCommit(commit, tool, side, source, configuration, directories, incompleteDirectories));
+    }
+
+    /**
+     * @return the parent commit id from the output of <code>git cat-file commit</code>
+     */
+    public static Optional<String> parent(String[] rawCommit) {
+        for (String line : rawCommit) {
+            if (line.isEmpty()) {
+                break;
+            }
+            if (line.startsWith("parent ")) {
+                return Optional.of(line.substring("parent ".length()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    public String toMessage(String subject) {
+        StringJoiner message = new StringJoiner("\n");
+        message.add(subject).add("");
+        addTrailers(message);
+        return message.toString();
+    }
+
+    /**
+     * @return the message of a commit with the output of several tools
+     */
+    public static String toMessage(String subject, Collection<RenderedCommit> rendered) {
+        StringJoiner message = new StringJoiner("\n");
+        message.add(subject);
+        for (RenderedCommit commit : rendered) {
+            message.add("");
+            commit.addTrailers(message);
+        }
+        return message.toString();
+    }
+
+    private void addTrailers(StringJoiner message) {
+        if (tool != null) {
+            message.add(TOOL + tool);
+        }
+        message.add(SIDE + side);
+        message.add(SOURCE + source);
+        message.add(CONFIGURATION + configuration);
+        directories.forEach(directory -> message.add(DIRECTORY + directory));
+        incompleteDirectories.forEach(directory -> message.add(INCOMPLETE + directory));
+    }
+
+    public String getCommit() {
+        return commit;
+    }
+
+    /**
+     * @return the tool which rendered the output (null for commits of older versions, which were rendered by a single
+     *         tool)
+     */
+    public String getTool() {
+        return tool;
+    }
+
+    public String getSide() {
+        return side;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getConfiguration() {
+        return configuration;
+    }
+
+    public Set<String> getDirectories() {
+        return directories;
+    }
+
+    public Set<String> getIncompleteDirectories() {
+        return incompleteDirectories;
+    }
+}
@@ -1,6 +1,9 @@
 package com.github.jonasrutishauser.bitbucket.helm.impl.config;
 
+import static java.util.Collections.emptyMap;
+
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -21,6 +24,7 @@ import com.atlassian.sal.api.websudo.WebSudoManager;
 import com.atlassian.sal.api.websudo.WebSudoSessionException;
 import com.atlassian.soy.renderer.SoyException;
 import com.atlassian.soy.renderer.SoyTemplateRenderer;
+import com.github.jonasrutishauser.bitbucket.helm.impl.RenderQueue;
 
 @Named
 public class GlobalConfiguration extends HttpServlet {
@@ -29,13 +33,16 @@ public class GlobalConfiguration extends HttpServlet {
     private final WebSudoManager webSudoManager;
     private final SoyTemplateRenderer soyTemplateRenderer;
     private final HelmConfiguration configuration;
+    private final RenderQueue renderQueue;
 
     @Inject
     public GlobalConfiguration(@ComponentImport WebSudoManager webSudoManager,
-            @ComponentImport SoyTemplateRenderer soyTemplateRenderer, HelmConfiguration configuration) {
+            @ComponentImport SoyTemplateRenderer soyTemplateRenderer, HelmConfiguration configuration,
+            RenderQueue renderQueue) {
         this.webSudoManager = webSudoManager;
         this.soyTemplateRenderer = soyTemplateRenderer;
         this.configuration = configuration;
+        this.renderQueue = renderQueue;
     }
 
     @Override
@@ -44,8 +51,7 @@ public class GlobalConfiguration extends HttpServlet {
         try {
             webSudoManager.willExecuteWebSudoRequest(request);
 
-            render(response, "plugin.helmPr.globalConfigurationPage",
-                    Map.of("configuration", configuration.getGlobalConfiguration()));
+            render(response, "plugin.helmPr.globalConfigurationPage", pageData(emptyMap()));
         } catch (WebSudoSessionException e) {
             webSudoManager.enforceWebSudoProtection(request, response);
             return;
@@ -64,6 +70,26 @@ public class GlobalConfiguration extends HttpServlet {
             } catch (FileUploadException e) {
                 throw new ServletException(e);
             }
+            Map<String, List<String>> errors = new HashMap<>();
+            int jobParallelism = positiveNumber(parameters, "job-parallelism", errors);
+            int nodeParallelism = positiveNumber(parameters, "node-parallelism", errors);
+            int queueGlobalLimit = positiveNumber(parameters, "queue-global-limit", errors);
+            int queueNodeLimit = positiveNumber(parameters, "queue-node-limit", errors);
+            int queueProjectLimit = positiveNumber(parameters, "queue-project-limit", errors);
+            int queueRepositoryLimit = positiveNumber(parameters, "queue-repository-limit", errors);
+            long renderCacheSize = nonNegativeNumber(parameters, "render-cache-size", errors);
+            long dependencyCacheSize = nonNegativeNumber(parameters, "dependency-cache-size", errors);
+            long maxOutputSize = positiveNumber(parameters, "max-output-size", errors);
+            long quietPeriod = nonNegativeNumber(parameters, "quiet-period", errors);
+            int degradationWaitingJobs = (int) number(parameters, "degradation-waiting-jobs", 0, Integer.MAX_VALUE,
+                    "Not a number", errors);
+            long degradationWaitTime = nonNegativeNumber(parameters, "degradation-wait-time", errors);
+            if (!errors.isEmpty()) {
+                // nothing is stored, the form is shown again with the errors
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                render(response, "plugin.helmPr.globalConfigurationPage", pageData(errors));
+                return;
+            }
             configuration.setBinaryType("helm", BinaryType.valueOf(parameters.get("helm-binary").get(0).getString().toUpperCase()));
             configuration.setBinaryType("helmfile", BinaryType.valueOf(parameters.get("helmfile-binary").get(0).getString().toUpperCase()));
             configuration.setBinaryType("kustomize", BinaryType.valueOf(parameters.get("kustomize-binary").get(0).getString().toUpperCase()));
@@ -72,6 +98,18 @@ public class GlobalConfiguration extends HttpServlet {
             configuration.setTemplateMode(HelmTemplateMode.valueOf(parameters.get("template-mode").get(0).getString().toUpperCase()));
             configuration.setHelmfileEnvironments(parameters.get("helmfile-environments").get(0).getString());
             configuration.setEnv(parameters.get("env-entries").get(0).getString());
+            configuration.setRenderCacheSize(renderCacheSize);
+            configuration.setDependencyCacheSize(dependencyCacheSize);
+            configuration.setMaxOutputSize(maxOutputSize);
+            configuration.setJobParallelism(jobParallelism);
+            configuration.setNodeParallelism(nodeParallelism);
+            configuration.setQuietPeriod(quietPeriod);
+            configuration.setQueueGlobalLimit(queueGlobalLimit);
+            configuration.setQueueNodeLimit(queueNodeLimit);
+            configuration.setQueueProjectLimit(queueProjectLimit);
+            configuration.setQueueRepositoryLimit(queueRepositoryLimit);
+            configuration.setDegradationWaitingJobs(degradationWaitingJobs);
+            configuration.setDegradationWaitTime(degradationWaitTime);
             if (parameters.get("binary-upload") != null && parameters.get("binary-upload").get(0).getSize() > 0) {
                 configuration.uploadBinary("helm", parameters.get("binary-upload").get(0).getInputStream());
             }
@@ -87,6 +125,41 @@ public class GlobalConfiguration extends HttpServlet {
         }
     }
 
+    private Map<String, Object> pageData(Map<String, List<String>> errors) {
+        return Map.of("configuration", configuration.getGlobalConfiguration(), "queue", renderQueue.getStatistics(),
+                "errors", errors);
+    }
+
+    /**
+     * @return the value of the field (or 1 if it is not a positive number, which is added to the errors)
+     */
+    private static int positiveNumber(Map<String, List<FileItem>> parameters, String field,
+            Map<String, List<String>> errors) {
+        return (int) number(parameters, field, 1, Integer.MAX_VALUE, "Not a positive number", errors);
+    }
+
+    /**
+     * @return the value of the field (or 0 if it is not a number, which is added to the errors)
+     */
+    private static long nonNegativeNumber(Map<String, List<FileItem>> parameters, String field,
+            Map<String, List<String>> errors) {
+        return number(parameters, field, 0, Long.MAX_VALUE, "Not a number", errors);
+    }
+
+    private static long number(Map<String, List<FileItem>> parameters, String field, long minimum, long maximum,
+            String error, Map<String, List<String>> errors) {
+        try {
+            long value = Long.parseLong(parameters.get(field).get(0).getString().trim());
+            if (value >= minimum && value <= maximum) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        errors.put(field, List.of(error));
+        return minimum;
+    }
+
     private void render(HttpServletResponse response, String templateName, Map<String, Object> data)
             throws IOException, ServletException {
         response.setContentType("text/html;charset=UTF-8");
@@ -79,6 +79,18 @@ public class HelmConfiguration {
         configuration.put("kustomizeSystemVersion", getVersion("kustomize", BinaryType.SYSTEM));
         configuration.put("kustomizeEmbeddedVersion", getVersion("kustomize", BinaryType.EMBEDDED));
         configuration.put("kustomizeUploadedVersion", getVersion("kustomize", BinaryType.UPLOADED));
+        configuration.put("renderCacheSize", getRenderCacheSize());
+        configuration.put("dependencyCacheSize", getDependencyCacheSize());
+        configuration.put("maxOutputSize", getMaxOutputSize());
+        configuration.put("jobParallelism", getJobParallelism());
+        configuration.put("nodeParallelism", getNodeParallelism());
+        configuration.put("quietPeriod", getQuietPeriod());
+        configuration.put("queueGlobalLimit", getQueueGlobalLimit());
+        configuration.put("queueNodeLimit", getQueueNodeLimit());
+        configuration.put("queueProjectLimit", getQueueProjectLimit());
+        configuration.put("queueRepositoryLimit", getQueueRepositoryLimit());
+        configuration.put("degradationWaitingJobs", getDegradationWaitingJobs());
+        configuration.put("degradationWaitTime", getDegradationWaitTime());
         configuration.putAll(getConfiguration((Scope) null));
         return unmodifiableMap(configuration);
     }
@@ -242,6 +254,138 @@ public class HelmConfiguration {
         return 600_000;
     }
 
+    /**
+     * @return the size of the node local render cache in megabytes (0 disables the cache)
+     */
+    public long getRenderCacheSize() {
+        return Math.max(0, getLongValue("render-cache-size", 1024));
+    }
+
+    void setRenderCacheSize(long size) {
+        settings.put(KEY_PREFIX + "render-cache-size", Long.toString(size));
+    }
+
+    /**
+     * @return the size of the node local helm dependency cache in megabytes (0 disables the cache)
+     */
+    public long getDependencyCacheSize() {
+        return Math.max(0, getLongValue("dependency-cache-size", 1024));
+    }
+
+    void setDependencyCacheSize(long size) {
+        settings.put(KEY_PREFIX + "dependency-cache-size", Long.toString(size));
+    }
+
+    /**
+     * @return the maximum size of a single rendered file in megabytes (at least 1, larger output is truncated)
+     */
+    public long getMaxOutputSize() {
+        return Math.max(1, getLongValue("max-output-size", 100));
+    }
+
+    void setMaxOutputSize(long size) {
+        settings.put(KEY_PREFIX + "max-output-size", Long.toString(size));
+    }
+
+    /**
+     * @return the maximum number of directories rendered concurrently by a single diff job (at least 1)
+     */
+    public int getJobParallelism() {
+        return (int) Math.max(1, getLongValue("job-parallelism", 4));
+    }
+
+    void setJobParallelism(int parallelism) {
+        settings.put(KEY_PREFIX + "job-parallelism", Integer.toString(parallelism));
+    }
+
+    /**
+     * @return the maximum number of directories rendered concurrently on this node (over all diff jobs, at least 1)
+     */
+    public int getNodeParallelism() {
+        return (int) Math.max(1, getLongValue("node-parallelism", Runtime.getRuntime().availableProcessors()));
+    }
+
+    void setNodeParallelism(int parallelism) {
+        settings.put(KEY_PREFIX + "node-parallelism", Integer.toString(parallelism));
+    }
+
+    /**
+     * @return the seconds to wait after the last change of a pull request before its diff is rendered
+     */
+    public long getQuietPeriod() {
+        return Math.max(0, getLongValue("quiet-period", 30));
+    }
+
+    void setQuietPeriod(long seconds) {
+        settings.put(KEY_PREFIX + "quiet-period", Long.toString(seconds));
+    }
+
+    /**
+     * @return the maximum number of diff jobs running concurrently in the cluster (at least 1)
+     */
+    public int getQueueGlobalLimit() {
+        return (int) Math.max(1, getLongValue("queue-global-limit", 8));
+    }
+
+    void setQueueGlobalLimit(int limit) {
+        settings.put(KEY_PREFIX + "queue-global-limit", Integer.toString(limit));
+    }
+
+    /**
+     * @return the maximum number of diff jobs running concurrently on a single node (at least 1)
+     */
+    public int getQueueNodeLimit() {
+        return (int) Math.max(1, getLongValue("queue-node-limit", 2));
+    }
+
+    void setQueueNodeLimit(int limit) {
+        settings.put(KEY_PREFIX + "queue-node-limit", Integer.toString(limit));
+    }
+
+    /**
+     * @return the maximum number of diff jobs of the repositories of a project running concurrently (at least 1)
+     */
+    public int getQueueProjectLimit() {
+        return (int) Math.max(1, getLongValue("queue-project-limit", 4));
+    }
+
+    void setQueueProjectLimit(int limit) {
+        settings.put(KEY_PREFIX + "queue-project-limit", Integer.toString(limit));
+    }
+
+    /**
+     * @return the maximum number of diff jobs of a repository running concurrently (at least 1)
+     */
+    public int getQueueRepositoryLimit() {
+        return (int) Math.max(1, getLongValue("queue-repository-limit", 2));
+    }
+
+    void setQueueRepositoryLimit(int limit) {
+        settings.put(KEY_PREFIX + "queue-repository-limit", Integer.toString(limit));
+    }
+
+    /**
+     * @return the number of waiting diff jobs from which on new jobs are rendered with reduced fidelity (0 never)
+     */
+    public int getDegradationWaitingJobs() {
+        return (int) Math.max(0, getLongValue("degradation-waiting-jobs", 0));
+    }
+
+    void setDegradationWaitingJobs(int jobs) {
+        settings.put(KEY_PREFIX + "degradation-waiting-jobs", Integer.toString(jobs));
+    }
+
+    /**
+     * @return the seconds a diff job may wait before new jobs are rendered with reduced fidelity (0 never)
+     */
+    public long getDegradationWaitTime() {
+        return Math.max(0, getLongValue("degradation-wait-time", 0));
+    }
+
+    void setDegradationWaitTime(long seconds) {
+        settings.put(KEY_PREFIX + "degradation-wait-time", Long.toString(seconds));
+    }
+
     void setConfiguration(Scope scope, Map<String, String[]> values) {
         if (scope.isProject()) {
             setConfiguration(PROJECT_KEY_PREFIX + scope.getProject().getId(), values);
@@ -330,6 +474,16 @@ public class HelmConfiguration {
         return Boolean.parseBoolean(getSettingsValue(key, scope, Boolean.toString(defaultValue)));
     }
 
+    private long getLongValue(String key, long defaultValue) {
+        String value = getSettingsValue(key, null, Long.toString(defaultValue));
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("invalid number for " + key + ", will use default", e);
+            return defaultValue;
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private <E extends Enum<E>> E getEnumValue(String key, Scope scope, E defaultValue) {
         String value = getSettingsValue(key, scope, defaultValue.name());
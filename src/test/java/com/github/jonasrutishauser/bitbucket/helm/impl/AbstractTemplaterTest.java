@@ -0,0 +1,106 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AbstractTemplaterTest {
+
+    private final RenderedCommit previous = new RenderedCommit("789", "helm", "to", "abc", "def",
+            asList(".", "apps/a", "apps/a/charts/sub", "apps/b"), singleton("apps/b"));
+
+    @Test
+    void reusableDirectories_completelyTemplated() {
+        assertThat(AbstractTemplater.reusableDirectories(asList("apps/a", "apps/b", "apps/c"), previous, "def"))
+                .containsExactly("apps/a");
+    }
+
+    @Test
+    void reusableDirectories_configurationChanged() {
+        assertThat(AbstractTemplater.reusableDirectories(asList("apps/a", "apps/b"), previous, "other")).isEmpty();
+        assertThat(AbstractTemplater.reusableDirectories(asList("apps/a", "apps/b"), null, "def")).isEmpty();
+    }
+
+    @Test
+    void removeChanged() {
+        Set<String> directories = new TreeSet<>(asList(".", "apps/a", "apps/a/charts/sub", "apps/b"));
+
+        AbstractTemplater.removeChanged(directories, emptyMap(),
+                new String[] {"apps/a/values.yaml", "apps/bb/Chart.yaml"});
+
+        assertThat(directories).containsExactly("apps/a/charts/sub", "apps/b");
+    }
+
+    @Test
+    void removeChanged_dependencyChanged() {
+        Set<String> directories = new TreeSet<>(asList("apps/a", "apps/b", "env"));
+
+        AbstractTemplater.removeChanged(directories,
+                Map.of("apps/a", singleton("charts/common"), "env", singleton("charts/other")),
+                new String[] {"charts/common/templates/service.yaml"});
+
+        assertThat(directories).containsExactly("apps/b", "env");
+    }
+
+    @Test
+    void extractedDirectories() {
+        assertThat(AbstractTemplater.extractedDirectories("apps/a", emptySet())).containsExactly("apps/a");
+        assertThat(AbstractTemplater.extractedDirectories("apps/a",
+                new TreeSet<>(asList("charts/common", "charts/common/sub", "apps/a/local"))))
+                .containsExactly("apps/a", "charts/common");
+        assertThat(AbstractTemplater.extractedDirectories("apps/a", singleton("apps"))).containsExactly("apps");
+    }
+
+    @Test
+    void isOutputOf_skipsNestedChart() {
+        Set<String> templated = previous.getDirectories();
+
+        assertThat(AbstractTemplater.isOutputOf("apps/a/default.yaml", "apps/a", templated)).isTrue();
+        assertThat(AbstractTemplater.isOutputOf("apps/a/default/templates/a.yaml", "apps/a", templated)).isTrue();
+        assertThat(AbstractTemplater.isOutputOf("apps/a/charts/sub/default.yaml", "apps/a", templated)).isFalse();
+        assertThat(AbstractTemplater.isOutputOf("apps/a/charts/sub/default.yaml", "apps/a/charts/sub", templated))
+                .isTrue();
+        assertThat(AbstractTemplater.isOutputOf("default.yaml", ".", templated)).isTrue();
+        assertThat(AbstractTemplater.isOutputOf("apps/b/default.yaml", ".", templated)).isFalse();
+    }
+
+    @Test
+    void isOutputOf_withoutNestedDirectories() {
+        assertThat(AbstractTemplater.isOutputOf("apps/a/charts/sub/default.yaml", "apps/a", emptyList())).isTrue();
+        assertThat(AbstractTemplater.isOutputOf("apps/ab/default.yaml", "apps/a", emptyList())).isFalse();
+    }
+
+    @Test
+    void concatenate_inWrittenOrder(@TempDir Path targetFolder) throws IOException {
+        Path service = targetFolder.resolve("second/app/templates/service.yaml");
+        Path deployment = targetFolder.resolve("first/app/templates/deployment.yaml");
+        Path configMap = targetFolder.resolve("first/app/templates/configmap.yaml");
+        Files.createDirectories(service.getParent());
+        Files.createDirectories(deployment.getParent());
+        Files.writeString(service, "---\n# Source: app/templates/service.yaml\nkind: Service\nname: a\n"
+                + "---\n# Source: app/templates/service.yaml\nkind: Service\nname: b\n");
+        Files.writeString(deployment, "---\n# Source: app/templates/deployment.yaml\nkind: Deployment\n");
+        Files.writeString(configMap, "---\n# Source: app/templates/configmap.yaml\nkind: ConfigMap\n");
+        Path targetFile = targetFolder.resolveSibling(targetFolder.getFileName() + ".yaml");
+
+        AbstractTemplater.concatenate(targetFolder, asList(service, deployment, service), targetFile);
+
+        assertThat(Files.readString(targetFile)).isEqualTo("---\n# Source: app/templates/service.yaml\n"
+                + "kind: Service\nname: a\n---\n# Source: app/templates/deployment.yaml\nkind: Deployment\n"
+                + "---\n# Source: app/templates/service.yaml\nkind: Service\nname: b\n"
+                + "---\n# Source: app/templates/configmap.yaml\nkind: ConfigMap\n");
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.atlassian.bitbucket.comment.CommentService;
+import com.atlassian.bitbucket.nav.NavBuilder;
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.util.Operation;
+
+class AddDiffJobRunnerTest {
+
+    private final NavBuilder navBuilder = mock(NavBuilder.class, RETURNS_DEEP_STUBS);
+    private final PullRequest pullRequest = mock(PullRequest.class, RETURNS_DEEP_STUBS);
+    private final PullRequestService prService = mock(PullRequestService.class);
+    private final PullRequestTemplater pullRequestTemplater = mock(PullRequestTemplater.class);
+    private final PluginUser pluginUser = mock(PluginUser.class, RETURNS_DEEP_STUBS);
+
+    private AddDiffJobRunner testee;
+
+    @BeforeEach
+    void createTestee() throws Throwable {
+        EscalatedSecurityContext securityContext = mock(EscalatedSecurityContext.class);
+        when(securityContext.call(any()))
+                .thenAnswer(invocation -> ((Operation<?, ?>) invocation.getArgument(0)).perform());
+        when(pluginUser.impersonating(any()).withPermission(any())).thenReturn(securityContext);
+        when(pluginUser.impersonating(any()).withPermission(any(), any())).thenReturn(securityContext);
+        when(prService.getById(1, 10)).thenReturn(pullRequest);
+        when(pullRequest.getFromRef().getLatestCommit()).thenReturn("from");
+        when(pullRequest.getToRef().getLatestCommit()).thenReturn("to");
+        when(navBuilder.repo(any()).pullRequest(anyLong()).commit("new").since("old").buildAbsolute())
+                .thenReturn("https://bitbucket/diff");
+        testee = new AddDiffJobRunner(prService, mock(CommentService.class), navBuilder, pullRequestTemplater,
+                pluginUser, mock(RenderQueue.class), mock(DiffJobExecutor.class));
+    }
+
+    @Test
+    void render_openPullRequest() {
+        when(pullRequest.isOpen()).thenReturn(true);
+
+        testee.render(entry());
+
+        verify(pullRequestTemplater).addTemplatedCommits(eq(pullRequest), any(), eq(false), any());
+    }
+
+    @Test
+    void render_skipsClosedPullRequest() {
+        when(pullRequest.isOpen()).thenReturn(false);
+
+        testee.render(entry());
+
+        verify(pullRequestTemplater, never()).addTemplatedCommits(any(), any(), anyBoolean(), any());
+    }
+
+    @Test
+    void summary_oneToolWithoutDiff() {
+        assertThat(testee.summary(pullRequest, templated(new String[] {"old"}, singletonList("helm"), emptySet())))
+                .isEqualTo("Helm template generated no diff");
+    }
+
+    @Test
+    void summary_oneToolWithDiff() {
+        assertThat(testee.summary(pullRequest,
+                templated(new String[] {"new", "old"}, singletonList("helm"), singleton("helm"))))
+                        .isEqualTo("Helm template diff generated ([view changes](https://bitbucket/diff))");
+    }
+
+    @Test
+    void summary_bothToolsWithoutDiff() {
+        assertThat(testee.summary(pullRequest,
+                templated(new String[] {"old"}, asList("helm", "helmfile"), emptySet())))
+                        .isEqualTo("Helm and helmfile template generated no diff");
+    }
+
+    @Test
+    void summary_bothToolsWithDiff() {
+        assertThat(testee.summary(pullRequest, templated(new String[] {"new", "old"}, asList("helm", "helmfile"),
+                new TreeSet<>(asList("helm", "helmfile")))))
+                        .isEqualTo("Helm and helmfile template diff generated ([view changes](https://bitbucket/diff))");
+    }
+
+    @Test
+    void summary_oneOfBothToolsWithDiff() {
+        assertThat(testee.summary(pullRequest,
+                templated(new String[] {"new", "old"}, asList("helm", "helmfile"), singleton("helmfile"))))
+                        .isEqualTo("Helmfile template diff generated ([view changes](https://bitbucket/diff)), helm "
+                                + "template generated no diff");
+    }
+
+    @Test
+    void describe() {
+        assertThat(AddDiffJobRunner.describe(singletonList("helm"))).isEqualTo("helm");
+        assertThat(AddDiffJobRunner.describe(asList("helm", "helmfile"))).isEqualTo("helm and helmfile");
+        assertThat(AddDiffJobRunner.describe(asList("helm", "helmfile", "kustomize")))
+                .isEqualTo("helm, helmfile and kustomize");
+    }
+
+    private static RenderQueue.Entry entry() {
+        return new RenderQueue.Entry(1, 1, 10, "from", "to", singletonMap("helm", singleton("chart")), 0, false);
+    }
+
+    private static PullRequestTemplater.TemplatedCommits templated(String[] commits, List<String> tools,
+            Set<String> changedTools) {
+        return new PullRequestTemplater.TemplatedCommits(commits, tools, changedTools);
+    }
+}
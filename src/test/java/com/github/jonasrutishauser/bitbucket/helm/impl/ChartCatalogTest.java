@@ -0,0 +1,264 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryRefsChangedEvent;
+import com.atlassian.bitbucket.i18n.KeyedMessage;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.CommandFailedException;
+import com.atlassian.bitbucket.scm.CommandOutputHandler;
+import com.atlassian.bitbucket.scm.git.command.GitCommand;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitScmCommandBuilder;
+
+class ChartCatalogTest {
+
+    private static final String BRANCH = "refs/heads/main";
+
+    @TempDir
+    Path gitDirectory;
+
+    @TempDir
+    Path catalogDirectory;
+
+    private final Repository repository = mock(Repository.class);
+    private final AbstractTemplater templater = mock(AbstractTemplater.class);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final List<String> executed = new ArrayList<>();
+    private boolean diffTreeFails;
+
+    private ChartCatalog testee;
+
+    @BeforeEach
+    void createTestee() throws Exception {
+        when(repository.getId()).thenReturn(1);
+        when(templater.toolName()).thenReturn("helm");
+        when(templater.markerFilenames()).thenReturn(asList("Chart.yaml", "Chart.lock"));
+        GitCommandBuilderFactory commandBuilderFactory = mock(GitCommandBuilderFactory.class);
+        when(commandBuilderFactory.builder(repository)).thenAnswer(invocation -> gitCommandBuilder());
+        testee = new ChartCatalog(commandBuilderFactory, singletonList(templater), catalogDirectory, executor);
+        git("init", "-q", "-b", "main");
+    }
+
+    @AfterEach
+    void shutdown() {
+        testee.shutdown();
+    }
+
+    @Test
+    void directories_builtFromTree() throws Exception {
+        String commit = commit("Chart.yaml", "apps/a/Chart.yaml", "apps/a/templates/deployment.yaml",
+                "apps/b/values.yaml", "docs/MyChart.yaml");
+
+        assertThat(testee.directories(repository, BRANCH, commit, templater)).containsExactly(".", "apps/a");
+        assertThat(executed).containsExactly("ls-tree -r --name-only -z " + commit);
+    }
+
+    @Test
+    void directories_updatedFromDiffOfMarkers() throws Exception {
+        String first = commit("Chart.yaml", "apps/a/Chart.yaml", "apps/c/Chart.yaml");
+        testee.directories(repository, BRANCH, first, templater);
+        executed.clear();
+        write("apps/a/Chart.yaml", "version: 2");
+        write("apps/b/Chart.yaml", "");
+        delete("Chart.yaml");
+        write("apps/c/templates/service.yaml", "");
+        String second = commit();
+
+        assertThat(testee.directories(repository, BRANCH, second, templater)).containsExactly("apps/a", "apps/b",
+                "apps/c");
+        assertThat(executed).containsExactly("diff-tree -r --name-status --no-renames -z " + first + " " + second
+                + " -- Chart.yaml */Chart.yaml Chart.lock */Chart.lock", //
+                "ls-tree --name-only -z " + second + " -- Chart.yaml Chart.lock");
+    }
+
+    @Test
+    void directories_keptWhileAnyMarkerRemains() throws Exception {
+        String first = commit("apps/a/Chart.yaml", "apps/a/Chart.lock", "apps/b/Chart.lock");
+        testee.directories(repository, BRANCH, first, templater);
+        delete("apps/a/Chart.lock");
+        delete("apps/b/Chart.lock");
+        String second = commit();
+
+        assertThat(testee.directories(repository, BRANCH, second, templater)).containsExactly("apps/a");
+    }
+
+    @Test
+    void directories_storedPerCommit() throws Exception {
+        String commit = commit("apps/a/Chart.yaml");
+        testee.directories(repository, BRANCH, commit, templater);
+        executed.clear();
+
+        assertThat(testee.directories(repository, BRANCH, commit, templater)).containsExactly("apps/a");
+        assertThat(executed).isEmpty();
+    }
+
+    @Test
+    void directories_rebuiltWhenDiffFails() throws Exception {
+        String first = commit("apps/a/Chart.yaml");
+        testee.directories(repository, BRANCH, first, templater);
+        executed.clear();
+        write("apps/b/Chart.yaml", "");
+        String second = commit();
+        diffTreeFails = true;
+
+        assertThat(testee.directories(repository, BRANCH, second, templater)).containsExactly("apps/a", "apps/b");
+        assertThat(executed).contains("ls-tree -r --name-only -z " + second);
+    }
+
+    @Test
+    void onRefsChanged_updatesStoredCatalog() throws Exception {
+        String first = commit("apps/a/Chart.yaml");
+        testee.directories(repository, BRANCH, first, templater);
+        write("apps/b/Chart.yaml", "");
+        String second = commit();
+
+        testee.onRefsChanged(refsChanged(RefChangeType.UPDATE, second));
+        awaitBackground();
+        executed.clear();
+
+        assertThat(testee.directories(repository, BRANCH, second, templater)).containsExactly("apps/a", "apps/b");
+        assertThat(executed).isEmpty();
+    }
+
+    @Test
+    void onRefsChanged_ignoresBranchWithoutCatalog() throws Exception {
+        String commit = commit("apps/a/Chart.yaml");
+
+        testee.onRefsChanged(refsChanged(RefChangeType.ADD, commit));
+        awaitBackground();
+
+        assertThat(executed).isEmpty();
+        assertThat(catalogDirectory.resolve("1")).doesNotExist();
+    }
+
+    @Test
+    void onRefsChanged_deletedBranch() throws Exception {
+        String commit = commit("apps/a/Chart.yaml");
+        testee.directories(repository, BRANCH, commit, templater);
+
+        testee.onRefsChanged(refsChanged(RefChangeType.DELETE, "0000000000000000000000000000000000000000"));
+        awaitBackground();
+
+        assertThat(catalogDirectory.resolve("1")).isEmptyDirectory();
+    }
+
+    @Test
+    void onRepositoryDeleted() throws Exception {
+        String commit = commit("apps/a/Chart.yaml");
+        testee.directories(repository, BRANCH, commit, templater);
+        RepositoryDeletedEvent event = mock(RepositoryDeletedEvent.class);
+        when(event.getRepository()).thenReturn(repository);
+
+        testee.onRepositoryDeleted(event);
+        awaitBackground();
+
+        assertThat(catalogDirectory.resolve("1")).doesNotExist();
+    }
+
+    private RepositoryRefsChangedEvent refsChanged(RefChangeType type, String toHash) {
+        RefChange change = mock(RefChange.class, RETURNS_DEEP_STUBS);
+        when(change.getRef().getId()).thenReturn(BRANCH);
+        when(change.getType()).thenReturn(type);
+        when(change.getToHash()).thenReturn(toHash);
+        RepositoryRefsChangedEvent event = mock(RepositoryRefsChangedEvent.class);
+        when(event.getRepository()).thenReturn(repository);
+        when(event.getRefChanges()).thenReturn(singletonList(change));
+        return event;
+    }
+
+    private void awaitBackground() throws InterruptedException, ExecutionException {
+        executor.submit(() -> {
+        }).get();
+    }
+
+    private GitScmCommandBuilder gitCommandBuilder() {
+        List<String> arguments = new ArrayList<>();
+        GitScmCommandBuilder builder = mock(GitScmCommandBuilder.class);
+        when(builder.command(anyString())).thenAnswer(invocation -> {
+            arguments.add(invocation.getArgument(0));
+            return builder;
+        });
+        when(builder.argument(anyString())).thenAnswer(invocation -> {
+            arguments.add(invocation.getArgument(0));
+            return builder;
+        });
+        when(builder.build(any())).thenAnswer(invocation -> {
+            CommandOutputHandler<?> handler = invocation.getArgument(0);
+            GitCommand<?> command = mock(GitCommand.class);
+            when(command.call()).thenAnswer(call -> run(arguments, handler));
+            return command;
+        });
+        return builder;
+    }
+
+    private Object run(List<String> arguments, CommandOutputHandler<?> handler)
+            throws IOException, InterruptedException {
+        executed.add(String.join(" ", arguments));
+        if (diffTreeFails && "diff-tree".equals(arguments.get(0))) {
+            throw new CommandFailedException(new KeyedMessage("git", "bad object", "bad object"));
+        }
+        List<String> command = new ArrayList<>(asList("git", "-C", gitDirectory.toString()));
+        command.addAll(arguments);
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        handler.process(process.getInputStream());
+        if (process.waitFor() != 0) {
+            throw new CommandFailedException(new KeyedMessage("git", "git failed", "git failed"));
+        }
+        return handler.getOutput();
+    }
+
+    private String commit(String... files) throws IOException, InterruptedException {
+        for (String file : files) {
+            write(file, "");
+        }
+        git("add", "-A");
+        git("-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "--allow-empty", "-m",
+                "commit");
+        return git("rev-parse", "HEAD").trim();
+    }
+
+    private void write(String file, String content) throws IOException {
+        Path path = gitDirectory.resolve(file);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(UTF_8));
+    }
+
+    private void delete(String file) throws IOException {
+        Files.delete(gitDirectory.resolve(file));
+    }
+
+    private String git(String... arguments) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(asList("git", "-C", gitDirectory.toString()));
+        command.addAll(asList(arguments));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), UTF_8);
+        assertThat(process.waitFor()).as(output).isZero();
+        return output;
+    }
+}
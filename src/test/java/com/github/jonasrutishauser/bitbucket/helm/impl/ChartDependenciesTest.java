@@ -0,0 +1,73 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChartDependenciesTest {
+
+    @TempDir
+    Path chartDir;
+
+    @Test
+    void declared() throws IOException {
+        Files.writeString(chartDir.resolve("Chart.yaml"), "apiVersion: v2\n" //
+                + "name: test\n" //
+                + "dependencies:\n" //
+                + "  - name: common\n" //
+                + "    version: \"~2.0\"\n" //
+                + "    repository: https://charts.example.com\n" //
+                + "    tags:\n" //
+                + "      - name: ignored\n" //
+                + "  - name: local\n" //
+                + "    version: 0.1.0\n" //
+                + "    repository: file://../local\n" //
+                + "annotations:\n" //
+                + "  name: other\n");
+
+        assertThat(ChartDependencies.declared(chartDir)).extracting("name", "version", "repository").containsExactly(
+                tuple("common", "~2.0", "https://charts.example.com"), tuple("local", "0.1.0", "file://../local"));
+    }
+
+    @Test
+    void isBuilt_withoutDependencies() throws IOException {
+        Files.writeString(chartDir.resolve("Chart.yaml"), "apiVersion: v2\nname: test\n");
+
+        assertThat(ChartDependencies.isBuilt(chartDir)).isTrue();
+    }
+
+    @Test
+    void isBuilt_withoutLock() throws IOException {
+        Files.writeString(chartDir.resolve("Chart.yaml"),
+                "apiVersion: v2\nname: test\ndependencies:\n- name: common\n  version: 2.0.3\n");
+
+        assertThat(ChartDependencies.isBuilt(chartDir)).isFalse();
+    }
+
+    @Test
+    void isBuilt_archivesMatchLock() throws IOException {
+        Files.writeString(chartDir.resolve("Chart.lock"), "dependencies:\n" //
+                + "- name: common\n" //
+                + "  repository: https://charts.example.com\n" //
+                + "  version: 2.0.3\n" //
+                + "- name: local\n" //
+                + "  repository: file://../local\n" //
+                + "  version: 0.1.0\n" //
+                + "digest: sha256:abc\n");
+        Files.createDirectories(chartDir.resolve("charts/local"));
+        Files.writeString(chartDir.resolve("charts/local/Chart.yaml"), "name: local\n");
+
+        assertThat(ChartDependencies.isBuilt(chartDir)).isFalse();
+
+        Files.write(chartDir.resolve("charts/common-2.0.3.tgz"), new byte[1]);
+
+        assertThat(ChartDependencies.isBuilt(chartDir)).isTrue();
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singleton;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+class ChartDependencyIndexTest {
+
+    private final Set<String> directories = new TreeSet<>(
+            Set.of("charts/common", "apps/a", "apps/a/charts/sub", "apps/b", "env"));
+
+    @Test
+    void affectedDirectories_dependentsOfChangedChart() {
+        Map<String, Set<String>> dependents = new HashMap<>();
+        dependents.put("charts/common", singleton("apps/a"));
+        dependents.put("apps/a", singleton("env"));
+
+        assertThat(ChartDependencyIndex.affectedDirectories(directories, dependents,
+                changed("charts/common/templates"))).containsExactly("apps/a", "charts/common", "env");
+    }
+
+    @Test
+    void affectedDirectories_subchartCollapsedIntoParent() {
+        assertThat(ChartDependencyIndex.affectedDirectories(directories, emptyMap(),
+                changed("apps/a/charts/sub/templates"))).containsExactly("apps/a");
+    }
+
+    @Test
+    void affectedDirectories_unrelatedChange() {
+        assertThat(ChartDependencyIndex.affectedDirectories(directories, emptyMap(), changed("docs"))).isEmpty();
+    }
+
+    @Test
+    void dependencies_transitive() {
+        Map<String, Set<String>> dependents = new HashMap<>();
+        dependents.put("charts/common", Set.of("apps/a", "apps/b"));
+        dependents.put("charts/lib", singleton("charts/common"));
+        dependents.put("apps/a", singleton("env"));
+
+        assertThat(ChartDependencyIndex.dependencies("env", dependents)).containsExactly("apps/a", "charts/common",
+                "charts/lib");
+        assertThat(ChartDependencyIndex.dependencies("apps/b", dependents)).containsExactly("charts/common",
+                "charts/lib");
+        assertThat(ChartDependencyIndex.dependencies("charts/lib", dependents)).isEmpty();
+    }
+
+    @Test
+    void resolve() {
+        assertThat(ChartDependencyIndex.resolve("apps/a", "../../charts/common")).isEqualTo("charts/common");
+        assertThat(ChartDependencyIndex.resolve(".", "./charts/common")).isEqualTo("charts/common");
+        assertThat(ChartDependencyIndex.resolve("apps", "..")).isEqualTo(".");
+        assertThat(ChartDependencyIndex.resolve("apps", "../..")).isNull();
+    }
+
+    private static DirectoryTrie changed(String directory) {
+        DirectoryTrie trie = new DirectoryTrie();
+        String[] components = directory.split("/");
+        trie.add(components, components.length);
+        return trie;
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+class DependencyCacheTest {
+
+    private final HelmConfiguration configuration = mock(HelmConfiguration.class);
+
+    @TempDir
+    Path cacheDir;
+
+    @TempDir
+    Path workDir;
+
+    private DependencyCache testee;
+
+    @BeforeEach
+    void createTestee() {
+        when(configuration.getDependencyCacheSize()).thenReturn(1l);
+        testee = new DependencyCache(configuration, cacheDir);
+    }
+
+    @Test
+    void key_withoutLock() throws IOException {
+        Path chartDir = chart("chart", "1.0.0");
+        Files.delete(chartDir.resolve("Chart.lock"));
+
+        assertThat(testee.key(chartDir)).isEmpty();
+    }
+
+    @Test
+    void key_dependsOnLocalDependency() throws IOException {
+        Path chartDir = chart("chart", "1.0.0");
+        String key = testee.key(chartDir).get();
+
+        assertThat(testee.key(chart("other", "1.0.0"))).contains(key);
+
+        Files.writeString(workDir.resolve("local/values.yaml"), "changed: true");
+
+        assertThat(testee.key(chartDir)).isPresent().doesNotHaveValue(key);
+    }
+
+    @Test
+    void restore_storedArchives() throws IOException {
+        Path chartDir = chart("chart", "1.0.0");
+        String key = testee.key(chartDir).get();
+        Files.createDirectories(chartDir.resolve("charts"));
+        Files.writeString(chartDir.resolve("charts/common-1.0.0.tgz"), "common");
+        Files.writeString(chartDir.resolve("charts/local-0.1.0.tgz"), "local");
+
+        testee.store(key, chartDir, workDir.resolve("staging"));
+
+        Path otherDir = chart("other", "1.0.0");
+        assertThat(testee.restore(key, otherDir)).isTrue();
+        assertThat(otherDir.resolve("charts/common-1.0.0.tgz")).hasContent("common");
+        assertThat(otherDir.resolve("charts/local-0.1.0.tgz")).hasContent("local");
+        assertThat(ChartDependencies.isBuilt(otherDir)).isTrue();
+    }
+
+    @Test
+    void store_incompleteBuild() throws IOException {
+        Path chartDir = chart("chart", "1.0.0");
+        String key = testee.key(chartDir).get();
+        Files.createDirectories(chartDir.resolve("charts"));
+        Files.writeString(chartDir.resolve("charts/common-1.0.0.tgz"), "common");
+
+        testee.store(key, chartDir, workDir.resolve("staging"));
+
+        assertThat(testee.restore(key, chart("other", "1.0.0"))).isFalse();
+    }
+
+    private Path chart(String name, String commonVersion) throws IOException {
+        Path local = workDir.resolve("local");
+        if (!Files.isDirectory(local)) {
+            Files.createDirectories(local);
+            Files.writeString(local.resolve("Chart.yaml"), "apiVersion: v2\nname: local\nversion: 0.1.0\n");
+        }
+        Path chartDir = workDir.resolve(name);
+        Files.createDirectories(chartDir);
+        Files.writeString(chartDir.resolve("Chart.lock"), "dependencies:\n" //
+                + "- name: common\n" //
+                + "  repository: https://charts.example.com\n" //
+                + "  version: " + commonVersion + "\n" //
+                + "- name: local\n" //
+                + "  repository: file://../local\n" //
+                + "  version: 0.1.0\n");
+        return chartDir;
+    }
+
+}
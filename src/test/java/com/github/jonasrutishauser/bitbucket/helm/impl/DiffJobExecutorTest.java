@@ -0,0 +1,137 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+class DiffJobExecutorTest {
+
+    private final HelmConfiguration configuration = mock(HelmConfiguration.class);
+    private final RenderQueue renderQueue = mock(RenderQueue.class);
+
+    private DiffJobExecutor testee;
+
+    @BeforeEach
+    void createTestee() {
+        when(configuration.getQueueNodeLimit()).thenReturn(2);
+        when(renderQueue.claim()).thenReturn(Optional.empty());
+        when(renderQueue.completeAndClaim(any())).thenReturn(Optional.empty());
+        testee = new DiffJobExecutor(configuration, renderQueue);
+    }
+
+    @AfterEach
+    void shutdown() {
+        testee.shutdown();
+    }
+
+    @Test
+    void dispatch_rendersOnPluginThreads() throws InterruptedException {
+        RenderQueue.Entry first = entry(10);
+        RenderQueue.Entry second = entry(11);
+        when(renderQueue.claim()).thenReturn(Optional.of(first), Optional.empty());
+        when(renderQueue.completeAndClaim(first)).thenReturn(Optional.of(second));
+        List<String> threads = new CopyOnWriteArrayList<>();
+        CountDownLatch rendered = new CountDownLatch(2);
+        testee.start(entry -> {
+            threads.add(Thread.currentThread().getName());
+            rendered.countDown();
+        });
+
+        testee.dispatch();
+
+        assertThat(rendered.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(threads).allMatch(name -> name.startsWith("helm-pr-diff-job-"));
+    }
+
+    @Test
+    void dispatch_limitedByNodeLimit() throws InterruptedException {
+        when(renderQueue.claim()).thenAnswer(invocation -> Optional.of(entry(10)));
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        List<RenderQueue.Entry> rendered = new CopyOnWriteArrayList<>();
+        testee.start(entry -> {
+            rendered.add(entry);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        testee.dispatch();
+        testee.dispatch();
+        testee.dispatch();
+
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(rendered).hasSize(2);
+        release.countDown();
+    }
+
+    @Test
+    void dispatch_completesJobFailedWithError() {
+        RenderQueue.Entry failing = entry(10);
+        when(renderQueue.claim()).thenReturn(Optional.of(failing), Optional.empty());
+        testee.start(entry -> {
+            throw new StackOverflowError("test");
+        });
+
+        testee.dispatch();
+
+        verify(renderQueue, timeout(10_000)).complete(failing);
+        verify(renderQueue, never()).completeAndClaim(any());
+    }
+
+    @Test
+    void shutdown_releasesClaimedJobs() {
+        testee.start(entry -> {});
+
+        testee.shutdown();
+
+        verify(renderQueue).release();
+    }
+
+    @Test
+    void shutdown_keepsInterruptedJobClaimed() throws InterruptedException {
+        when(renderQueue.claim()).thenReturn(Optional.of(entry(10)), Optional.empty());
+        CountDownLatch started = new CountDownLatch(1);
+        testee.start(entry -> {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        testee.dispatch();
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        testee.shutdown();
+
+        verify(renderQueue, never()).completeAndClaim(any());
+        verify(renderQueue).release();
+    }
+
+    private static RenderQueue.Entry entry(long pullRequestId) {
+        return new RenderQueue.Entry(1, 1, pullRequestId, "from", "to", singletonMap("helm", singleton("chart")), 0,
+                false);
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.jonasrutishauser.bitbucket.helm.impl.FastImportCommandHandler.Blob;
+import com.github.jonasrutishauser.bitbucket.helm.impl.FastImportCommandHandler.Commit;
+
+class FastImportCommandHandlerTest {
+
+    @TempDir
+    Path renderedDir;
+
+    @Test
+    void blobId() throws IOException {
+        Files.writeString(renderedDir.resolve("empty.yaml"), "");
+        Files.writeString(renderedDir.resolve("test.yaml"), "kind: A\n");
+
+        assertThat(FastImportCommandHandler.blobId(renderedDir.resolve("empty.yaml")))
+                .isEqualTo("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391");
+        assertThat(FastImportCommandHandler.blobId(renderedDir.resolve("test.yaml")))
+                .isEqualTo("51047503645803f909ff3801d304ffecfd903b12");
+    }
+
+    @Test
+    void process_writesEveryBlobOnce() throws IOException {
+        Path file = renderedDir.resolve("test.yaml");
+        Files.writeString(file, "kind: A\n");
+        Blob blob = new Blob(FastImportCommandHandler.blobId(file), file);
+        SortedMap<String, Blob> toTree = new TreeMap<>();
+        toTree.put("chart/default.yaml", blob);
+        toTree.put("other/default.yaml", new Blob("3367afdbbf91e638efe983616377c60477cc6612", null));
+        SortedMap<String, Blob> fromTree = new TreeMap<>(toTree);
+        fromTree.put("chart/test.yaml", blob);
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+
+        new FastImportCommandHandler("refs/heads/master", "A <a@b> 0 +0000",
+                asList(new Commit("to", toTree), new Commit("from", fromTree))).process(input);
+
+        assertThat(input.toString(UTF_8)).isEqualTo("blob\nmark :1\ndata 8\nkind: A\n\n" //
+                + "commit refs/heads/master\nmark :2\nauthor A <a@b> 0 +0000\ncommitter A <a@b> 0 +0000\n" //
+                + "data 2\nto\ndeleteall\n" //
+                + "M 100644 :1 chart/default.yaml\n" //
+                + "M 100644 3367afdbbf91e638efe983616377c60477cc6612 other/default.yaml\n\n" //
+                + "commit refs/heads/master\nmark :3\nauthor A <a@b> 0 +0000\ncommitter A <a@b> 0 +0000\n" //
+                + "data 4\nfrom\nfrom :2\ndeleteall\n" //
+                + "M 100644 :1 chart/default.yaml\n" //
+                + "M 100644 :1 chart/test.yaml\n" //
+                + "M 100644 3367afdbbf91e638efe983616377c60477cc6612 other/default.yaml\n\n" //
+                + "done\n");
+    }
+
+}
@@ -1,38 +1,27 @@
 package com.github.jonasrutishauser.bitbucket.helm.impl;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
-import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Optional;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
-import org.mockito.ArgumentCaptor;
 
-import com.atlassian.bitbucket.io.IoConsumer;
-import com.atlassian.bitbucket.scm.git.worktree.GitWorkTree;
 import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
 
 class HelmTemplaterTest {
 
     @Test
-    void templateSingleFileValid(@TempDir Path helmDirectory, @TempDir Path cacheDir) throws IOException {
+    void templateSingleFileValid(@TempDir Path helmDirectory, @TempDir Path cacheDir, @TempDir Path targetDir)
+            throws IOException {
         HelmTemplater testee = createTestee();
-        GitWorkTree targetWorkTree = mock(GitWorkTree.class, RETURNS_DEEP_STUBS);
 
         Files.write(helmDirectory.resolve("Chart.yaml"), Arrays.asList( //
                 "apiVersion: v2", //
@@ -43,48 +32,38 @@ class HelmTemplaterTest {
                 "apiVersion: test/v2", //
                 "name: test"));
 
-        testee.templateSingleFile(null, helmDirectory, targetWorkTree, Paths.get("test", "default.yaml"), cacheDir,
-                Optional.empty());
+        boolean successful = testee.templateSingleFile(null, helmDirectory, targetDir.resolve("test/default.yaml"),
+                cacheDir, Optional.empty());
 
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<IoConsumer<Writer>> captor = ArgumentCaptor.forClass(IoConsumer.class);
-        verify(targetWorkTree).mkdir("test");
-        verify(targetWorkTree).write(eq("test/default.yaml"), eq(UTF_8), captor.capture());
-        StringWriter stringWriter = new StringWriter();
-        captor.getValue().accept(stringWriter);
-        assertThat(stringWriter.toString()).contains( //
+        assertThat(successful).isTrue();
+        assertThat(Files.readString(targetDir.resolve("test/default.yaml"))).contains( //
                 "# Source: test/templates/test.yaml", //
                 "apiVersion: test/v2", //
                 "name: test");
     }
 
     @Test
-    void templateSingleFileInvalid(@TempDir Path helmDirectory, @TempDir Path cacheDir) throws IOException {
+    void templateSingleFileInvalid(@TempDir Path helmDirectory, @TempDir Path cacheDir, @TempDir Path targetDir)
+            throws IOException {
         HelmTemplater testee = createTestee();
-        GitWorkTree targetWorkTree = mock(GitWorkTree.class, RETURNS_DEEP_STUBS);
 
         Files.write(helmDirectory.resolve("Chart.yaml"), Arrays.asList( //
                 "apiVersion: v2", //
                 "name: test", //
                 "version: 1.0.0aaaa"));
 
-        testee.templateSingleFile(null, helmDirectory, targetWorkTree, Paths.get("test", "default.yaml"), cacheDir,
-                Optional.empty());
+        boolean successful = testee.templateSingleFile(null, helmDirectory, targetDir.resolve("test/default.yaml"),
+                cacheDir, Optional.empty());
 
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<IoConsumer<Writer>> captor = ArgumentCaptor.forClass(IoConsumer.class);
-        verify(targetWorkTree).mkdir("test");
-        verify(targetWorkTree).write(eq("test/default.yaml"), eq(UTF_8), captor.capture());
-        StringWriter stringWriter = new StringWriter();
-        captor.getValue().accept(stringWriter);
-        assertThat(stringWriter.toString()).contains("1.0.0aaaa").doesNotContain("# Source: ");
+        assertThat(successful).isFalse();
+        assertThat(Files.readString(targetDir.resolve("test/default.yaml"))) //
+                .contains("1.0.0aaaa").doesNotContain("# Source: ");
     }
 
     @Test
-    void templateUseOutputDirValid(@TempDir Path helmDirectory, @TempDir Path outputDir, @TempDir Path cacheDir)
-            throws IOException {
+    void templateUseOutputDirValid(@TempDir Path helmDirectory, @TempDir Path outputDir, @TempDir Path cacheDir,
+            @TempDir Path targetDir) throws IOException {
         HelmTemplater testee = createTestee();
-        GitWorkTree targetWorkTree = mock(GitWorkTree.class, RETURNS_DEEP_STUBS);
 
         Files.write(helmDirectory.resolve("Chart.yaml"), Arrays.asList( //
                 "apiVersion: v2", //
@@ -95,42 +74,92 @@ class HelmTemplaterTest {
                 "apiVersion: test/v2", //
                 "name: test"));
 
-        testee.templateUseOutputDir(null, helmDirectory, targetWorkTree, Paths.get("test", "default"), outputDir,
-                cacheDir, Optional.empty());
+        boolean successful = testee.templateUseOutputDir(null, helmDirectory, targetDir.resolve("test/default"),
+                outputDir, cacheDir, Optional.empty());
 
-        verify(targetWorkTree, atLeastOnce()).mkdir("test/default/templates");
-        verify(targetWorkTree).writeFrom(eq("test/default/templates/test.yaml"), eq(UTF_8), any());
+        assertThat(successful).isTrue();
+        assertThat(targetDir.resolve("test/default/templates/test.yaml")).isRegularFile();
     }
 
     @Test
-    void templateUseOutputDirInvalid(@TempDir Path helmDirectory, @TempDir Path outputDir, @TempDir Path cacheDir)
-            throws IOException {
+    void templateUseOutputDirInvalid(@TempDir Path helmDirectory, @TempDir Path outputDir, @TempDir Path cacheDir,
+            @TempDir Path targetDir) throws IOException {
         HelmTemplater testee = createTestee();
-        GitWorkTree targetWorkTree = mock(GitWorkTree.class, RETURNS_DEEP_STUBS);
 
         Files.write(helmDirectory.resolve("Chart.yaml"), Arrays.asList( //
                 "apiVersion: v2", //
                 "name: test", //
                 "version: 1.0.0aaaa"));
 
-        testee.templateUseOutputDir(null, helmDirectory, targetWorkTree, Paths.get("test", "default"), outputDir,
-                cacheDir, Optional.empty());
+        boolean successful = testee.templateUseOutputDir(null, helmDirectory, targetDir.resolve("test/default"),
+                outputDir, cacheDir, Optional.empty());
+
+        assertThat(successful).isFalse();
+        assertThat(Files.readString(targetDir.resolve("test/default/error.txt"))) //
+                .contains("1.0.0aaaa").doesNotContain("# Source: ");
+    }
 
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<IoConsumer<Writer>> captor = ArgumentCaptor.forClass(IoConsumer.class);
-        verify(targetWorkTree).mkdir("test/default");
-        verify(targetWorkTree).write(eq("test/default/error.txt"), eq(UTF_8), captor.capture());
-        StringWriter stringWriter = new StringWriter();
-        captor.getValue().accept(stringWriter);
-        assertThat(stringWriter.toString()).contains("1.0.0aaaa").doesNotContain("# Source: ");
+    @Test
+    void templateBothMatchesUseOutputDir(@TempDir Path helmDirectory, @TempDir Path outputDir,
+            @TempDir Path cacheDir, @TempDir Path targetDir) throws IOException {
+        HelmTemplater testee = createTestee();
+
+        Files.write(helmDirectory.resolve("Chart.yaml"), Arrays.asList( //
+                "apiVersion: v2", //
+                "name: test", //
+                "version: 1.0.0"));
+        Files.createDirectory(helmDirectory.resolve("templates"));
+        Files.write(helmDirectory.resolve("templates").resolve("test.yaml"), Arrays.asList( //
+                "apiVersion: test/v2", //
+                "name: test", //
+                "---", //
+                "apiVersion: test/v2", //
+                "name: second"));
+        Files.write(helmDirectory.resolve("templates").resolve("other.yaml"), Arrays.asList( //
+                "apiVersion: test/v1", //
+                "name: other"));
+
+        boolean successful = testee.templateBoth(null, helmDirectory, targetDir.resolve("both/default"),
+                targetDir.resolve("both/default.yaml"), outputDir, cacheDir, Optional.empty());
+        testee.templateUseOutputDir(null, helmDirectory, targetDir.resolve("dir/default"), outputDir, cacheDir,
+                Optional.empty());
+
+        assertThat(successful).isTrue();
+        assertThat(Files.readString(targetDir.resolve("both/default.yaml"))).contains( //
+                "# Source: test/templates/test.yaml", //
+                "# Source: test/templates/other.yaml");
+        assertThat(targetDir.resolve("both/default/templates/test.yaml"))
+                .hasSameTextualContentAs(targetDir.resolve("dir/default/templates/test.yaml"));
+        assertThat(targetDir.resolve("both/default/templates/other.yaml"))
+                .hasSameTextualContentAs(targetDir.resolve("dir/default/templates/other.yaml"));
+    }
+
+    @Test
+    void localDependencies(@TempDir Path helmDirectory) throws IOException {
+        HelmTemplater testee = createTestee();
+
+        Files.write(helmDirectory.resolve("Chart.yaml"), Arrays.asList( //
+                "apiVersion: v2", //
+                "name: test", //
+                "version: 1.0.0", //
+                "dependencies:", //
+                "  - name: common", //
+                "    version: 1.0.0", //
+                "    repository: file://../common", //
+                "  - name: nginx", //
+                "    version: 1.0.0", //
+                "    repository: https://charts.bitnami.com/bitnami"));
+
+        assertThat(testee.localDependencies(helmDirectory.resolve("Chart.yaml"))).containsExactly("../common");
     }
 
     private HelmTemplater createTestee() {
         HelmConfiguration configuration = mock(HelmConfiguration.class);
-        HelmTemplater testee = new HelmTemplater(configuration, null, null, null);
+        HelmTemplater testee = new HelmTemplater(configuration, null, null, null, null);
         when(configuration.getHelmBinary()).thenReturn(getClass().getResource("/binaries/helm").getPath());
         when(configuration.getDefaultValues(any())).thenReturn("");
         when(configuration.getExecutionTimeout()).thenReturn(10_000l);
+        when(configuration.getMaxOutputSize()).thenReturn(10l);
         return testee;
     }
 }
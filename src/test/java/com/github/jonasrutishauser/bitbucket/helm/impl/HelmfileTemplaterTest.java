@@ -1,38 +1,26 @@
 package com.github.jonasrutishauser.bitbucket.helm.impl;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
-import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Optional;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
-import org.mockito.ArgumentCaptor;
 
-import com.atlassian.bitbucket.io.IoConsumer;
-import com.atlassian.bitbucket.scm.git.worktree.GitWorkTree;
 import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
 
 class HelmfileTemplaterTest {
 
     @Test
-    void templateSingleFileValid(@TempDir Path helmfileDirectory, @TempDir Path cacheDir) throws IOException {
+    void templateSingleFileValid(@TempDir Path helmfileDirectory, @TempDir Path cacheDir, @TempDir Path targetDir)
+            throws IOException {
         HelmfileTemplater testee = createTestee();
-        GitWorkTree targetWorkTree = mock(GitWorkTree.class, RETURNS_DEEP_STUBS);
 
         Files.write(helmfileDirectory.resolve("helmfile.yaml"), Arrays.asList( //
                 "releases:", //
@@ -41,22 +29,17 @@ class HelmfileTemplaterTest {
                 "  chart: oci://registry-1.docker.io/bitnamicharts/nginx", //
                 "  version: 15.5.1"));
 
-        testee.templateSingleFile(null, helmfileDirectory, targetWorkTree, Paths.get("test", "default.yaml"), cacheDir,
-                Optional.empty());
+        boolean successful = testee.templateSingleFile(null, helmfileDirectory, targetDir.resolve("test/default.yaml"),
+                cacheDir, Optional.empty());
 
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<IoConsumer<Writer>> captor = ArgumentCaptor.forClass(IoConsumer.class);
-        verify(targetWorkTree).mkdir("test");
-        verify(targetWorkTree).write(eq("test/default.yaml"), eq(UTF_8), captor.capture());
-        StringWriter stringWriter = new StringWriter();
-        captor.getValue().accept(stringWriter);
-        assertThat(stringWriter.toString()).contains("# Source: ");
+        assertThat(successful).isTrue();
+        assertThat(Files.readString(targetDir.resolve("test/default.yaml"))).contains("# Source: ");
     }
 
     @Test
-    void templateSingleFileInvalid(@TempDir Path helmfileDirectory, @TempDir Path cacheDir) throws IOException {
+    void templateSingleFileInvalid(@TempDir Path helmfileDirectory, @TempDir Path cacheDir, @TempDir Path targetDir)
+            throws IOException {
         HelmfileTemplater testee = createTestee();
-        GitWorkTree targetWorkTree = mock(GitWorkTree.class, RETURNS_DEEP_STUBS);
 
         Files.write(helmfileDirectory.resolve("helmfile.yaml"), Arrays.asList( //
                 "releases:", //
@@ -65,22 +48,18 @@ class HelmfileTemplaterTest {
                 "  chart: oci://registry-1.docker.io/bitnamicharts/nginx", //
                 "  version: 15.5.1"));
 
-        testee.templateSingleFile(null, helmfileDirectory, targetWorkTree, Paths.get("test", "default.yaml"), cacheDir,
-                Optional.of("no-such-env"));
+        boolean successful = testee.templateSingleFile(null, helmfileDirectory, targetDir.resolve("test/default.yaml"),
+                cacheDir, Optional.of("no-such-env"));
 
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<IoConsumer<Writer>> captor = ArgumentCaptor.forClass(IoConsumer.class);
-        verify(targetWorkTree).mkdir("test");
-        verify(targetWorkTree).write(eq("test/default.yaml"), eq(UTF_8), captor.capture());
-        StringWriter stringWriter = new StringWriter();
-        captor.getValue().accept(stringWriter);
-        assertThat(stringWriter.toString()).contains("no-such-env").doesNotContain("# Source: ");
+        assertThat(successful).isFalse();
+        assertThat(Files.readString(targetDir.resolve("test/default.yaml"))) //
+                .contains("no-such-env").doesNotContain("# Source: ");
     }
 
     @Test
-    void templateUseOutputDirValid(@TempDir Path helmfileDirectory, @TempDir Path outputDir, @TempDir Path cacheDir) throws IOException {
+    void templateUseOutputDirValid(@TempDir Path helmfileDirectory, @TempDir Path outputDir, @TempDir Path cacheDir, @TempDir Path targetDir)
+            throws IOException {
         HelmfileTemplater testee = createTestee();
-        GitWorkTree targetWorkTree = mock(GitWorkTree.class, RETURNS_DEEP_STUBS);
 
         Files.write(helmfileDirectory.resolve("helmfile.yaml"), Arrays.asList( //
                 "releases:", //
@@ -89,18 +68,17 @@ class HelmfileTemplaterTest {
                 "  chart: oci://registry-1.docker.io/bitnamicharts/nginx", //
                 "  version: 15.5.1"));
 
-        testee.templateUseOutputDir(null, helmfileDirectory, targetWorkTree, Paths.get("test", "default"), outputDir,
-                cacheDir, Optional.empty());
+        boolean successful = testee.templateUseOutputDir(null, helmfileDirectory, targetDir.resolve("test/default"),
+                outputDir, cacheDir, Optional.empty());
 
-        verify(targetWorkTree, atLeastOnce()).mkdir("test/default/test/nginx/templates");
-        verify(targetWorkTree).writeFrom(eq("test/default/test/nginx/templates/svc.yaml"), eq(UTF_8), any());
+        assertThat(successful).isTrue();
+        assertThat(targetDir.resolve("test/default/test/nginx/templates/svc.yaml")).isRegularFile();
     }
 
     @Test
-    void templateUseOutputDirInvalid(@TempDir Path helmfileDirectory, @TempDir Path outputDir, @TempDir Path cacheDir)
-            throws IOException {
+    void templateUseOutputDirInvalid(@TempDir Path helmfileDirectory, @TempDir Path outputDir, @TempDir Path cacheDir,
+            @TempDir Path targetDir) throws IOException {
         HelmfileTemplater testee = createTestee();
-        GitWorkTree targetWorkTree = mock(GitWorkTree.class, RETURNS_DEEP_STUBS);
 
         Files.write(helmfileDirectory.resolve("helmfile.yaml"), Arrays.asList( //
                 "releases:", //
@@ -109,16 +87,45 @@ class HelmfileTemplaterTest {
                 "  chart: oci://registry-1.docker.io/bitnamicharts/nginx", //
                 "  version: 15.5.1"));
 
-        testee.templateUseOutputDir(null, helmfileDirectory, targetWorkTree, Paths.get("test", "default"), outputDir,
-                cacheDir, Optional.of("no-such-env"));
+        boolean successful = testee.templateUseOutputDir(null, helmfileDirectory, targetDir.resolve("test/default"),
+                outputDir, cacheDir, Optional.of("no-such-env"));
+
+        assertThat(successful).isFalse();
+        assertThat(Files.readString(targetDir.resolve("test/default/error.txt"))) //
+                .contains("no-such-env").doesNotContain("# Source: ");
+    }
 
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<IoConsumer<Writer>> captor = ArgumentCaptor.forClass(IoConsumer.class);
-        verify(targetWorkTree).mkdir("test/default");
-        verify(targetWorkTree).write(eq("test/default/error.txt"), eq(UTF_8), captor.capture());
-        StringWriter stringWriter = new StringWriter();
-        captor.getValue().accept(stringWriter);
-        assertThat(stringWriter.toString()).contains("no-such-env").doesNotContain("# Source: ");
+    @Test
+    void localDependencies(@TempDir Path helmfileDirectory) throws IOException {
+        HelmfileTemplater testee = createTestee();
+
+        Files.write(helmfileDirectory.resolve("helmfile.yaml"), Arrays.asList( //
+                "releases:", //
+                "  - name: first", //
+                "    chart: ../charts/first # local", //
+                "  - name: second", //
+                "    chart: \"./second\"", //
+                "  - chart: bitnami/nginx", //
+                "    name: remote"));
+
+        assertThat(testee.localDependencies(helmfileDirectory.resolve("helmfile.yaml")))
+                .containsExactly("../charts/first", "./second");
+    }
+
+    @Test
+    void writtenFiles(@TempDir Path outputDir, @TempDir Path targetDir) throws IOException {
+        Path logFile = targetDir.resolve("default.yaml");
+        Files.write(logFile, Arrays.asList( //
+                "wrote " + outputDir + "/second/app/templates/service.yaml", //
+                "Adding repo bitnami https://charts.bitnami.com/bitnami", //
+                "wrote " + outputDir + "/first/app/templates/deployment.yaml", //
+                "wrote /elsewhere/app/templates/service.yaml", //
+                "wrote " + outputDir + "/second/app/templates/service.yaml"));
+
+        assertThat(HelmfileTemplater.writtenFiles(logFile, outputDir, targetDir.resolve("default"))).containsExactly(
+                targetDir.resolve("default/second/app/templates/service.yaml"),
+                targetDir.resolve("default/first/app/templates/deployment.yaml"),
+                targetDir.resolve("default/second/app/templates/service.yaml"));
     }
 
     private HelmfileTemplater createTestee() {
@@ -128,6 +135,7 @@ class HelmfileTemplaterTest {
         when(configuration.getHelmBinary()).thenReturn(getClass().getResource("/binaries/helm").getPath());
         when(configuration.getKustomizeBinary()).thenReturn(getClass().getResource("/binaries/kustomize").getPath());
         when(configuration.getExecutionTimeout()).thenReturn(10_000l);
+        when(configuration.getMaxOutputSize()).thenReturn(10l);
         return testee;
     }
 }
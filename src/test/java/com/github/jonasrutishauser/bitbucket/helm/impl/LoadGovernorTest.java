@@ -0,0 +1,141 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+class LoadGovernorTest {
+
+    private final HelmConfiguration configuration = mock(HelmConfiguration.class);
+    private final AtomicLong time = new AtomicLong();
+
+    @TempDir
+    Path proc;
+    @TempDir
+    Path cgroup;
+
+    private LoadGovernor testee;
+
+    @BeforeEach
+    void createTestee() throws IOException {
+        when(configuration.getNodeParallelism()).thenReturn(8);
+        Files.writeString(proc.resolve("stat"), "cpu  400 0 300 9000 0 0 0 0 0 0\n" //
+                + "cpu0 100 0 75 2250 0 0 0 0 0 0\ncpu1 100 0 75 2250 0 0 0 0 0 0\n" //
+                + "cpu2 100 0 75 2250 0 0 0 0 0 0\ncpu3 100 0 75 2250 0 0 0 0 0 0\nintr 12345\n");
+        Files.writeString(proc.resolve("meminfo"), "MemTotal:       16000000 kB\nMemAvailable:    8000000 kB\n");
+        testee = new LoadGovernor(configuration, proc, cgroup, time::get);
+    }
+
+    @Test
+    void parallelism_withoutProc() {
+        testee = new LoadGovernor(configuration, proc.resolve("missing"), cgroup.resolve("missing"), time::get);
+
+        assertThat(testee.parallelism()).isEqualTo(8);
+    }
+
+    @Test
+    void parallelism_highLoadOfHostCpus() throws IOException {
+        loadAverage(3.8);
+
+        assertThat(testee.parallelism()).isEqualTo(4);
+        assertThat(testee.parallelism()).as("not yet evaluated again").isEqualTo(4);
+        nextEvaluation();
+        assertThat(testee.parallelism()).isEqualTo(2);
+        nextEvaluation();
+        nextEvaluation();
+        assertThat(testee.parallelism()).isEqualTo(1);
+    }
+
+    @Test
+    void parallelism_cpuPressureOfCgroup() throws IOException {
+        loadAverage(0.4);
+        Files.writeString(cgroup.resolve("cpu.pressure"),
+                "some avg10=42.50 avg60=30.00 avg300=10.00 total=123456789\n"
+                        + "full avg10=0.00 avg60=0.00 avg300=0.00 total=0\n");
+
+        assertThat(testee.parallelism()).isEqualTo(4);
+    }
+
+    @Test
+    void parallelism_throttledCgroup() throws IOException {
+        loadAverage(0.4);
+        throttling(100, 0);
+        assertThat(testee.parallelism()).as("no throttling known yet").isEqualTo(8);
+
+        throttling(200, 60);
+        nextEvaluation();
+        assertThat(testee.parallelism()).isEqualTo(4);
+
+        throttling(300, 60);
+        nextEvaluation();
+        assertThat(testee.parallelism()).isEqualTo(5);
+    }
+
+    @Test
+    void hostCpus() {
+        assertThat(testee.hostCpus()).isEqualTo(4);
+    }
+
+    @Test
+    void parallelism_raisedWhenLoadDrops() throws IOException {
+        loadAverage(16);
+        assertThat(testee.parallelism()).isEqualTo(4);
+
+        loadAverage(3.2);
+        nextEvaluation();
+        assertThat(testee.parallelism()).as("keeps the limit between the thresholds").isEqualTo(4);
+
+        loadAverage(2);
+        nextEvaluation();
+        assertThat(testee.parallelism()).isEqualTo(5);
+        nextEvaluation();
+        nextEvaluation();
+        nextEvaluation();
+        nextEvaluation();
+        assertThat(testee.parallelism()).as("never above the configured limit").isEqualTo(8);
+    }
+
+    @Test
+    void parallelism_lowMemoryOfCgroup() throws IOException {
+        loadAverage(0.4);
+        Files.writeString(cgroup.resolve("memory.max"), "4294967296\n");
+        Files.writeString(cgroup.resolve("memory.current"), "4000000000\n");
+
+        assertThat(testee.parallelism()).isEqualTo(4);
+    }
+
+    @Test
+    void availableMemory_cgroupV1WithoutLimit() throws IOException {
+        Files.createDirectories(cgroup.resolve("memory"));
+        Files.writeString(cgroup.resolve("memory").resolve("memory.limit_in_bytes"), "9223372036854771712\n");
+        Files.writeString(cgroup.resolve("memory").resolve("memory.usage_in_bytes"), "1000000\n");
+
+        assertThat(testee.availableMemory()).hasValue(8_000_000L * 1024);
+    }
+
+    private void loadAverage(double load) throws IOException {
+        Files.writeString(proc.resolve("loadavg"), load + " 1.00 1.00 2/300 12345\n");
+    }
+
+    private void throttling(long periods, long throttled) throws IOException {
+        Files.writeString(cgroup.resolve("cpu.stat"), "usage_usec 1000000\nuser_usec 800000\nsystem_usec 200000\n"
+                + "nr_periods " + periods + "\nnr_throttled " + throttled + "\nthrottled_usec 0\n");
+    }
+
+    private void nextEvaluation() {
+        time.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        testee.parallelism();
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the <code>ls-tree -z</code> parser with the former regex based parser of the newline separated output.
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.github.jonasrutishauser.bitbucket.helm.impl.LsTreeCommandOutputHandlerBenchmark</code> (or from
+ * the IDE, with <code>-prof gc</code> added to the options to compare the allocations).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LsTreeCommandOutputHandlerBenchmark {
+    private static final Pattern PATTERN = Pattern.compile(".*\\s([0-9a-f]+)\\t(.+)$");
+
+    @Param({"1000", "100000"})
+    int entries;
+
+    private byte[] newlineOutput;
+    private byte[] nulOutput;
+
+    @Setup
+    public void createOutput() {
+        StringBuilder newline = new StringBuilder();
+        StringBuilder nul = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            String entry = String.format("100644 blob %040x\tcharts/chart-%d/templates/deployment-%d.yaml", i, i / 50,
+                    i);
+            newline.append(entry).append('\n');
+            nul.append(entry).append('\0');
+        }
+        newlineOutput = newline.toString().getBytes(UTF_8);
+        nulOutput = nul.toString().getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public List<GitFile> regex() throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(newlineOutput), UTF_8))) {
+            return reader.lines().map(line -> {
+                Matcher matcher = PATTERN.matcher(line);
+                matcher.find();
+                return new GitFile(matcher.group(1), matcher.group(2));
+            }).collect(toList());
+        }
+    }
+
+    @Benchmark
+    public Integer streaming(Blackhole blackhole) throws IOException {
+        LsTreeCommandOutputHandler handler = new LsTreeCommandOutputHandler(blackhole::consume);
+        handler.process(new ByteArrayInputStream(nulOutput));
+        return handler.getOutput();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LsTreeCommandOutputHandlerBenchmark.class.getSimpleName()).build())
+                .run();
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class LsTreeCommandOutputHandlerTest {
+
+    @Test
+    void process_passesEntriesToConsumer() throws IOException {
+        List<GitFile> files = new ArrayList<>();
+        LsTreeCommandOutputHandler testee = new LsTreeCommandOutputHandler(files::add);
+
+        testee.process(new ByteArrayInputStream(("100644 blob c1b0730e0133447badcfd47fd144e254807b06e1\ta/t\tab.yaml\0"
+                + "100644 blob e25f1814e51579d5f55c0f1fe0135ddb28a47f4a\ta/über \"x\".yaml\0"
+                + "040000 tree a3d37075b706b3ea6b1dbc42a123be536f40ceb1\tb\0").getBytes(UTF_8)));
+
+        assertThat(testee.getOutput()).isEqualTo(3);
+        assertThat(files).extracting(GitFile::getObjectId).containsExactly(
+                "c1b0730e0133447badcfd47fd144e254807b06e1", "e25f1814e51579d5f55c0f1fe0135ddb28a47f4a",
+                "a3d37075b706b3ea6b1dbc42a123be536f40ceb1");
+        assertThat(files).extracting(GitFile::getFilename).containsExactly("a/t\tab.yaml", "a/über \"x\".yaml",
+                "b");
+    }
+
+    @Test
+    void process_longPath() throws IOException {
+        List<GitFile> files = new ArrayList<>();
+        String path = "dir/".repeat(200) + "file.yaml";
+
+        new LsTreeCommandOutputHandler(files::add).process(new ByteArrayInputStream(
+                ("100644 blob c1b0730e0133447badcfd47fd144e254807b06e1\t" + path + "\0").getBytes(UTF_8)));
+
+        assertThat(files).extracting(GitFile::getFilename).containsExactly(path);
+    }
+
+    @Test
+    void process_invalidEntry() {
+        LsTreeCommandOutputHandler testee = new LsTreeCommandOutputHandler(file -> {});
+
+        assertThatThrownBy(() -> testee.process(new ByteArrayInputStream("fatal\0".getBytes(UTF_8))))
+                .isInstanceOf(IOException.class);
+    }
+}
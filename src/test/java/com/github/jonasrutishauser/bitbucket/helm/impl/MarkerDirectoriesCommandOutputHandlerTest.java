@@ -0,0 +1,60 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class MarkerDirectoriesCommandOutputHandlerTest {
+
+    @Test
+    void process_onlyCandidatesWithMarkerFile() throws IOException {
+        DirectoryTrie candidates = new DirectoryTrie();
+        candidates.add("charts/a/templates/test.yaml".split("/"), 3);
+        candidates.add("env/prod/values.yaml".split("/"), 2);
+        MarkerDirectoriesCommandOutputHandler testee = new MarkerDirectoriesCommandOutputHandler(candidates,
+                asList("helmfile.yaml", "Chart.yaml"));
+
+        testee.process(new ByteArrayInputStream(String.join("\0", //
+                "Chart.yaml", //
+                "charts/a/Chart.yaml", //
+                "charts/a/templates/test.yaml", //
+                "charts/b/Chart.yaml", //
+                "env/helmfile.yaml", //
+                "env/prod/MyChart.yaml", //
+                "env/prod/values.yaml").getBytes(UTF_8)));
+
+        assertThat(testee.getOutput()).containsExactly(".", "charts/a", "env");
+    }
+
+    @Test
+    void process_allWithoutCandidates() throws IOException {
+        MarkerDirectoriesCommandOutputHandler testee = new MarkerDirectoriesCommandOutputHandler(null,
+                asList("Chart.yaml"));
+
+        testee.process(new ByteArrayInputStream("a/Chart.yaml\0b/c/Chart.yaml\0b/values.yaml\0".getBytes(UTF_8)));
+
+        assertThat(testee.getOutput()).containsExactly("a", "b/c");
+    }
+
+    @Test
+    void directoryTrie_containsAncestors() {
+        DirectoryTrie testee = new DirectoryTrie();
+        testee.add("a/b/c/d".split("/"), 3);
+
+        assertThat(testee.contains(".")).isTrue();
+        assertThat(testee.contains("a")).isTrue();
+        assertThat(testee.contains("a/b/c")).isTrue();
+        assertThat(testee.contains("a/b/c/d")).isFalse();
+        assertThat(testee.contains("b")).isFalse();
+        List<String> directories = new ArrayList<>();
+        testee.forEach(directories::add);
+        assertThat(directories).containsExactly(".", "a", "a/b", "a/b/c");
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.atlassian.bitbucket.pull.PullRequest;
+import com.atlassian.bitbucket.pull.PullRequestService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.user.EscalatedSecurityContext;
+import com.atlassian.bitbucket.util.Operation;
+import com.atlassian.scheduler.SchedulerService;
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+class PrEventProcessorTest {
+
+    private final RepositoryService repositoryService = mock(RepositoryService.class);
+    private final SchedulerService scheduler = mock(SchedulerService.class);
+    private final PullRequestTemplater pullRequestTemplater = mock(PullRequestTemplater.class);
+    private final PluginUser pluginUser = mock(PluginUser.class, RETURNS_DEEP_STUBS);
+    private final RenderQueue renderQueue = mock(RenderQueue.class);
+
+    private PrEventProcessor testee;
+
+    @BeforeEach
+    void createTestee() throws Throwable {
+        EscalatedSecurityContext securityContext = mock(EscalatedSecurityContext.class);
+        when(securityContext.call(any()))
+                .thenAnswer(invocation -> ((Operation<?, ?>) invocation.getArgument(0)).perform());
+        when(pluginUser.impersonating(any()).withPermission(any())).thenReturn(securityContext);
+        testee = new PrEventProcessor(mock(HelmConfiguration.class), mock(ChartDependencyIndex.class),
+                mock(PullRequestService.class), repositoryService, scheduler, singletonList(mock(AbstractTemplater.class)), pluginUser,
+                pullRequestTemplater, mock(RenderHistory.class), renderQueue);
+    }
+
+    @AfterEach
+    void shutdown() {
+        testee.shutdown();
+    }
+
+    @Test
+    void submit_closedRemovesReferencesAndWaitingJob() {
+        Repository repository = mock(Repository.class);
+        when(repositoryService.getById(42)).thenReturn(repository);
+        PullRequest pullRequest = mock(PullRequest.class, RETURNS_DEEP_STUBS);
+        when(pullRequest.getToRef().getRepository().getId()).thenReturn(42);
+        when(pullRequest.getId()).thenReturn(7l);
+
+        testee.submit(PrEventProcessor.WorkItem.closed(pullRequest));
+
+        verify(scheduler, timeout(5000)).unscheduleJob(any());
+        verify(pullRequestTemplater, timeout(5000)).removeReference(repository, 7l);
+        verify(renderQueue).remove(42, 7l);
+    }
+
+    @Test
+    void coalesce_keepsRequestedFullRender() {
+        PullRequest pullRequest = mock(PullRequest.class, RETURNS_DEEP_STUBS);
+        PrEventProcessor.WorkItem fullRender = PrEventProcessor.WorkItem.fullRender(pullRequest);
+        PrEventProcessor.WorkItem updated = PrEventProcessor.WorkItem.updated(pullRequest);
+        PrEventProcessor.WorkItem closed = PrEventProcessor.WorkItem.closed(pullRequest);
+
+        assertThat(updated.coalesce(fullRender)).isNotSameAs(updated).extracting("fullRender").isEqualTo(true);
+        assertThat(updated.coalesce(updated)).isSameAs(updated);
+        assertThat(closed.coalesce(fullRender)).isSameAs(closed);
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySortedMap;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scm.git.GitWorkTreeBuilderFactory;
+import com.atlassian.bitbucket.scm.git.command.GitCommandBuilderFactory;
+import com.atlassian.bitbucket.server.StorageService;
+import com.github.jonasrutishauser.bitbucket.helm.impl.FastImportCommandHandler.Blob;
+import com.github.jonasrutishauser.bitbucket.helm.impl.FastImportCommandHandler.Commit;
+
+class PullRequestTemplaterTest {
+
+    private final List<RenderedCommit> toRendered = singletonList(
+            new RenderedCommit(null, "helm", "to", "abc", "def", singleton("apps/a"), emptyList()));
+    private final List<RenderedCommit> fromRendered = singletonList(
+            new RenderedCommit(null, "helm", "from", "123", "def", singleton("apps/a"), emptyList()));
+
+    @Test
+    void commits_bothVersions() {
+        SortedMap<String, Blob> toTree = tree("helm/apps/a/out.yaml", "1111");
+        SortedMap<String, Blob> fromTree = tree("helm/apps/a/out.yaml", "2222");
+
+        List<Commit> commits = PullRequestTemplater.commits("helm template", toTree, toRendered, fromTree,
+                fromRendered);
+
+        assertThat(commits).extracting("tree").containsExactly(toTree, fromTree);
+        assertThat(rendered(commits.get(0))).extracting(RenderedCommit::getSide).containsExactly("to");
+        assertThat(rendered(commits.get(1))).extracting(RenderedCommit::getSide).containsExactly("from");
+    }
+
+    @Test
+    void commits_sameOutputKeepsTrailersOfBothVersions() {
+        SortedMap<String, Blob> toTree = tree("helm/apps/a/out.yaml", "1111");
+        SortedMap<String, Blob> fromTree = tree("helm/apps/a/out.yaml", "1111");
+
+        List<Commit> commits = PullRequestTemplater.commits("helm template", toTree, toRendered, fromTree,
+                fromRendered);
+
+        assertThat(commits).extracting("tree").containsExactly(toTree);
+        assertThat(rendered(commits.get(0))).extracting(RenderedCommit::getSide, RenderedCommit::getSource)
+                .containsExactly(tuple("to", "abc"), tuple("from", "123"));
+    }
+
+    @Test
+    void commits_noOutputOfOldVersion() {
+        SortedMap<String, Blob> fromTree = tree("helm/apps/a/out.yaml", "2222");
+
+        List<Commit> commits = PullRequestTemplater.commits("helm template", emptySortedMap(), toRendered,
+                fromTree, fromRendered);
+
+        assertThat(commits).extracting("tree").containsExactly(fromTree);
+        assertThat(rendered(commits.get(0))).extracting(RenderedCommit::getSide).containsExactly("from");
+    }
+
+    @Test
+    void commits_noOutput() {
+        assertThat(PullRequestTemplater.commits("helm template", emptySortedMap(), toRendered, emptySortedMap(),
+                fromRendered)).isEmpty();
+    }
+
+    @Test
+    void combine_folderPerTool() {
+        Map<String, SortedMap<String, Blob>> trees = new LinkedHashMap<>();
+        trees.put("helmfile", tree("env/out.yaml", "2222"));
+        trees.put("helm", tree("apps/a/out.yaml", "1111"));
+
+        assertThat(PullRequestTemplater.combine(trees)).containsOnlyKeys("helm/apps/a/out.yaml",
+                "helmfile/env/out.yaml");
+    }
+
+    @Test
+    void changedTools() {
+        SortedMap<String, Blob> toTree = tree("helm/apps/a/out.yaml", "1111");
+        toTree.put("helmfile/env/out.yaml", new Blob("3333", null));
+        SortedMap<String, Blob> fromTree = tree("helm/apps/a/out.yaml", "2222");
+        fromTree.put("helmfile/env/out.yaml", new Blob("3333", null));
+
+        assertThat(PullRequestTemplater.changedTools(asList("helm", "helmfile", "kustomize"), fromTree, toTree))
+                .containsExactly("helm");
+    }
+
+    @Test
+    void changedTools_outputRemoved() {
+        SortedMap<String, Blob> toTree = tree("helmfile/env/out.yaml", "3333");
+
+        assertThat(PullRequestTemplater.changedTools(asList("helm", "helmfile"), emptySortedMap(), toTree))
+                .containsExactly("helmfile");
+    }
+
+    @Test
+    void getRefName_oneRefPerPullRequest() {
+        assertThat(PullRequestTemplater.getRefName(7)).isEqualTo("refs/pull-requests/7/templates");
+    }
+
+    @Test
+    void removeReference_deletesRefsOfOlderVersions() {
+        GitCommandBuilderFactory commandBuilderFactory = mock(GitCommandBuilderFactory.class, RETURNS_DEEP_STUBS);
+        Repository repository = mock(Repository.class);
+        AbstractTemplater helm = mock(AbstractTemplater.class);
+        when(helm.toolName()).thenReturn("helm");
+        AbstractTemplater helmfile = mock(AbstractTemplater.class);
+        when(helmfile.toolName()).thenReturn("helmfile");
+        PullRequestTemplater testee = new PullRequestTemplater(mock(GitWorkTreeBuilderFactory.class),
+                commandBuilderFactory, mock(StorageService.class), mock(RenderExecutor.class), asList(helm, helmfile),
+                mock(RenderHistory.class), mock(ChartDependencyIndex.class));
+
+        testee.removeReference(repository, 7);
+
+        verify(commandBuilderFactory.builder(repository).updateRef()).delete("refs/pull-requests/7/templates");
+        verify(commandBuilderFactory.builder(repository).updateRef()).delete("refs/pull-requests/7/helm");
+        verify(commandBuilderFactory.builder(repository).updateRef()).delete("refs/pull-requests/7/helmfile");
+    }
+
+    private static List<RenderedCommit> rendered(Commit commit) {
+        List<String> rawCommit = new ArrayList<>(asList("tree 123", ""));
+        rawCommit.addAll(asList(commit.getMessage().split("\n")));
+        return RenderedCommit.parseAll("789", rawCommit.toArray(new String[0]));
+    }
+
+    private static SortedMap<String, Blob> tree(String path, String objectId) {
+        SortedMap<String, Blob> tree = new TreeMap<>();
+        tree.put(path, new Blob(objectId, null));
+        return tree;
+    }
+}
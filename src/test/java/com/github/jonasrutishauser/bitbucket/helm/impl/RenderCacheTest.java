@@ -0,0 +1,117 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+class RenderCacheTest {
+
+    private final HelmConfiguration configuration = mock(HelmConfiguration.class);
+
+    @TempDir
+    Path cacheDir;
+
+    @TempDir
+    Path renderedDir;
+
+    private RenderCache testee;
+
+    @BeforeEach
+    void createTestee() {
+        when(configuration.getRenderCacheSize()).thenReturn(1l);
+        testee = new RenderCache(configuration, cacheDir);
+    }
+
+    @Test
+    void key_dependsOnAllParts() {
+        assertThat(testee.key(asList("a", "bc"))).isEqualTo(testee.key(asList("a", "bc")))
+                .isNotEqualTo(testee.key(asList("ab", "c")));
+    }
+
+    @Test
+    void replay_storedEntry() throws IOException {
+        Files.createDirectories(renderedDir.resolve("default"));
+        Files.writeString(renderedDir.resolve("default").resolve("test.yaml"), "name: test");
+        Files.writeString(renderedDir.resolve("default.yaml"), "# Source: test");
+
+        testee.store("key", renderedDir);
+
+        List<String> replayed = new ArrayList<>();
+        assertThat(testee.replay("key", entry -> {
+            replayed.add(Files.readString(entry.resolve("default").resolve("test.yaml")));
+            replayed.add(Files.readString(entry.resolve("default.yaml")));
+        })).isTrue();
+        assertThat(replayed).containsExactly("name: test", "# Source: test");
+    }
+
+    @Test
+    void replay_unknownEntry() throws IOException {
+        assertThat(testee.replay("unknown", entry -> {
+            throw new IllegalStateException();
+        })).isFalse();
+    }
+
+    @Test
+    void replay_disabled() throws IOException {
+        Files.writeString(renderedDir.resolve("default.yaml"), "# Source: test");
+        testee.store("key", renderedDir);
+
+        when(configuration.getRenderCacheSize()).thenReturn(0l);
+
+        assertThat(testee.isEnabled()).isFalse();
+        assertThat(testee.replay("key", entry -> {
+            throw new IllegalStateException();
+        })).isFalse();
+    }
+
+    @Test
+    void store_evictsLeastRecentlyUsed() throws IOException {
+        Files.write(renderedDir.resolve("default.yaml"), new byte[400 * 1024]);
+        testee.store("first", renderedDir);
+        testee.store("second", renderedDir);
+        testee.replay("first", entry -> {
+        });
+
+        testee.store("third", renderedDir);
+
+        assertThat(testee.replay("first", entry -> {
+        })).isTrue();
+        assertThat(testee.replay("second", entry -> {
+        })).isFalse();
+        assertThat(testee.replay("third", entry -> {
+        })).isTrue();
+        assertThat(cacheDir.resolve("second")).doesNotExist();
+    }
+
+    @Test
+    void store_tooLarge() throws IOException {
+        Files.write(renderedDir.resolve("default.yaml"), new byte[2 * 1024 * 1024]);
+
+        testee.store("key", renderedDir);
+
+        assertThat(testee.replay("key", entry -> {
+        })).isFalse();
+    }
+
+    @Test
+    void entries_reloadedFromDisk() throws IOException {
+        Files.writeString(renderedDir.resolve("default.yaml"), "# Source: test");
+        testee.store("key", renderedDir);
+
+        assertThat(new RenderCache(configuration, cacheDir).replay("key", entry -> {
+        })).isTrue();
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+class RenderExecutorTest {
+
+    private final HelmConfiguration configuration = mock(HelmConfiguration.class);
+    private final LoadGovernor loadGovernor = mock(LoadGovernor.class);
+
+    private RenderExecutor testee;
+
+    @BeforeEach
+    void createTestee() {
+        when(configuration.getJobParallelism()).thenReturn(4);
+        when(loadGovernor.parallelism()).thenReturn(2);
+        testee = new RenderExecutor(configuration, loadGovernor);
+    }
+
+    @AfterEach
+    void shutdown() {
+        testee.shutdown();
+    }
+
+    @Test
+    void invokeAll_resultsInTaskOrder() throws IOException {
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int number = i;
+            tasks.add(() -> {
+                Thread.sleep(10 - number);
+                return "task" + number;
+            });
+        }
+
+        assertThat(testee.invokeAll(tasks)).containsExactly("task0", "task1", "task2", "task3", "task4", "task5",
+                "task6", "task7", "task8", "task9");
+    }
+
+    @Test
+    void invokeAll_limitedByNodeParallelism() throws IOException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            tasks.add(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(20);
+                return running.decrementAndGet();
+            });
+        }
+
+        testee.invokeAll(tasks);
+
+        assertThat(maxRunning.get()).isEqualTo(2);
+    }
+
+    @Test
+    void invokeAll_propagatesFailure() {
+        List<Callable<String>> tasks = asList(() -> "ok", () -> {
+            throw new IOException("failed");
+        });
+
+        assertThatThrownBy(() -> testee.invokeAll(tasks)).isInstanceOf(IOException.class).hasMessage("failed");
+    }
+
+    @Test
+    void invokeAll_keepsInterruptWhileWaitingForPermit() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Callable<Boolean>> blockingTasks = asList(() -> awaitRelease(started, release),
+                () -> awaitRelease(started, release));
+        Thread blocking = new Thread(() -> {
+            try {
+                testee.invokeAll(blockingTasks);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        blocking.start();
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        try {
+            Thread.currentThread().interrupt();
+            List<Callable<String>> tasks = asList(() -> "never");
+            assertThatThrownBy(() -> testee.invokeAll(tasks)).isInstanceOf(InterruptedIOException.class);
+            assertThat(Thread.interrupted()).isTrue();
+        } finally {
+            release.countDown();
+            blocking.join();
+        }
+    }
+
+
+    @Test
+    void invokeAll_stopsWhenCancelled() {
+        CancellationToken token = new CancellationToken(() -> false);
+        AtomicInteger executed = new AtomicInteger();
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tasks.add(() -> {
+                executed.incrementAndGet();
+                assertThat(CancellationToken.current()).isSameAs(token);
+                token.cancel();
+                return Boolean.TRUE;
+            });
+        }
+
+        try (CancellationToken.Scope scope = token.enter()) {
+            assertThatThrownBy(() -> testee.invokeAll(tasks))
+                    .isInstanceOf(CancellationToken.CancelledException.class);
+        }
+        assertThat(executed.get()).isLessThanOrEqualTo(2);
+    }
+
+    private static Boolean awaitRelease(CountDownLatch started, CountDownLatch release) throws InterruptedException {
+        started.countDown();
+        return Boolean.valueOf(release.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+class RenderHistoryTest {
+
+    private final HelmConfiguration configuration = mock(HelmConfiguration.class);
+    private final ClusterLockService lockService = mock(ClusterLockService.class);
+
+    @TempDir
+    Path sharedHome;
+
+    private RenderHistory testee;
+
+    @BeforeEach
+    void createTestee() {
+        when(configuration.getJobParallelism()).thenReturn(1);
+        when(lockService.getLockForName(anyString())).thenReturn(mock(ClusterLock.class));
+        testee = new RenderHistory(configuration, lockService, sharedHome.resolve("render-history"));
+    }
+
+    @Test
+    void estimate_unknownRepository() {
+        assertThat(testee.estimate(1, Map.of("helm", Set.of("chart"))))
+                .isEqualTo(2 * RenderHistory.DEFAULT_DURATION);
+    }
+
+    @Test
+    void estimate_sumsConfigurationsOfBothSides() {
+        testee.record(1, asList(new RenderHistory.Sample("helm", "chart", "default", 3_000, 100),
+                new RenderHistory.Sample("helm", "chart", "test", 1_000, 100),
+                new RenderHistory.Sample("helm", "other", "default", 9_000, 100)));
+
+        assertThat(testee.estimate(1, Map.of("helm", Set.of("chart")))).isEqualTo(8_000);
+        // unknown directories take the average of the known ones
+        assertThat(testee.estimate(1, Map.of("helm", Set.of("chart", "new")))).isEqualTo(8_000 + 13_000);
+        assertThat(testee.estimate(2, Map.of("helm", Set.of("chart"))))
+                .isEqualTo(2 * RenderHistory.DEFAULT_DURATION);
+    }
+
+    @Test
+    void estimate_rendersInParallel() {
+        when(configuration.getJobParallelism()).thenReturn(4);
+        testee.record(1, asList(new RenderHistory.Sample("helm", "a", "default", 8_000, 100),
+                new RenderHistory.Sample("helm", "b", "default", 2_000, 100)));
+
+        assertThat(testee.estimate(1, Map.of("helm", Set.of("a", "b")))).isEqualTo(8_000);
+        assertThat(testee.estimate(1, Map.of("helm", Set.of("b")))).isEqualTo(2_000);
+    }
+
+    @Test
+    void record_recentRendersCountMore() {
+        testee.record(1, asList(new RenderHistory.Sample("helm", "chart", "default", 3_000, 100)));
+        testee.record(1, asList(new RenderHistory.Sample("helm", "chart", "default", 6_000, 100)));
+
+        assertThat(testee.estimate(1, Map.of("helm", Set.of("chart")))).isEqualTo(2 * 4_000);
+    }
+}
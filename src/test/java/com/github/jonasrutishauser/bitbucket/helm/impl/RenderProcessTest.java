@@ -0,0 +1,91 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisabledOnOs(OS.WINDOWS)
+class RenderProcessTest {
+
+    @TempDir
+    Path targetDir;
+
+    @Test
+    void run_streamsOutputIntoFile() throws IOException {
+        Path target = targetDir.resolve("test/default.yaml");
+
+        RenderProcess.Result result = run("echo 'name: test'; echo warning >&2", target, 100, Duration.ofSeconds(10));
+
+        assertThat(result.isSuccessful()).isTrue();
+        assertThat(result.isTruncated()).isFalse();
+        assertThat(result.getStderr()).isEqualTo("warning");
+        assertThat(target).hasContent("name: test");
+    }
+
+    @Test
+    void run_truncatesOutput() throws IOException {
+        Path target = targetDir.resolve("default.yaml");
+
+        RenderProcess.Result result = run("while true; do echo 'name: test'; done", target, 1000,
+                Duration.ofSeconds(10));
+
+        assertThat(result.isSuccessful()).isFalse();
+        assertThat(result.isTruncated()).isTrue();
+        assertThat(result.getOutputSize()).isEqualTo(1000);
+        assertThat(Files.readString(target)).startsWith("name: test").contains("# rendered output truncated");
+    }
+
+    @Test
+    void run_keepsTailOfStderr() throws IOException {
+        RenderProcess.Result result = run("head -c 200000 /dev/zero | tr '\\0' x >&2; echo failed >&2; exit 2",
+                targetDir.resolve("default.yaml"), 100, Duration.ofSeconds(10));
+
+        assertThat(result.isSuccessful()).isFalse();
+        assertThat(result.getStderr()).hasSizeLessThan(70_000).startsWith("...").endsWith("xfailed");
+    }
+
+    @Test
+    void run_killsProcessAfterTimeout() throws IOException {
+        RenderProcess.Result result = run("sleep 10 & sleep 10", targetDir.resolve("default.yaml"), 100,
+                Duration.ofMillis(200));
+
+        assertThat(result.isSuccessful()).isFalse();
+        assertThat(result.isTimedOut()).isTrue();
+    }
+
+    @Test
+    void run_killsProcessWhenCancelled() {
+        CancellationToken token = new CancellationToken(() -> false);
+        new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            token.cancel();
+        }).start();
+        long start = System.nanoTime();
+
+        try (CancellationToken.Scope scope = token.enter()) {
+            assertThatThrownBy(() -> run("sleep 10 & sleep 10", targetDir.resolve("default.yaml"), 100,
+                    Duration.ofSeconds(10))).isInstanceOf(CancellationToken.CancelledException.class);
+        }
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(5));
+    }
+
+    private RenderProcess.Result run(String script, Path target, long maxOutputSize, Duration timeout)
+            throws IOException {
+        return new RenderProcess(asList("sh", "-c", script), emptyMap(), null).run(target, maxOutputSize, timeout);
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.bitbucket.cluster.ClusterInformation;
+import com.atlassian.bitbucket.cluster.ClusterNode;
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.github.jonasrutishauser.bitbucket.helm.impl.config.HelmConfiguration;
+
+class RenderQueueTest {
+
+    private final HelmConfiguration configuration = mock(HelmConfiguration.class);
+    private final ClusterService clusterService = mock(ClusterService.class);
+    private final ClusterLockService lockService = mock(ClusterLockService.class);
+
+    @TempDir
+    Path sharedHome;
+
+    private RenderQueue testee;
+
+    @BeforeEach
+    void createTestee() {
+        when(configuration.getQueueGlobalLimit()).thenReturn(8);
+        when(configuration.getQueueNodeLimit()).thenReturn(8);
+        when(configuration.getQueueProjectLimit()).thenReturn(8);
+        when(configuration.getQueueRepositoryLimit()).thenReturn(1);
+        ClusterNode node = mock(ClusterNode.class);
+        when(node.getId()).thenReturn("node-1");
+        ClusterInformation information = mock(ClusterInformation.class);
+        when(information.getLocalNode()).thenReturn(node);
+        when(information.getNodes()).thenReturn(singleton(node));
+        when(clusterService.getInformation()).thenReturn(information);
+        when(lockService.getLockForName(anyString())).thenReturn(mock(ClusterLock.class));
+        testee = new RenderQueue(configuration, lockService, clusterService, sharedHome.resolve("render-queue"));
+    }
+
+    @Test
+    void claim_repositoriesTakeTurns() {
+        testee.enqueue(entry(1, 1, 10));
+        testee.enqueue(entry(1, 1, 11));
+        testee.enqueue(entry(1, 1, 12));
+        testee.enqueue(entry(2, 1, 20));
+        testee.enqueue(entry(3, 1, 30));
+        when(configuration.getQueueRepositoryLimit()).thenReturn(8);
+
+        List<Long> order = new ArrayList<>();
+        for (Optional<RenderQueue.Entry> entry = testee.claim(); entry.isPresent(); entry = testee
+                .completeAndClaim(entry.get())) {
+            order.add(entry.get().getPullRequestId());
+        }
+
+        assertThat(order).containsExactly(10l, 20l, 30l, 11l, 12l);
+    }
+
+    @Test
+    void claim_limitedPerRepository() {
+        testee.enqueue(entry(1, 1, 10));
+        testee.enqueue(entry(1, 1, 11));
+        testee.enqueue(entry(2, 1, 20));
+
+        Optional<RenderQueue.Entry> first = testee.claim();
+        Optional<RenderQueue.Entry> second = testee.claim();
+
+        assertThat(first).map(RenderQueue.Entry::getPullRequestId).contains(10l);
+        assertThat(second).map(RenderQueue.Entry::getPullRequestId).contains(20l);
+        assertThat(testee.claim()).isEmpty();
+        assertThat(testee.completeAndClaim(first.get())).map(RenderQueue.Entry::getPullRequestId).contains(11l);
+    }
+
+    @Test
+    void complete_freesSlotWithoutClaiming() {
+        testee.enqueue(entry(1, 1, 10));
+        testee.enqueue(entry(1, 1, 11));
+        Optional<RenderQueue.Entry> first = testee.claim();
+
+        testee.complete(first.get());
+
+        assertThat(testee.getStatistics()).containsEntry("waiting", 1l).containsEntry("running", 0l);
+        assertThat(testee.claim()).map(RenderQueue.Entry::getPullRequestId).contains(11l);
+    }
+
+    @Test
+    void remove_waitingJobOfPullRequest() {
+        testee.enqueue(entry(1, 1, 10));
+        testee.enqueue(entry(2, 1, 20));
+        testee.enqueue(entry(2, 1, 21));
+        Optional<RenderQueue.Entry> running = testee.claim();
+
+        testee.remove(1, 10);
+        testee.remove(2, 21);
+
+        assertThat(running).map(RenderQueue.Entry::getPullRequestId).contains(10l);
+        assertThat(testee.getStatistics()).containsEntry("waiting", 1l).containsEntry("running", 1l);
+        assertThat(testee.claim()).map(RenderQueue.Entry::getPullRequestId).contains(20l);
+    }
+
+    @Test
+    void claim_limitedPerProjectNodeAndCluster() {
+        when(configuration.getQueueProjectLimit()).thenReturn(1);
+        testee.enqueue(entry(1, 1, 10));
+        testee.enqueue(entry(2, 1, 20));
+        testee.enqueue(entry(3, 2, 30));
+        testee.enqueue(entry(4, 3, 40));
+        when(configuration.getQueueNodeLimit()).thenReturn(2);
+
+        assertThat(testee.claim()).map(RenderQueue.Entry::getPullRequestId).contains(10l);
+        assertThat(testee.claim()).map(RenderQueue.Entry::getPullRequestId).contains(30l);
+        assertThat(testee.claim()).isEmpty();
+
+        when(configuration.getQueueNodeLimit()).thenReturn(8);
+        when(configuration.getQueueGlobalLimit()).thenReturn(2);
+
+        assertThat(testee.claim()).isEmpty();
+    }
+
+    @Test
+    void enqueue_replacesWaitingJobOfSamePullRequest() {
+        testee.enqueue(entry(1, 1, 10));
+        testee.enqueue(entry(2, 1, 20));
+        testee.enqueue(new RenderQueue.Entry(1, 1, 10, "from2", "to2", Map.of("helmfile", Set.of("other")), 0,
+                true));
+
+        Optional<RenderQueue.Entry> entry = testee.claim();
+
+        assertThat(entry).map(RenderQueue.Entry::getFromCommit).contains("from2");
+        assertThat(entry.get().getDirectories()).containsOnlyKeys("helmfile");
+        assertThat(entry.get().getDirectories().get("helmfile")).containsExactly("other");
+        assertThat(entry.get().isDegraded()).isTrue();
+        assertThat(testee.getStatistics()).containsEntry("waiting", 1l).containsEntry("running", 1l);
+    }
+
+    @Test
+    void isBacklogged_byWaitingJobs() {
+        when(configuration.getDegradationWaitingJobs()).thenReturn(2);
+        testee.enqueue(entry(1, 1, 10));
+        testee.claim();
+        testee.enqueue(entry(1, 1, 11));
+
+        assertThat(testee.isBacklogged()).isFalse();
+
+        testee.enqueue(entry(2, 1, 20));
+
+        assertThat(testee.isBacklogged()).isTrue();
+    }
+
+    @Test
+    void isBacklogged_disabled() {
+        testee.enqueue(entry(1, 1, 10));
+        testee.enqueue(entry(2, 1, 20));
+
+        assertThat(testee.isBacklogged()).isFalse();
+    }
+
+    @Test
+    void claim_requeuesJobsAbandonedByRestart() {
+        testee.enqueue(entry(1, 1, 10));
+        assertThat(testee.claim()).isPresent();
+
+        RenderQueue restarted = new RenderQueue(configuration, lockService, clusterService,
+                sharedHome.resolve("render-queue"));
+
+        assertThat(restarted.claim()).map(RenderQueue.Entry::getPullRequestId).contains(10l);
+    }
+
+    @Test
+    void claim_shortestJobFirst() {
+        testee.enqueue(entry(1, 1, 10, 1_200_000));
+        testee.enqueue(entry(2, 1, 20, 2_000));
+        testee.enqueue(entry(3, 1, 30, 60_000));
+
+        assertThat(testee.claim()).map(RenderQueue.Entry::getPullRequestId).contains(20l);
+        assertThat(testee.claim()).map(RenderQueue.Entry::getPullRequestId).contains(30l);
+        assertThat(testee.claim()).map(RenderQueue.Entry::getPullRequestId).contains(10l);
+    }
+
+    @Test
+    void priority_agesAfterGracePeriod() {
+        long enqueued = System.currentTimeMillis();
+        RenderQueue.Entry longJob = entry(1, 1, 10, 600_000);
+
+        assertThat(longJob.priority(enqueued + 30_000)).isEqualTo(600_000);
+        // after waiting 11 minutes it starts before a new job of 2 seconds
+        assertThat(longJob.priority(enqueued + 662_000)).isLessThan(entry(2, 1, 20, 2_000).priority(enqueued));
+    }
+
+    @Test
+    void getEstimate_waitsForFreeSlot() {
+        when(configuration.getQueueGlobalLimit()).thenReturn(1);
+        testee.enqueue(entry(1, 1, 10, 60_000));
+        testee.enqueue(entry(2, 1, 20, 30_000));
+        testee.enqueue(entry(3, 1, 30, 120_000));
+        long now = System.currentTimeMillis();
+        assertThat(testee.claim()).map(RenderQueue.Entry::getPullRequestId).contains(20l);
+
+        Optional<RenderQueue.Estimate> estimate = testee.getEstimate(3, 30);
+
+        assertThat(estimate).isPresent();
+        assertThat(estimate.get().getStart()).isBetween(now + 90_000, now + 95_000);
+        assertThat(estimate.get().getFinish()).isEqualTo(estimate.get().getStart() + 120_000);
+        assertThat(testee.getEstimate(4, 40)).isEmpty();
+    }
+
+    private static RenderQueue.Entry entry(int repositoryId, int projectId, long pullRequestId) {
+        return entry(repositoryId, projectId, pullRequestId, 0);
+    }
+
+    private static RenderQueue.Entry entry(int repositoryId, int projectId, long pullRequestId,
+            long estimatedDuration) {
+        return new RenderQueue.Entry(repositoryId, projectId, pullRequestId, "from", "to",
+                singletonMap("helm", singleton("chart")), estimatedDuration, false);
+    }
+}
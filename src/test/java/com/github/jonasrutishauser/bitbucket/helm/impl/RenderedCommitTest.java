@@ -0,0 +1,58 @@
+package com.github.jonasrutishauser.bitbucket.helm.impl;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singleton;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class RenderedCommitTest {
+
+    @Test
+    void parse_message() {
+        String message = new RenderedCommit(null, null, "from", "abc", "def", asList(".", "charts/a"), singleton("charts/a"))
+                .toMessage("helm template");
+        List<String> rawCommit = new ArrayList<>(asList("tree 123", "parent 456", "author a <a@b> 1 +0000", ""));
+        rawCommit.addAll(asList(message.split("\n")));
+
+        RenderedCommit rendered = RenderedCommit.parse("789", rawCommit.toArray(new String[0])).get();
+
+        assertThat(rendered.getCommit()).isEqualTo("789");
+        assertThat(rendered.getSide()).isEqualTo("from");
+        assertThat(rendered.getSource()).isEqualTo("abc");
+        assertThat(rendered.getConfiguration()).isEqualTo("def");
+        assertThat(rendered.getDirectories()).containsExactly(".", "charts/a");
+        assertThat(rendered.getIncompleteDirectories()).containsExactly("charts/a");
+        assertThat(RenderedCommit.parent(rawCommit.toArray(new String[0]))).contains("456");
+    }
+
+    @Test
+    void parseAll_sectionPerTool() {
+        String message = RenderedCommit.toMessage("helm and helmfile template",
+                asList(new RenderedCommit(null, "helm", "to", "abc", "def", singleton("charts/a"), emptyList()),
+                        new RenderedCommit(null, "helmfile", "to", "abc", "ghi", singleton("."), singleton("."))));
+        List<String> rawCommit = new ArrayList<>(asList("tree 123", "author a <a@b> 1 +0000", ""));
+        rawCommit.addAll(asList(message.split("\n")));
+
+        List<RenderedCommit> rendered = RenderedCommit.parseAll("789", rawCommit.toArray(new String[0]));
+
+        assertThat(rendered).extracting(RenderedCommit::getTool).containsExactly("helm", "helmfile");
+        assertThat(rendered).extracting(RenderedCommit::getConfiguration).containsExactly("def", "ghi");
+        assertThat(rendered.get(0).getDirectories()).containsExactly("charts/a");
+        assertThat(rendered.get(0).getIncompleteDirectories()).isEmpty();
+        assertThat(rendered.get(1).getIncompleteDirectories()).containsExactly(".");
+    }
+
+    @Test
+    void parse_withoutTrailers() {
+        String[] rawCommit = {"tree 123", "author a <a@b> 1 +0000", "", "helm template"};
+
+        assertThat(RenderedCommit.parse("789", rawCommit)).isEmpty();
+        assertThat(RenderedCommit.parent(rawCommit)).isEmpty();
+    }
+
+}
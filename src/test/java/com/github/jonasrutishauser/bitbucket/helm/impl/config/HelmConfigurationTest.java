@@ -284,6 +284,119 @@ class HelmConfigurationTest {
         assertEquals(Map.of("SOME", "value", "FOO", "bar=test"), testee.getEnv(repository));
     }
 
+    @Test
+    public void getRenderCacheSize_defaultsTo1024() {
+        assertEquals(1024, testee.getRenderCacheSize());
+    }
+
+    @Test
+    public void getRenderCacheSize_globalSet() {
+        testee.setRenderCacheSize(0);
+
+        assertEquals(0, testee.getRenderCacheSize());
+    }
+
+    @Test
+    public void getRenderCacheSize_invalidValue() {
+        settings.put("helm-pr-bitbucket-plugin:render-cache-size", "much");
+
+        assertEquals(1024, testee.getRenderCacheSize());
+    }
+
+    @Test
+    public void getDependencyCacheSize_globalSet() {
+        testee.setDependencyCacheSize(12);
+
+        assertEquals(12, testee.getDependencyCacheSize());
+    }
+
+    @Test
+    public void getMaxOutputSize_globalSet() {
+        testee.setMaxOutputSize(5);
+
+        assertEquals(5, testee.getMaxOutputSize());
+    }
+
+    @Test
+    public void getJobParallelism_defaultsTo4() {
+        assertEquals(4, testee.getJobParallelism());
+    }
+
+    @Test
+    public void getNodeParallelism_globalSet() {
+        testee.setNodeParallelism(2);
+
+        assertEquals(2, testee.getNodeParallelism());
+    }
+
+    @Test
+    public void getParallelism_atLeastOne() {
+        testee.setJobParallelism(0);
+        testee.setNodeParallelism(-1);
+
+        assertEquals(1, testee.getJobParallelism());
+        assertEquals(1, testee.getNodeParallelism());
+    }
+
+    @Test
+    public void getSizesAndTimes_notNegative() {
+        testee.setRenderCacheSize(-1);
+        testee.setDependencyCacheSize(-1);
+        testee.setMaxOutputSize(0);
+        testee.setQuietPeriod(-1);
+        testee.setDegradationWaitingJobs(-1);
+        testee.setDegradationWaitTime(-1);
+
+        assertEquals(0, testee.getRenderCacheSize());
+        assertEquals(0, testee.getDependencyCacheSize());
+        assertEquals(1, testee.getMaxOutputSize());
+        assertEquals(0, testee.getQuietPeriod());
+        assertEquals(0, testee.getDegradationWaitingJobs());
+        assertEquals(0, testee.getDegradationWaitTime());
+    }
+
+    @Test
+    public void getQueueLimits_atLeastOne() {
+        testee.setQueueGlobalLimit(0);
+        testee.setQueueNodeLimit(0);
+        testee.setQueueProjectLimit(-1);
+        testee.setQueueRepositoryLimit(0);
+
+        assertEquals(1, testee.getQueueGlobalLimit());
+        assertEquals(1, testee.getQueueNodeLimit());
+        assertEquals(1, testee.getQueueProjectLimit());
+        assertEquals(1, testee.getQueueRepositoryLimit());
+    }
+
+    @Test
+    public void getQuietPeriod_globalSet() {
+        testee.setQuietPeriod(0);
+
+        assertEquals(0, testee.getQuietPeriod());
+    }
+
+    @Test
+    public void getQueueLimits_globalSet() {
+        testee.setQueueGlobalLimit(10);
+        testee.setQueueNodeLimit(3);
+        testee.setQueueProjectLimit(5);
+        testee.setQueueRepositoryLimit(1);
+
+        assertEquals(10, testee.getQueueGlobalLimit());
+        assertEquals(3, testee.getQueueNodeLimit());
+        assertEquals(5, testee.getQueueProjectLimit());
+        assertEquals(1, testee.getQueueRepositoryLimit());
+    }
+
+    @Test
+    public void getDegradationThresholds_globalSet() {
+        testee.setDegradationWaitingJobs(20);
+        testee.setDegradationWaitTime(600);
+
+        assertEquals(20, testee.getDegradationWaitingJobs());
+        assertEquals(600, testee.getDegradationWaitTime());
+    }
+
     @Test
     public void onRepositoryDeleted_deletesAllKeys() {
         Repository repository = createRepository(13, 42);
@@ -328,6 +441,18 @@ class HelmConfigurationTest {
         assertEquals("", configuration.get("defaultValues"));
         assertEquals("test-values", configuration.get("testValuesDirectory"));
         assertEquals(HelmTemplateMode.BOTH, configuration.get("templateMode"));
+        assertEquals(1024l, configuration.get("renderCacheSize"));
+        assertEquals(1024l, configuration.get("dependencyCacheSize"));
+        assertEquals(100l, configuration.get("maxOutputSize"));
+        assertEquals(4, configuration.get("jobParallelism"));
+        assertEquals(Runtime.getRuntime().availableProcessors(), configuration.get("nodeParallelism"));
+        assertEquals(30l, configuration.get("quietPeriod"));
+        assertEquals(8, configuration.get("queueGlobalLimit"));
+        assertEquals(2, configuration.get("queueNodeLimit"));
+        assertEquals(4, configuration.get("queueProjectLimit"));
+        assertEquals(2, configuration.get("queueRepositoryLimit"));
+        assertEquals(0, configuration.get("degradationWaitingJobs"));
+        assertEquals(0l, configuration.get("degradationWaitTime"));
     }
 
     @Test